@@ -0,0 +1,69 @@
+package JmhBenchmarks;
+
+import Code.ClientMessageBuilder;
+import Code.Message;
+import Code.MessageCodec;
+import Code.MessageCodecs;
+import CryptoUtils.CipherSuite;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// a 4 hop onion to and from its wire form, json is what Peer speaks unless mixnet.codec says binary
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dmixnet.log.level=warn")
+public class CodecBenchmark {
+
+    @Param({"json", "binary"})
+    public String codecName;
+
+    @Param({"256", "4096"})
+    public int payloadBytes;
+
+    private MessageCodec codec;
+    private Message message;
+    private ByteBuffer scratch;
+    private ByteBuffer frame;
+
+    @Setup
+    public void setup() throws Exception {
+        codec = MessageCodecs.forName(codecName);
+        List<String> path = List.of("MixNode_Alpha", "MixNode_Beta", "MixNode_Gamma", "BobDestination");
+        Map<String, PublicKey> keys = new HashMap<>();
+        for (String nodeId : path) {
+            keys.put(nodeId, CipherSuite.RSA_OAEP.generateKeyPair().getPublic());
+        }
+        byte[] content = new byte[payloadBytes];
+        Arrays.fill(content, (byte) 'x');
+        message = ClientMessageBuilder.buildOnionMessage(content, path, keys);
+
+        ByteBuffer encoded = codec.encode(message, null);
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        frame = ByteBuffer.wrap(bytes);
+        scratch = ByteBuffer.allocate(bytes.length);
+    }
+
+    // the scratch buffer is reused like the writer thread does
+    @Benchmark
+    public ByteBuffer encode() throws Exception {
+        scratch = codec.encode(message, scratch);
+        return scratch;
+    }
+
+    @Benchmark
+    public Message decode() throws Exception {
+        frame.clear();
+        return codec.decode(frame);
+    }
+}
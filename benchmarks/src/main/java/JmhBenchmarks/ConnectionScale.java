@@ -0,0 +1,107 @@
+package JmhBenchmarks;
+
+import Code.BinaryMessageCodec;
+import Code.Connection;
+import Code.ExecutionMode;
+import Code.Message;
+import Code.MessageCodecs;
+import Code.PeerManager;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// java -Dmixnet.transport=nio|socket -Dmixnet.threads=platform|virtual -cp benchmarks.jar JmhBenchmarks.ConnectionScale [connections]
+// opens that many upstream connections to one node and reports threads and memory once they are all live,
+// a plain main and not a jmh suite: there is no op to time, it is the footprint at one point
+public class ConnectionScale {
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+
+        AtomicInteger received = new AtomicInteger();
+        PeerManager node = new PeerManager(0, "ScaleNode") {
+            @Override
+            public void processReceivedMessage(Message message, Connection sender) {
+                received.incrementAndGet();
+            }
+        };
+        node.start();
+
+        long baselineHeap = usedHeapAfterGc();
+        long baselineRss = residentSetBytes();
+        int baselineThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        Message hello = new Message(List.of("ScaleClient"), new byte[64], new byte[12], new byte[256]);
+        ByteBuffer frame = new BinaryMessageCodec().encode(hello, null);
+
+        long start = System.nanoTime();
+        List<SocketChannel> clients = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            SocketChannel client = SocketChannel.open(new InetSocketAddress("127.0.0.1", node.getListeningPort()));
+            client.write(frame.duplicate());
+            clients.add(client);
+        }
+        while (received.get() < connections && System.nanoTime() - start < 120_000_000_000L) {
+            Thread.sleep(50);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long heap = usedHeapAfterGc() - baselineHeap;
+        long rss = residentSetBytes() - baselineRss;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - baselineThreads;
+
+        System.out.println();
+        System.out.println("Connection scale, transport=" + System.getProperty("mixnet.transport", "socket")
+                + " threads=" + ExecutionMode.configured().name().toLowerCase()
+                + " codec=" + MessageCodecs.configured().getName());
+        printRow("connections live", "count", received.get(), "");
+        printRow("time to connect all", "wall", seconds, "s");
+        printRow("extra platform threads", "count", threads, "");
+        printRow("extra heap", "per connection", heap / (double) Math.max(1, received.get()), "B");
+        if (baselineRss > 0) {
+            // platform thread stacks live outside the heap, rss catches them
+            printRow("extra resident memory", "per connection", rss / (double) Math.max(1, received.get()), "B");
+        }
+
+        for (SocketChannel client : clients) {
+            client.close();
+        }
+        node.shutdown();
+        System.exit(0);
+    }
+
+    private static void printRow(String name, String column, double value, String unit) {
+        System.out.printf("%-40s %-22s %14.1f %s%n", name, column, value, unit);
+    }
+
+    // linux only, 0 elsewhere
+    private static long residentSetBytes() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+        return 0;
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,121 @@
+package JmhBenchmarks;
+
+import CryptoUtils.CryptoEngine;
+import CryptoUtils.RsaEncryptionUtil;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+// the old per call getInstance / new SecureRandom helpers (perCall*) against the per thread contexts in CryptoEngine
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dmixnet.log.level=warn")
+public class CryptoEngineBenchmark {
+
+    private static final String AES_GCM = "AES/GCM/NoPadding";
+    private static final String RSA_OAEP = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+
+    @Param({"1024"})
+    public int payloadBytes;
+
+    private byte[] plainText;
+    private SecretKey key;
+    private KeyPair rsa;
+    private byte[] iv;
+    private byte[] ivOut;
+    private byte[] cipherText;
+    private byte[] wrappedKey;
+    private ByteBuffer in;
+    private ByteBuffer out;
+    private ByteBuffer sealed;
+    private ByteBuffer opened;
+
+    @Setup
+    public void setup() throws Exception {
+        plainText = new byte[payloadBytes];
+        key = CryptoEngine.generateAesKey();
+        rsa = RsaEncryptionUtil.generateKeyPair();
+        iv = new byte[CryptoEngine.GCM_IV_BYTES];
+        ivOut = new byte[CryptoEngine.GCM_IV_BYTES];
+        cipherText = CryptoEngine.aesEncrypt(plainText, 0, plainText.length, key, iv);
+        wrappedKey = CryptoEngine.rsaEncrypt(key.getEncoded(), rsa.getPublic());
+        in = ByteBuffer.wrap(plainText);
+        out = ByteBuffer.allocate(CryptoEngine.aesOutputSize(payloadBytes));
+        sealed = ByteBuffer.wrap(cipherText);
+        opened = ByteBuffer.allocate(payloadBytes);
+    }
+
+    @Benchmark
+    public byte[] perCallAesEncrypt() throws Exception {
+        byte[] freshIv = new byte[CryptoEngine.GCM_IV_BYTES];
+        new SecureRandom().nextBytes(freshIv);
+        Cipher cipher = Cipher.getInstance(AES_GCM);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, freshIv));
+        return cipher.doFinal(plainText);
+    }
+
+    @Benchmark
+    public byte[] engineAesEncrypt() throws Exception {
+        return CryptoEngine.aesEncrypt(plainText, 0, plainText.length, key, new byte[CryptoEngine.GCM_IV_BYTES]);
+    }
+
+    @Benchmark
+    public int engineAesEncryptBuffers() throws Exception {
+        in.clear();
+        out.clear();
+        return CryptoEngine.aesEncrypt(in, out, key, ivOut);
+    }
+
+    @Benchmark
+    public byte[] perCallAesDecrypt() throws Exception {
+        Cipher cipher = Cipher.getInstance(AES_GCM);
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, iv));
+        return cipher.doFinal(cipherText);
+    }
+
+    @Benchmark
+    public byte[] engineAesDecrypt() throws Exception {
+        return CryptoEngine.aesDecrypt(cipherText, 0, cipherText.length, iv, key);
+    }
+
+    @Benchmark
+    public int engineAesDecryptBuffers() throws Exception {
+        sealed.clear();
+        opened.clear();
+        return CryptoEngine.aesDecrypt(sealed, opened, iv, key);
+    }
+
+    @Benchmark
+    public SecretKey perCallAesKey() throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256, new SecureRandom());
+        return generator.generateKey();
+    }
+
+    @Benchmark
+    public SecretKey engineAesKey() {
+        return CryptoEngine.generateAesKey();
+    }
+
+    @Benchmark
+    public byte[] perCallRsaUnwrap() throws Exception {
+        Cipher cipher = Cipher.getInstance(RSA_OAEP);
+        cipher.init(Cipher.DECRYPT_MODE, rsa.getPrivate());
+        return cipher.doFinal(wrappedKey);
+    }
+
+    @Benchmark
+    public byte[] engineRsaUnwrap() throws Exception {
+        return CryptoEngine.rsaDecrypt(wrappedKey, rsa.getPrivate());
+    }
+}
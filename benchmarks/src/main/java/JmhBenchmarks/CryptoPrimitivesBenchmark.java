@@ -0,0 +1,71 @@
+package JmhBenchmarks;
+
+import CryptoUtils.AesEncryptionUtil;
+import CryptoUtils.RsaEncryptionUtil;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.SecretKey;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// the building blocks on their own: AES-GCM over a layer's payload, RSA-OAEP over a 32 byte layer key
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dmixnet.log.level=warn")
+public class CryptoPrimitivesBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Aes {
+        @Param({"256", "4096", "65536"})
+        public int payloadBytes;
+
+        private SecretKey key;
+        private byte[] plain;
+        private AesEncryptionUtil.EncryptedData encrypted;
+
+        @Setup
+        public void setup() throws Exception {
+            key = AesEncryptionUtil.generateAesKey();
+            plain = new byte[payloadBytes];
+            Arrays.fill(plain, (byte) 'x');
+            encrypted = AesEncryptionUtil.encrypt(plain, key);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Rsa {
+        private KeyPair keyPair;
+        private byte[] layerKey;
+        private byte[] wrapped;
+
+        @Setup
+        public void setup() throws Exception {
+            keyPair = RsaEncryptionUtil.generateKeyPair();
+            layerKey = AesEncryptionUtil.generateAesKey().getEncoded();
+            wrapped = RsaEncryptionUtil.encrypt(layerKey, keyPair.getPublic());
+        }
+    }
+
+    @Benchmark
+    public AesEncryptionUtil.EncryptedData aesEncrypt(Aes state) throws Exception {
+        return AesEncryptionUtil.encrypt(state.plain, state.key);
+    }
+
+    @Benchmark
+    public byte[] aesDecrypt(Aes state) throws Exception {
+        return AesEncryptionUtil.decrypt(state.encrypted, state.key);
+    }
+
+    @Benchmark
+    public byte[] rsaEncrypt(Rsa state) throws Exception {
+        return RsaEncryptionUtil.encrypt(state.layerKey, state.keyPair.getPublic());
+    }
+
+    @Benchmark
+    public byte[] rsaDecrypt(Rsa state) throws Exception {
+        return RsaEncryptionUtil.decrypt(state.wrapped, state.keyPair.getPrivate());
+    }
+}
@@ -0,0 +1,67 @@
+package JmhBenchmarks;
+
+import Code.ClientMessageBuilder;
+import Code.Message;
+import CryptoUtils.AesEncryptionUtil;
+import CryptoUtils.CipherSuite;
+import CryptoUtils.SphinxPacket;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// the last layer at the destination, what DestinationNode does before it hands the text over
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dmixnet.log.level=warn")
+public class DestinationDecryptBenchmark {
+
+    @Param({"rsa", "x25519"})
+    public String suite;
+
+    @Param({"256", "1024"}) // a sphinx packet carries about 2 KB at most
+    public int payloadBytes;
+
+    private KeyPair destination;
+    private Message onion;
+    private AesEncryptionUtil.EncryptedData layer;
+    private byte[] packet;
+    private byte[] work;
+
+    @Setup
+    public void setup() throws Exception {
+        CipherSuite cipherSuite = CipherSuite.fromName(suite);
+        byte[] content = new byte[payloadBytes];
+        Arrays.fill(content, (byte) 'x');
+        destination = cipherSuite.generateKeyPair();
+        List<String> path = List.of("Dest");
+
+        // a one hop path, so the outer layer is already the destination's
+        onion = ClientMessageBuilder.buildOnionMessage(content, path, Map.of("Dest", destination.getPublic()), cipherSuite);
+        layer = new AesEncryptionUtil.EncryptedData(onion.getEncryptedPayload(), onion.getIv());
+        packet = SphinxPacket.build(content, path, Map.of("Dest", destination.getPublic()), cipherSuite);
+        work = new byte[packet.length];
+    }
+
+    @Benchmark
+    public String decryptOnion() throws Exception {
+        byte[] key = onion.getSuite().openLayerKey(onion.getEncryptedSymmetricKeyForThisHop(), destination.getPrivate());
+        byte[] plain = AesEncryptionUtil.decrypt(layer, new SecretKeySpec(key, "AES"));
+        return new String(plain, StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String openSphinx() throws Exception {
+        System.arraycopy(packet, 0, work, 0, packet.length);
+        SphinxPacket.peel(work, destination.getPrivate());
+        return new String(SphinxPacket.openPayload(work), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,56 @@
+package JmhBenchmarks;
+
+import NodesConstruct.LocalNetwork;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// client -> mixes -> destination inside one JVM (LocalNetwork), messages per second through the whole path.
+// mixes flush every message (threshold 1), this is the pipeline's cost, not how long a mix holds on to them
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Dmixnet.log.level=warn", "-Dmixnet.mix.strategy=threshold", "-Dmixnet.mix.threshold=1"})
+public class FullPathBenchmark {
+
+    private static final int BATCH = 64;
+
+    // true: in process links between the nodes, false: tcp on 127.0.0.1
+    @Param({"true", "false"})
+    public String loopback;
+
+    @Param({"1", "3"})
+    public int mixes;
+
+    private LocalNetwork network;
+    private String content;
+    private long expected;
+
+    @Setup
+    public void setup() throws Exception {
+        System.setProperty("mixnet.loopback", loopback);
+        network = new LocalNetwork(1, mixes, 1).start();
+        content = "x".repeat(256);
+    }
+
+    // a batch in, then wait for all of it at the destination
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long sendBatch() throws Exception {
+        for (int i = 0; i < BATCH; i++) {
+            network.send(0, content, 0);
+        }
+        expected += BATCH;
+        if (!network.awaitDelivered(expected, 30_000)) {
+            throw new IllegalStateException("Only " + network.getDeliveredCount() + " of " + expected + " delivered");
+        }
+        return expected;
+    }
+
+    @TearDown
+    public void tearDown() {
+        network.shutdown();
+    }
+}
@@ -0,0 +1,69 @@
+package JmhBenchmarks;
+
+import Code.Connection;
+import Code.Message;
+import Code.PeerManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// one hop between two nodes in this jvm, one message in flight, send -> processReceivedMessage:
+// in process link vs tcp with the socket and the nio transport
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dmixnet.log.level=warn")
+public class HopLatencyBenchmark {
+
+    @Param({"loopback", "socket", "nio"})
+    public String transport;
+
+    @Param({"512"})
+    public int payloadBytes;
+
+    private final Semaphore arrived = new Semaphore(0);
+    private PeerManager receiver;
+    private PeerManager sender;
+    private Connection link;
+    private String senderId;
+
+    @Setup
+    public void setup() throws Exception {
+        System.setProperty("mixnet.transport", transport.equals("loopback") ? "socket" : transport);
+        System.setProperty("mixnet.loopback", Boolean.toString(transport.equals("loopback")));
+        String receiverId = "HopB-" + transport;
+        senderId = "HopA-" + transport;
+        receiver = new PeerManager(0, receiverId) {
+            @Override
+            public void processReceivedMessage(Message message, Connection sender) {
+                arrived.release();
+            }
+        };
+        sender = new PeerManager(0, senderId) {
+            @Override
+            public void processReceivedMessage(Message message, Connection sender) {
+            }
+        };
+        receiver.start();
+        sender.start();
+        link = sender.connectToPeer("127.0.0.1", receiver.getListeningPort(), receiverId);
+    }
+
+    @Benchmark
+    public void hop() throws InterruptedException {
+        link.sendMessage(new Message(List.of(senderId), new byte[payloadBytes], new byte[12], new byte[256]));
+        if (!arrived.tryAcquire(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(transport + ": message never arrived");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.shutdown();
+        receiver.shutdown();
+    }
+}
@@ -0,0 +1,55 @@
+package JmhBenchmarks;
+
+import Logs.LogLevel;
+import Logs.Logger;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// cost per log call on the caller's thread: a line below the level (built or not), and an enabled line
+// from several threads at once. -jvmArgsAppend -Dmixnet.log.async=false for the synchronous println path
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dmixnet.log.level=info")
+public class LoggerBenchmark {
+
+    private final byte[] payload = new byte[512];
+    private final String nodeId = "MixNode_Alpha";
+    private PrintStream console;
+
+    // printing is still done, just not seen
+    @Setup
+    public void setup() {
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        Logger.flush();
+        System.setOut(console);
+        System.out.println("Logger dropped " + Logger.getDroppedCount() + " lines");
+    }
+
+    @Benchmark
+    public void debugOffConcatenated() {
+        Logger.log("MixNode " + nodeId + " payload " + Arrays.toString(payload), LogLevel.Debug);
+    }
+
+    @Benchmark
+    public void debugOffPattern() {
+        Logger.log("MixNode {} payload {}", LogLevel.Debug, nodeId, payload.length);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void infoOn() {
+        Logger.log("Sent message to {} [HopIndex: {}]", LogLevel.Info, "MixNode_Beta", 7);
+    }
+}
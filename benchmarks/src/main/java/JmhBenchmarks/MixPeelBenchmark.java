@@ -0,0 +1,73 @@
+package JmhBenchmarks;
+
+import Code.ClientMessageBuilder;
+import Code.Message;
+import CryptoUtils.AesEncryptionUtil;
+import CryptoUtils.CipherSuite;
+import CryptoUtils.SphinxPacket;
+import com.google.gson.GsonBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// one mix taking its layer off, the steps of MixNode.peelLayer without the queueing around them
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dmixnet.log.level=warn")
+public class MixPeelBenchmark {
+
+    @Param({"rsa", "x25519"})
+    public String suite;
+
+    @Param({"256", "1024"}) // a sphinx packet carries about 2 KB at most
+    public int payloadBytes;
+
+    private KeyPair mix;
+    private Message onion;
+    private AesEncryptionUtil.EncryptedData layer;
+    private byte[] packet;
+    private byte[] work;
+
+    @Setup
+    public void setup() throws Exception {
+        CipherSuite cipherSuite = CipherSuite.fromName(suite);
+        byte[] content = new byte[payloadBytes];
+        Arrays.fill(content, (byte) 'x');
+        mix = cipherSuite.generateKeyPair();
+        Map<String, PublicKey> keys = Map.of(
+                "Mix", mix.getPublic(),
+                "Mix2", cipherSuite.generateKeyPair().getPublic(),
+                "Dest", cipherSuite.generateKeyPair().getPublic());
+        List<String> path = List.of("Mix", "Mix2", "Dest");
+
+        onion = ClientMessageBuilder.buildOnionMessage(content, path, keys, cipherSuite);
+        layer = new AesEncryptionUtil.EncryptedData(onion.getEncryptedPayload(), onion.getIv());
+        packet = SphinxPacket.build(content, path, keys, cipherSuite);
+        work = new byte[packet.length];
+    }
+
+    // layer key, AES-GCM, then the json of the next hop, like the node does it (a new Gson per message included)
+    @Benchmark
+    public ClientMessageBuilder.NextHopPayload peelOnion() throws Exception {
+        byte[] key = onion.getSuite().openLayerKey(onion.getEncryptedSymmetricKeyForThisHop(), mix.getPrivate());
+        byte[] plain = AesEncryptionUtil.decrypt(layer, new SecretKeySpec(key, "AES"));
+        return new GsonBuilder().create().fromJson(new String(plain, StandardCharsets.UTF_8), ClientMessageBuilder.NextHopPayload.class);
+    }
+
+    // peel works in place, so on a fresh copy every time
+    @Benchmark
+    public String peelSphinx() throws Exception {
+        System.arraycopy(packet, 0, work, 0, packet.length);
+        return SphinxPacket.peel(work, mix.getPrivate());
+    }
+}
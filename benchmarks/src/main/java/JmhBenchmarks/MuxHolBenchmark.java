@@ -0,0 +1,79 @@
+package JmhBenchmarks;
+
+import Code.Connection;
+import Code.Message;
+import Code.PeerManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// a bulk message and right behind it a small one on the same socket link: how long the small one takes
+// to arrive, with whole frames and with mux. The bulk one is waited for after each op, untimed
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dmixnet.log.level=warn", "-Dmixnet.transport=socket", "-Dmixnet.loopback=false", "-Dmixnet.codec=binary"})
+public class MuxHolBenchmark {
+
+    private static final int SMALL_BYTES = 64;
+
+    @Param({"false", "true"})
+    public String mux;
+
+    @Param({"4194304"})
+    public int bulkBytes;
+
+    private final Semaphore smallArrived = new Semaphore(0);
+    private final Semaphore bulkArrived = new Semaphore(0);
+    private PeerManager receiver;
+    private PeerManager sender;
+    private Connection link;
+    private String senderId;
+
+    @Setup
+    public void setup() throws Exception {
+        System.setProperty("mixnet.mux", mux);
+        String receiverId = "HolB-" + mux;
+        senderId = "HolA-" + mux;
+        receiver = new PeerManager(0, receiverId) {
+            @Override
+            public void processReceivedMessage(Message message, Connection sender) {
+                (message.getEncryptedPayload().length == SMALL_BYTES ? smallArrived : bulkArrived).release();
+            }
+        };
+        sender = new PeerManager(0, senderId) {
+            @Override
+            public void processReceivedMessage(Message message, Connection sender) {
+            }
+        };
+        receiver.start();
+        sender.start();
+        link = sender.connectToPeer("127.0.0.1", receiver.getListeningPort(), receiverId);
+    }
+
+    @Benchmark
+    public void smallBehindBulk() throws InterruptedException {
+        link.sendMessage(new Message(List.of(senderId), new byte[bulkBytes], new byte[12], new byte[256]));
+        link.sendMessage(new Message(List.of(senderId), new byte[SMALL_BYTES], new byte[12], new byte[256]));
+        if (!smallArrived.tryAcquire(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("small message never arrived");
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void drainBulk() throws InterruptedException {
+        if (!bulkArrived.tryAcquire(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("bulk message never arrived");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.shutdown();
+        receiver.shutdown();
+    }
+}
@@ -0,0 +1,95 @@
+package JmhBenchmarks;
+
+import Code.ClientMessageBuilder;
+import Code.Message;
+import CryptoUtils.CipherSuite;
+import CryptoUtils.LayerKeyPool;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Client side, one whole onion. keys=inline makes every layer key on the calling thread, fanout hands the
+ * hops to a LayerKeyPool with no stock (every take misses and the hops are made on the workers together),
+ * pool takes them from a warm LayerKeyPool. For pool each call first waits, untimed, until the stock is full
+ * again, like a client that is not saturated, so what is measured is the send with a hit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dmixnet.log.level=warn")
+public class OnionBuildBenchmark {
+
+    private static final int STOCK = 32; // ready keys per node for keys=pool
+
+    @Param({"rsa", "x25519"})
+    public String suite;
+
+    @Param({"3", "5", "8"})
+    public int hops;
+
+    @Param({"256", "4096"})
+    public int payloadBytes;
+
+    @Param({"inline", "fanout", "pool"})
+    public String keys;
+
+    private CipherSuite cipherSuite;
+    private byte[] content;
+    private List<String> path;
+    private Map<String, PublicKey> publicKeys;
+    private LayerKeyPool layerKeyPool;
+
+    @Setup
+    public void setup() throws Exception {
+        cipherSuite = CipherSuite.fromName(suite);
+        content = new byte[payloadBytes];
+        Arrays.fill(content, (byte) 'x');
+        path = new ArrayList<>();
+        publicKeys = new HashMap<>();
+        for (int i = 0; i < hops; i++) {
+            path.add("Node" + i);
+            publicKeys.put("Node" + i, cipherSuite.generateKeyPair().getPublic());
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (keys.equals("fanout")) {
+            layerKeyPool = new LayerKeyPool(cipherSuite, 0, threads);
+        } else if (keys.equals("pool")) {
+            layerKeyPool = new LayerKeyPool(cipherSuite, STOCK, threads);
+            layerKeyPool.warm(path, publicKeys);
+        }
+    }
+
+    // per invocation is fine here, a build is tens of micros at the least
+    @Setup(Level.Invocation)
+    public void topUp() throws InterruptedException {
+        if (keys.equals("pool")) {
+            while (layerKeyPool.getReadyCount() < STOCK * hops) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (layerKeyPool != null) {
+            layerKeyPool.shutdown();
+        }
+    }
+
+    @Benchmark
+    public Message buildOnion() throws Exception {
+        if (layerKeyPool == null) {
+            return ClientMessageBuilder.buildOnionMessage(content, path, publicKeys, cipherSuite);
+        }
+        return ClientMessageBuilder.buildOnionMessage(content, path, publicKeys, layerKeyPool);
+    }
+}
@@ -0,0 +1,25 @@
+package JmhBenchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// java -jar benchmarks.jar [jmh options], jmh's own main but with the gc profiler always on,
+// so every ops/s line comes with gc.alloc.rate and gc.alloc.rate.norm (bytes per op)
+public class RunBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        if (cli.shouldHelp()) {
+            cli.showHelp();
+            return;
+        }
+        Runner runner = new Runner(new OptionsBuilder().parent(cli).addProfiler(GCProfiler.class).build());
+        if (cli.shouldList()) {
+            runner.list();
+            return;
+        }
+        runner.run();
+    }
+}
@@ -0,0 +1,74 @@
+package JmhBenchmarks;
+
+import NodesConstruct.TimingWheel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Per message delays the way the poisson mix holds them: everything scheduled, then expired on a virtual
+ * clock in 1 ms steps, so this is pure structure cost. The timing wheel against a PriorityQueue (what the
+ * mix used before). One op is the whole run of `pending` messages, divide by it for per message cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dmixnet.log.level=warn", "-Xmx2g"})
+public class TimingWheelBenchmark {
+
+    private static final long SPAN_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long STEP_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Param({"10000", "100000", "1000000"})
+    public int pending;
+
+    private long[] delays;
+    private final Object item = new Object();
+
+    @Setup
+    public void setup() {
+        Random random = new Random(pending);
+        delays = new long[pending];
+        for (int i = 0; i < pending; i++) {
+            delays[i] = (long) (random.nextDouble() * SPAN_NANOS);
+        }
+    }
+
+    @Benchmark
+    public long wheel() {
+        TimingWheel<Object> wheel = new TimingWheel<>(STEP_NANOS, 256, 4, 0);
+        for (long delay : delays) {
+            wheel.schedule(item, delay);
+        }
+        List<Object> out = new ArrayList<>();
+        long expired = 0;
+        for (long now = 0; !wheel.isEmpty(); now += STEP_NANOS) {
+            out.clear();
+            wheel.advance(now, out);
+            expired += out.size();
+        }
+        return expired;
+    }
+
+    @Benchmark
+    public long priorityQueue() {
+        PriorityQueue<long[]> heap = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+        for (long delay : delays) {
+            heap.add(new long[] {delay});
+        }
+        long expired = 0;
+        for (long now = 0; !heap.isEmpty(); now += STEP_NANOS) {
+            while (!heap.isEmpty() && heap.peek()[0] <= now) {
+                heap.poll();
+                expired++;
+            }
+        }
+        return expired;
+    }
+}
@@ -0,0 +1,201 @@
+package Code;
+
+import CryptoUtils.CipherSuite;
+
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * frame layout (big endian):
+ *   magic(1) version(1) type(1) bodyLength(4) body
+ * onion body:
+ *   hopIndex(4) pathCount(2) [idLength(2) id]... content(4+n) payload(4+n) iv(4+n) key(4+n)
+ * a length of -1 means the field was null
+ * version 2 adds suite(1) right after hopIndex, it is only written for non rsa suites so rsa
+ * traffic stays readable by version 1 nodes
+ * circuit frames (create / data) carry circuitId(8) after that, before pathCount
+ */
+public class BinaryMessageCodec implements MessageCodec {
+
+    public static final byte MAGIC = (byte) 0xB7; // can never start a json line
+    public static final byte VERSION = 1;
+    public static final byte VERSION_WITH_SUITE = 2;
+    public static final int HEADER_BYTES = 7;
+    public static final int MAX_PATH = 0xFFFF; // pathCount and idLength go out as unsigned shorts
+
+    @Override
+    public String getName() {
+        return "binary";
+    }
+
+    @Override
+    public ByteBuffer encode(Message message, ByteBuffer scratch) throws ProtocolException {
+        List<String> path = message.getFullPath();
+        int pathCount = path == null ? 0 : path.size();
+        if (pathCount > MAX_PATH) {
+            throw new ProtocolException("Path of " + pathCount + " nodes does not fit a frame");
+        }
+        byte[][] pathBytes = new byte[pathCount][];
+        boolean withSuite = message.getSuite() != CipherSuite.RSA_OAEP;
+        boolean circuit = message.getType().isCircuit();
+        long bodyLength = 4 + (withSuite ? 1 : 0) + (circuit ? 8 : 0) + 2;
+
+        for (int i = 0; i < pathCount; i++) {
+            pathBytes[i] = path.get(i).getBytes(StandardCharsets.UTF_8);
+            if (pathBytes[i].length > MAX_PATH) {
+                throw new ProtocolException("Node id of " + pathBytes[i].length + " bytes does not fit a frame");
+            }
+            bodyLength += 2 + pathBytes[i].length;
+        }
+
+        byte[] content = message.getContent() == null ? null : message.getContent().getBytes(StandardCharsets.UTF_8);
+        bodyLength += fieldSize(content) + fieldSize(message.getEncryptedPayload())
+                + fieldSize(message.getIv()) + fieldSize(message.getEncryptedSymmetricKeyForThisHop());
+
+        // the reader would drop it anyway, better to say so on this side (long so four big fields can't wrap)
+        if (HEADER_BYTES + bodyLength > FrameReader.MAX_FRAME_BYTES) {
+            throw new ProtocolException("Frame of " + (HEADER_BYTES + bodyLength) + " bytes is over the " + FrameReader.MAX_FRAME_BYTES + " limit");
+        }
+        int frameLength = HEADER_BYTES + (int) bodyLength;
+        ByteBuffer out = (scratch != null && scratch.capacity() >= frameLength) ? scratch : ByteBuffer.allocate(frameLength);
+        out.clear();
+
+        out.put(MAGIC).put(withSuite ? VERSION_WITH_SUITE : VERSION).put(message.getType().getCode()).putInt((int) bodyLength);
+        out.putInt(message.getCurrentHopIndex());
+        if (withSuite) {
+            out.put(message.getSuite().getCode());
+        }
+        if (circuit) {
+            out.putLong(message.getCircuitId());
+        }
+        out.putShort((short) pathCount);
+        for (byte[] id : pathBytes) {
+            out.putShort((short) id.length).put(id);
+        }
+        putField(out, content);
+        putField(out, message.getEncryptedPayload());
+        putField(out, message.getIv());
+        putField(out, message.getEncryptedSymmetricKeyForThisHop());
+
+        out.flip();
+        return out;
+    }
+
+    @Override
+    public Message decode(ByteBuffer in) throws ProtocolException {
+        int start = in.position();
+        if (in.remaining() < HEADER_BYTES) {
+            return null;
+        }
+
+        if (in.get(start) != MAGIC) {
+            throw new ProtocolException("Bad frame magic " + in.get(start));
+        }
+        byte version = in.get(start + 1);
+        if (version != VERSION && version != VERSION_WITH_SUITE) {
+            throw new ProtocolException("Unsupported frame version " + version);
+        }
+
+        MessageType type = MessageType.fromCode(in.get(start + 2));
+        if (type == null) {
+            throw new ProtocolException("Unknown frame type " + in.get(start + 2));
+        }
+
+        int bodyLength = in.getInt(start + 3);
+        if (bodyLength < 0 || bodyLength > FrameReader.MAX_FRAME_BYTES - HEADER_BYTES) {
+            throw new ProtocolException("Bad frame length " + bodyLength);
+        }
+        if (in.remaining() < HEADER_BYTES + bodyLength) {
+            return null;
+        }
+
+        int bodyEnd = start + HEADER_BYTES + bodyLength;
+        int oldLimit = in.limit();
+        in.position(start + HEADER_BYTES);
+        in.limit(bodyEnd);
+
+        try {
+            Message message = new Message(null, (byte[]) null, null, null);
+            message.setType(type);
+            message.setCurrentHopIndex(in.getInt());
+            if (version == VERSION_WITH_SUITE) {
+                byte code = in.get();
+                CipherSuite suite = CipherSuite.fromCode(code);
+                if (suite == null) {
+                    throw new ProtocolException("Unknown cipher suite " + code);
+                }
+                message.setSuite(suite);
+            }
+            if (type.isCircuit()) {
+                message.setCircuitId(in.getLong());
+            }
+
+            int pathCount = in.getShort() & 0xFFFF;
+            List<String> path = new ArrayList<>(pathCount);
+            for (int i = 0; i < pathCount; i++) {
+                int idLength = in.getShort() & 0xFFFF;
+                path.add(readUtf8(in, idLength));
+            }
+            message.setFullPath(path);
+
+            byte[] content = getField(in);
+            message.setContent(content == null ? null : new String(content, StandardCharsets.UTF_8));
+            message.setEncryptedPayload(getField(in));
+            message.setIv(getField(in));
+            message.setEncryptedSymmetricKeyForThisHop(getField(in));
+
+            if (in.hasRemaining()) {
+                throw new ProtocolException("Frame has " + in.remaining() + " trailing bytes");
+            }
+            return message;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new ProtocolException("Truncated frame body of type " + type);
+        } finally {
+            in.limit(oldLimit);
+            in.position(bodyEnd);
+        }
+    }
+
+    private static int fieldSize(byte[] value) {
+        return 4 + (value == null ? 0 : value.length);
+    }
+
+    private static void putField(ByteBuffer out, byte[] value) {
+        if (value == null) {
+            out.putInt(-1);
+        } else {
+            out.putInt(value.length).put(value);
+        }
+    }
+
+    private static byte[] getField(ByteBuffer in) throws ProtocolException {
+        int length = in.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new ProtocolException("Bad field length " + length);
+        }
+        byte[] value = new byte[length];
+        in.get(value);
+        return value;
+    }
+
+    private static String readUtf8(ByteBuffer in, int length) throws ProtocolException {
+        if (length > in.remaining()) {
+            throw new ProtocolException("Bad node id length " + length);
+        }
+        if (in.hasArray()) {
+            String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return value;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,28 +1,66 @@
 package Code;
 
 import CryptoUtils.AesEncryptionUtil;
-import CryptoUtils.RsaEncryptionUtil;
+import CryptoUtils.CipherSuite;
+import CryptoUtils.CryptoEngine;
+import CryptoUtils.LayerKeyPool;
+import CryptoUtils.SphinxPacket;
 import Logs.LogLevel;
 import Logs.Logger;
+import Metrics.MetricsRegistry;
 import com.google.gson.GsonBuilder;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.UnsupportedEncodingException;
-import java.security.InvalidAlgorithmParameterException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.*;
 
 public class ClientMessageBuilder {
 
+    // the innermost plaintext of a create, the destination only needs the session key out of it
+    public static final byte[] CIRCUIT_CREATE_MARKER = "circuit-create".getBytes(StandardCharsets.US_ASCII);
+
+    public static Message buildOnionMessage(byte[] originalMessageBytes, List<String> fullPath,
+                                            Map<String, PublicKey> publicKeyMap) throws GeneralSecurityException, UnsupportedEncodingException {
+        return buildOnionMessage(originalMessageBytes, fullPath, publicKeyMap, CipherSuite.RSA_OAEP);
+    }
+
+    // publicKeyMap has to hold the keys of the given suite
+    public static Message buildOnionMessage(byte[] originalMessageBytes, List<String> fullPath,
+                                            Map<String, PublicKey> publicKeyMap, CipherSuite suite) throws GeneralSecurityException, UnsupportedEncodingException {
+        return buildLayers(originalMessageBytes, fullPath, publicKeyMap, suite, null, null, null);
+    }
+
+    // layer keys come out of the pool (or get made in parallel), only the AES chaining is left for the caller's thread
     public static Message buildOnionMessage(byte[] originalMessageBytes, List<String> fullPath,
-                                            Map<String, PublicKey> publicKeyMap) throws NoSuchAlgorithmException,
-            NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidKeyException,
-            InvalidAlgorithmParameterException, UnsupportedEncodingException {
+                                            Map<String, PublicKey> publicKeyMap, LayerKeyPool layerKeyPool) throws GeneralSecurityException, UnsupportedEncodingException {
+        CipherSuite.LayerKey[] layerKeys = layerKeyPool.take(fullPath, publicKeyMap);
+        return buildLayers(originalMessageBytes, fullPath, publicKeyMap, layerKeyPool.getSuite(), layerKeys, null, null);
+    }
+
+    private static Message buildLayers(byte[] originalMessageBytes, List<String> fullPath, Map<String, PublicKey> publicKeyMap, CipherSuite suite,
+                                       CipherSuite.LayerKey[] layerKeys, long[] circuitIds, SecretKey[] layerKeysOut) throws GeneralSecurityException, UnsupportedEncodingException {
+        long start = System.nanoTime();
+        Message message = layers(originalMessageBytes, fullPath, publicKeyMap, suite, layerKeys, circuitIds, layerKeysOut);
+        recordBuild(circuitIds == null ? "onion" : "circuit-create", fullPath.size(), System.nanoTime() - start);
+        return message;
+    }
+
+    // mixnet_client_build_seconds{kind, hops}, no node label: the builder is shared by every client in the process
+    private static void recordBuild(String kind, int hops, long nanos) {
+        MetricsRegistry.global().histogram("mixnet_client_build_seconds", "Time to build one outgoing packet, by kind and hop count", 1e-9,
+                "kind", kind, "hops", Integer.toString(hops)).record(nanos);
+    }
+
+    // layerKeys / circuitIds / layerKeysOut are indexed like fullPath, layerKeys null means make them here,
+    // the circuit ones are only set for circuit creates
+    private static Message layers(byte[] originalMessageBytes, List<String> fullPath, Map<String, PublicKey> publicKeyMap, CipherSuite suite,
+                                  CipherSuite.LayerKey[] layerKeys, long[] circuitIds, SecretKey[] layerKeysOut) throws GeneralSecurityException, UnsupportedEncodingException {
 
         //import the list or make the same one just reversed
         List<String> encryptionPath = new ArrayList<>(fullPath);
@@ -44,7 +82,12 @@ public class ClientMessageBuilder {
                 throw new InvalidKeyException("Public key not found for node: " + currentNodeId);
             }
 
-            SecretKey aesKeyForThisLayer = AesEncryptionUtil.generateAesKey();
+            int pathIndex = encryptionPath.size() - 1 - i;
+            CipherSuite.LayerKey layerKey = layerKeys != null ? layerKeys[pathIndex] : suite.newLayerKey(currentNodePublicKey);
+            SecretKey aesKeyForThisLayer = new SecretKeySpec(layerKey.getSecret(), "AES");
+            if (layerKeysOut != null) {
+                layerKeysOut[pathIndex] = aesKeyForThisLayer;
+            }
             byte[] plainTextForAes;
 
             if (i == 0) {
@@ -64,9 +107,12 @@ public class ClientMessageBuilder {
                         Base64.getEncoder().encodeToString(currentEncryptedSymmetricKey),
                         nextHopId
                 );
+                if (circuitIds != null) {
+                    nextHopPayload.setNextCircuitId(circuitIds[pathIndex + 1]);
+                }
 
                 String jsonPayload = new GsonBuilder().disableHtmlEscaping().create().toJson(nextHopPayload);
-                Logger.log("JSON plaintext for AES for " + currentNodeId + ": " + jsonPayload, LogLevel.Debug);
+                Logger.log("JSON plaintext for AES for {}: {}", LogLevel.Debug, currentNodeId, jsonPayload);
                 plainTextForAes = jsonPayload.getBytes("UTF-8");
             }
 
@@ -76,19 +122,123 @@ public class ClientMessageBuilder {
             currentEncryptedPayload = encryptedDataForThisLayer.getCiphertext();
             currentIv = encryptedDataForThisLayer.getIv();
 
-            currentEncryptedSymmetricKey =
-                    RsaEncryptionUtil.encrypt(aesKeyForThisLayer.getEncoded(), currentNodePublicKey);
+            currentEncryptedSymmetricKey = layerKey.getKeyBlock();
+
+            Logger.log("Successfully encrypted layer for: {}", LogLevel.Debug, currentNodeId);
+        }
+
+        Message finalMessage = new Message(fullPath, currentEncryptedPayload, currentIv, currentEncryptedSymmetricKey);
+        finalMessage.setSuite(suite);
+        if (circuitIds != null) {
+            finalMessage.setType(MessageType.CIRCUIT_CREATE);
+            finalMessage.setCircuitId(circuitIds[0]);
+        }
+
+        Logger.log("Client: Built onion message {}", LogLevel.Debug, finalMessage);
+        return finalMessage;
+    }
+
+    /*
+     * Circuit mode: one create per path pays the public key work, every hop keeps its layer key as the
+     * session key for the circuit id it was given. Data afterwards is AES only:
+     *   payload = AES-GCM_k1( iv2 | AES-GCM_k2( iv3 | AES-GCM_k3( message ) ) ), iv1 in the iv field
+     * and each hop swaps in the next circuit id and next hop it stored at create time.
+     */
+    public static Circuit buildCircuit(List<String> fullPath, Map<String, PublicKey> publicKeyMap, CipherSuite suite) throws GeneralSecurityException, UnsupportedEncodingException {
+        long[] circuitIds = new long[fullPath.size()];
+        for (int i = 0; i < circuitIds.length; i++) {
+            circuitIds[i] = CryptoEngine.nextLong();
+        }
+        SecretKey[] sessionKeys = new SecretKey[fullPath.size()];
+
+        Message create = buildLayers(CIRCUIT_CREATE_MARKER, fullPath, publicKeyMap, suite, null, circuitIds, sessionKeys);
+        Logger.log("Client: Built circuit " + Long.toHexString(circuitIds[0]) + " over " + fullPath, LogLevel.Info);
+        return new Circuit(fullPath, circuitIds[0], sessionKeys, create);
+    }
+
+    public static Message buildCircuitData(byte[] originalMessageBytes, Circuit circuit) throws GeneralSecurityException {
+        long start = System.nanoTime();
+        SecretKey[] keys = circuit.sessionKeys;
+        int ivBytes = CryptoEngine.GCM_IV_BYTES;
+        byte[] iv = new byte[ivBytes];
+
+        // every layer is encrypted straight in behind a slot for the inner iv, so no concat copies
+        byte[] plainText = originalMessageBytes;
+        for (int i = keys.length - 1; i > 0; i--) {
+            byte[] layer = new byte[ivBytes + CryptoEngine.aesOutputSize(plainText.length)];
+            CryptoEngine.aesEncrypt(ByteBuffer.wrap(plainText), ByteBuffer.wrap(layer, ivBytes, layer.length - ivBytes), keys[i], iv);
+            System.arraycopy(iv, 0, layer, 0, ivBytes);
+            plainText = layer;
+        }
+        byte[] payload = CryptoEngine.aesEncrypt(plainText, 0, plainText.length, keys[0], iv);
 
-            Logger.log("Successfully encrypted layer for: " + currentNodeId, LogLevel.Success);
+        Message message = new Message(List.of(circuit.path.get(0)), payload, iv, null);
+        message.setType(MessageType.CIRCUIT_DATA);
+        message.setCircuitId(circuit.firstCircuitId);
+        circuit.lastUsedNanos = System.nanoTime();
+        recordBuild("circuit-data", keys.length, circuit.lastUsedNanos - start);
+        return message;
+    }
+
+    public static class Circuit {
+        private final List<String> path;
+        private final long firstCircuitId;
+        private final SecretKey[] sessionKeys;
+        private final Message createMessage;
+        private final long createdNanos = System.nanoTime();
+        private volatile long lastUsedNanos = createdNanos;
+
+        Circuit(List<String> path, long firstCircuitId, SecretKey[] sessionKeys, Message createMessage) {
+            this.path = List.copyOf(path);
+            this.firstCircuitId = firstCircuitId;
+            this.sessionKeys = sessionKeys;
+            this.createMessage = createMessage;
         }
 
-        String encodedPayload = Base64.getEncoder().encodeToString(currentEncryptedPayload);
-        String encodedIv = Base64.getEncoder().encodeToString(currentIv);
-        String encodedSymmetricKey = Base64.getEncoder().encodeToString(currentEncryptedSymmetricKey);
+        public List<String> getPath() {
+            return path;
+        }
+
+        public long getFirstCircuitId() {
+            return firstCircuitId;
+        }
+
+        public Message getCreateMessage() {
+            return createMessage;
+        }
+
+        public long getLastUsedNanos() {
+            return lastUsedNanos;
+        }
+    }
+
+    // same path, same keys, but the packet never changes size on the way (see SphinxPacket)
+    public static Message buildSphinxMessage(byte[] originalMessageBytes, List<String> fullPath,
+                                             Map<String, PublicKey> publicKeyMap) throws GeneralSecurityException {
+        return buildSphinxMessage(originalMessageBytes, fullPath, publicKeyMap, CipherSuite.RSA_OAEP);
+    }
+
+    public static Message buildSphinxMessage(byte[] originalMessageBytes, List<String> fullPath,
+                                             Map<String, PublicKey> publicKeyMap, CipherSuite suite) throws GeneralSecurityException {
+        long start = System.nanoTime();
+        return sphinxMessage(SphinxPacket.build(originalMessageBytes, fullPath, publicKeyMap, suite, null), fullPath, suite, start);
+    }
+
+    public static Message buildSphinxMessage(byte[] originalMessageBytes, List<String> fullPath,
+                                             Map<String, PublicKey> publicKeyMap, LayerKeyPool layerKeyPool) throws GeneralSecurityException {
+        CipherSuite.LayerKey[] layerKeys = layerKeyPool.take(fullPath, publicKeyMap);
+        long start = System.nanoTime();
+        return sphinxMessage(SphinxPacket.build(originalMessageBytes, fullPath, publicKeyMap, layerKeyPool.getSuite(), layerKeys), fullPath, layerKeyPool.getSuite(), start);
+    }
 
-        Message finalMessage = new Message(fullPath, encodedPayload, encodedIv, encodedSymmetricKey);
+    private static Message sphinxMessage(byte[] packet, List<String> fullPath, CipherSuite suite, long startNanos) {
+        recordBuild("sphinx", fullPath.size(), System.nanoTime() - startNanos);
+        // only the first hop goes on the outside, every mix rewrites it with what it peeled
+        Message finalMessage = new Message(List.of(fullPath.get(0)), packet, null, null);
+        finalMessage.setType(MessageType.SPHINX);
+        finalMessage.setSuite(suite);
 
-        Logger.log("Client: Built onion message" + finalMessage, LogLevel.Info);
+        Logger.log("Client: Built sphinx packet of {} bytes for {} hops", LogLevel.Debug, packet.length, fullPath.size());
         return finalMessage;
     }
 
@@ -97,6 +247,7 @@ public class ClientMessageBuilder {
         private String nextIvBase64;
         private String nextEncryptedSymmetricKeyBase64;
         private String nextHopId;
+        private Long nextCircuitId; // circuit creates only
 
         public NextHopPayload(String nextEncryptedPayloadBase64, String nextIvBase64,
                               String nextEncryptedSymmetricKeyBase64, String nextHopId) {
@@ -113,5 +264,7 @@ public class ClientMessageBuilder {
         public byte[] getNextIv() { return Base64.getDecoder().decode(nextIvBase64); }
         public byte[] getNextEncryptedSymmetricKey() { return Base64.getDecoder().decode(nextEncryptedSymmetricKeyBase64); }
         public String getNextHopId() { return nextHopId; }
+        public Long getNextCircuitId() { return nextCircuitId; }
+        public void setNextCircuitId(Long nextCircuitId) { this.nextCircuitId = nextCircuitId; }
     }
 }
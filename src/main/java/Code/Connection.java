@@ -0,0 +1,21 @@
+package Code;
+
+// one link to another node, whatever carries it (a Peer thread, an nio channel...)
+public interface Connection {
+
+    String getRemoteAddress();
+
+    String getRemoteNodeId();
+
+    boolean isConnected();
+
+    // queues the message and returns right away, false if the link is down or its queue is full
+    boolean sendMessage(Message message);
+
+    // false between the high and low watermark of the outbound queue, callers should hold off
+    boolean isWritable();
+
+    OutboundQueue getOutboundQueue();
+
+    void shutdownPeer();
+}
@@ -0,0 +1,45 @@
+package Code;
+
+import Logs.LogLevel;
+import Logs.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+// platform (default) or virtual threads for peer handlers, node tasks and the mix dispatcher, set with mixnet.threads
+public enum ExecutionMode {
+    PLATFORM,
+    VIRTUAL;
+
+    private static final ExecutionMode CONFIGURED = fromName(Settings.getString("mixnet.threads", "platform"));
+
+    public static ExecutionMode configured() {
+        return CONFIGURED;
+    }
+
+    public static ExecutionMode fromName(String name) {
+        if ("virtual".equalsIgnoreCase(name)) {
+            return VIRTUAL;
+        }
+        if (!"platform".equalsIgnoreCase(name)) {
+            Logger.log("Unknown thread mode '" + name + "', using platform threads", LogLevel.Warn);
+        }
+        return PLATFORM;
+    }
+
+    // one thread per task, blocking socket io is fine on both
+    public ExecutorService newTaskExecutor(String namePrefix) {
+        if (this == VIRTUAL) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix + "-", 0).factory());
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    public ScheduledExecutorService newScheduler(String namePrefix, int threads) {
+        if (this == VIRTUAL) {
+            return Executors.newScheduledThreadPool(threads, Thread.ofVirtual().name(namePrefix + "-", 0).factory());
+        }
+        return Executors.newScheduledThreadPool(threads);
+    }
+}
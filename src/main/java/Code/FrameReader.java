@@ -0,0 +1,104 @@
+package Code;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+// read side buffer shared by every transport, works the same for blocking streams and channels
+public class FrameReader {
+
+    public static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+    private final int initialCapacity;
+    private ByteBuffer buffer;
+    private MuxReader muxReader; // only once the peer sends mux chunks
+    private int scanned; // bytes of the json line at position already searched for its newline
+
+    public FrameReader(int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.buffer = ByteBuffer.allocate(initialCapacity);
+        this.buffer.flip(); // empty and in read mode
+    }
+
+    // one message out of what is already buffered, null when more bytes are needed
+    public Message nextMessage() throws ProtocolException {
+        while (buffer.hasRemaining()) {
+            if (buffer.get(buffer.position()) != MuxWriter.MAGIC) {
+                return decode();
+            }
+            if (muxReader == null) {
+                muxReader = new MuxReader();
+            }
+            int start = buffer.position();
+            Message message = muxReader.read(buffer);
+            if (message != null || buffer.position() == start) {
+                return message;
+            }
+            // a chunk of a message that is not complete yet, go on with the next one
+        }
+        return null;
+    }
+
+    private Message decode() throws ProtocolException {
+        MessageCodec codec = MessageCodecs.detect(buffer);
+        if (codec != MessageCodecs.JSON) {
+            return codec.decode(buffer);
+        }
+        int from = buffer.position() + scanned;
+        scanned = 0;
+        Message message = ((JsonMessageCodec) codec).decode(buffer, from);
+        if (message == null) {
+            scanned = buffer.remaining();
+        }
+        return message;
+    }
+
+    // blocking read, -1 on end of stream
+    public int readFrom(InputStream in) throws IOException {
+        prepareForWrite();
+        int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (read > 0) {
+            buffer.position(buffer.position() + read);
+        }
+        buffer.flip();
+        return read;
+    }
+
+    // non blocking read, can return 0
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        prepareForWrite();
+        int read = channel.read(buffer);
+        buffer.flip();
+        return read;
+    }
+
+    public int buffered() {
+        return buffer.remaining();
+    }
+
+    // drops a buffer that grew for one big frame once it is drained, keeps idle connections small
+    public void shrinkIfIdle() {
+        if (!buffer.hasRemaining() && buffer.capacity() > initialCapacity) {
+            buffer = ByteBuffer.allocate(initialCapacity);
+            buffer.flip();
+        }
+    }
+
+    private void prepareForWrite() throws ProtocolException {
+        buffer.compact();
+        if (buffer.hasRemaining()) {
+            return;
+        }
+
+        // a single frame fills the whole buffer, grow it
+        if (buffer.capacity() >= MAX_FRAME_BYTES) {
+            throw new ProtocolException("Frame bigger than " + MAX_FRAME_BYTES + " bytes");
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, MAX_FRAME_BYTES));
+        buffer.flip();
+        bigger.put(buffer);
+        buffer = bigger;
+    }
+}
@@ -0,0 +1,113 @@
+package Code;
+
+import Logs.LogLevel;
+import Logs.Logger;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// closed while the node can't take more work: socket peers wait before their next read, nio drops OP_READ
+// several stages can hold it closed at once (the mix pool, the crypto queue...), it opens when the last one lets go
+public class IngressGate {
+
+    public interface Listener {
+        void onIngressChanged(boolean open);
+    }
+
+    private final String nodeIdentifier;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition opened = lock.newCondition();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Set<String> closedBy = new HashSet<>();
+    private volatile boolean open = true;
+    private long closedAt;
+
+    private final LongAdder closings = new LongAdder();
+    private final LongAdder closedNanos = new LongAdder();
+
+    public IngressGate(String nodeIdentifier) {
+        this.nodeIdentifier = nodeIdentifier;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public void close(String source, String reason) {
+        lock.lock();
+        try {
+            if (!closedBy.add(source) || !open) {
+                return;
+            }
+            open = false;
+            closedAt = System.nanoTime();
+            closings.increment();
+        } finally {
+            lock.unlock();
+        }
+        Logger.log("Node " + nodeIdentifier + " stopped reading from peers, " + source + ": " + reason, LogLevel.Warn);
+        notifyListeners(false);
+    }
+
+    public void open(String source) {
+        lock.lock();
+        try {
+            if (!closedBy.remove(source) || !closedBy.isEmpty()) {
+                return;
+            }
+            open = true;
+            closedNanos.add(System.nanoTime() - closedAt);
+            opened.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        Logger.log("Node " + nodeIdentifier + " is reading from peers again", LogLevel.Info);
+        notifyListeners(true);
+    }
+
+    public boolean isClosedBy(String source) {
+        lock.lock();
+        try {
+            return closedBy.contains(source);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void awaitOpen() throws InterruptedException {
+        if (open) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (!open) {
+                opened.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getClosedCount() {
+        return closings.sum();
+    }
+
+    public double getClosedMillis() {
+        return closedNanos.sum() / 1_000_000.0;
+    }
+
+    private void notifyListeners(boolean nowOpen) {
+        for (Listener listener : listeners) {
+            listener.onIngressChanged(nowOpen);
+        }
+    }
+}
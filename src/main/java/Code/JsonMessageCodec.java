@@ -0,0 +1,198 @@
+package Code;
+
+import CryptoUtils.CipherSuite;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+// the original wire format: one gson object per line, byte fields as base64
+public class JsonMessageCodec implements MessageCodec {
+
+    private static final byte NEWLINE = '\n';
+
+    private final Gson gson = new GsonBuilder()
+            .disableHtmlEscaping()
+            .registerTypeAdapter(Message.class, new MessageAdapter())
+            .create();
+
+    @Override
+    public String getName() {
+        return "json";
+    }
+
+    @Override
+    public ByteBuffer encode(Message message, ByteBuffer scratch) {
+        byte[] json = gson.toJson(message).getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer out = (scratch != null && scratch.capacity() >= json.length + 1) ? scratch : ByteBuffer.allocate(json.length + 1);
+        out.clear();
+        out.put(json).put(NEWLINE);
+        out.flip();
+        return out;
+    }
+
+    @Override
+    public Message decode(ByteBuffer in) throws ProtocolException {
+        return decode(in, in.position());
+    }
+
+    // scanFrom: up to there the caller already knows there is no newline, a line still arriving over many
+    // reads is then looked at once and not again on every read
+    Message decode(ByteBuffer in, int scanFrom) throws ProtocolException {
+        while (true) {
+            int start = in.position();
+            int end = indexOfNewline(in, Math.max(start, scanFrom));
+            if (end < 0) {
+                return null;
+            }
+
+            int length = end - start;
+            in.position(end + 1);
+            if (isBlank(in, start, length)) {
+                continue; // readLine used to hand us empty lines, just skip them
+            }
+
+            String json = readUtf8(in, start, length);
+            try {
+                Message message = gson.fromJson(json, Message.class);
+                if (message == null) {
+                    throw new ProtocolException("Empty json message");
+                }
+                return message;
+            } catch (JsonParseException | IllegalArgumentException e) {
+                throw new ProtocolException("Malformed json message: " + e.getMessage());
+            }
+        }
+    }
+
+    private static int indexOfNewline(ByteBuffer in, int from) {
+        for (int i = from; i < in.limit(); i++) {
+            if (in.get(i) == NEWLINE) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isBlank(ByteBuffer in, int start, int length) {
+        for (int i = start; i < start + length; i++) {
+            byte b = in.get(i);
+            if (b != ' ' && b != '\r' && b != '\t') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String readUtf8(ByteBuffer in, int start, int length) {
+        if (in.hasArray()) {
+            return new String(in.array(), in.arrayOffset() + start, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        in.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // keeps the exact field names the reflective gson mapping used to produce
+    private static class MessageAdapter extends TypeAdapter<Message> {
+
+        @Override
+        public void write(JsonWriter out, Message message) throws IOException {
+            out.beginObject();
+            if (message.getContent() != null) {
+                out.name("content").value(message.getContent());
+            }
+            if (message.getFullPath() != null) {
+                out.name("fullPath").beginArray();
+                for (String hop : message.getFullPath()) {
+                    out.value(hop);
+                }
+                out.endArray();
+            }
+            out.name("currentHopIndex").value(message.getCurrentHopIndex());
+            out.name("type").value(message.getType().name());
+            if (message.getSuite() != CipherSuite.RSA_OAEP) {
+                out.name("suite").value(message.getSuite().name()); // left out for rsa, like before suites existed
+            }
+            if (message.getType().isCircuit()) {
+                out.name("circuitId").value(message.getCircuitId());
+            }
+            writeBytes(out, "encryptedPayloadBase64", message.getEncryptedPayload());
+            writeBytes(out, "ivBase64", message.getIv());
+            writeBytes(out, "encryptedSymmetricKeyForThisHopBase64", message.getEncryptedSymmetricKeyForThisHop());
+            out.endObject();
+        }
+
+        @Override
+        public Message read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            Message message = new Message(null, (byte[]) null, null, null);
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "content" -> message.setContent(in.nextString());
+                    case "fullPath" -> {
+                        List<String> path = new ArrayList<>();
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            path.add(in.nextString());
+                        }
+                        in.endArray();
+                        message.setFullPath(path);
+                    }
+                    case "currentHopIndex" -> message.setCurrentHopIndex(in.nextInt());
+                    case "circuitId" -> message.setCircuitId(in.nextLong());
+                    case "type" -> {
+                        String type = in.nextString();
+                        try {
+                            message.setType(MessageType.valueOf(type));
+                        } catch (IllegalArgumentException e) {
+                            throw new JsonParseException("Unknown message type " + type);
+                        }
+                    }
+                    case "suite" -> {
+                        String suite = in.nextString();
+                        try {
+                            message.setSuite(CipherSuite.valueOf(suite));
+                        } catch (IllegalArgumentException e) {
+                            throw new JsonParseException("Unknown cipher suite " + suite);
+                        }
+                    }
+                    case "encryptedPayloadBase64" -> message.setEncryptedPayload(Base64.getDecoder().decode(in.nextString()));
+                    case "ivBase64" -> message.setIv(Base64.getDecoder().decode(in.nextString()));
+                    case "encryptedSymmetricKeyForThisHopBase64" -> message.setEncryptedSymmetricKeyForThisHop(Base64.getDecoder().decode(in.nextString()));
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return message;
+        }
+
+        private static void writeBytes(JsonWriter out, String name, byte[] value) throws IOException {
+            if (value != null) {
+                out.name(name).value(Base64.getEncoder().encodeToString(value));
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package Code;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * The outbound links to one node, up to maxLinks of them. Sends go to the live link with the shortest
+ * queue. At most one connect per node is in flight: whoever starts it owns it, everyone else that needs
+ * a link waits on the same future instead of opening a socket of their own.
+ *
+ * More than one link means messages to that node can overtake each other, the mix shuffles anyway and
+ * circuits already cope with data that beats its create.
+ */
+public class LinkPool {
+
+    private final String remoteNodeId;
+    private final int maxLinks;
+    private final List<Connection> links = new CopyOnWriteArrayList<>();
+    private final AtomicReference<CompletableFuture<Connection>> connecting = new AtomicReference<>();
+    private final AtomicInteger nextLink = new AtomicInteger();
+
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder failedConnects = new LongAdder();
+    private final LongAdder joinedConnects = new LongAdder();
+
+    public LinkPool(String remoteNodeId, int maxLinks) {
+        if (maxLinks < 1) {
+            throw new IllegalArgumentException("Need at least one link per peer, got " + maxLinks);
+        }
+        this.remoteNodeId = remoteNodeId;
+        this.maxLinks = maxLinks;
+    }
+
+    public String getRemoteNodeId() {
+        return remoteNodeId;
+    }
+
+    // the live link with the least queued, null when there is none; dead ones are dropped on the way
+    public Connection pick() {
+        Connection[] snapshot = links.toArray(new Connection[0]);
+        Connection best = null;
+        int bestDepth = Integer.MAX_VALUE;
+        int start = snapshot.length == 0 ? 0 : Math.floorMod(nextLink.getAndIncrement(), snapshot.length); // spreads the ties
+        for (int i = 0; i < snapshot.length; i++) {
+            Connection link = snapshot[(start + i) % snapshot.length];
+            if (!link.isConnected()) {
+                links.remove(link);
+                continue;
+            }
+            int depth = link.getOutboundQueue().getDepth();
+            if (depth < bestDepth) {
+                best = link;
+                bestDepth = depth;
+            }
+        }
+        return best;
+    }
+
+    // the best link already has a backlog and there is room for another: lead() for growing the pool
+    public CompletableFuture<Connection> leadAnother(Connection picked) {
+        if (links.size() >= maxLinks || picked.getOutboundQueue().getDepth() == 0) {
+            return null;
+        }
+        CompletableFuture<Connection> future = lead();
+        // a connect that finished between the check and the lead may have taken the last spot
+        if (future != null && links.size() >= maxLinks) {
+            connecting.compareAndSet(future, null);
+            future.complete(picked); // anyone who joined it in the meantime gets a link all the same
+            return null;
+        }
+        return future;
+    }
+
+    // non null means the caller owns the connect and has to finish() it
+    public CompletableFuture<Connection> lead() {
+        CompletableFuture<Connection> future = new CompletableFuture<>();
+        return connecting.compareAndSet(null, future) ? future : null;
+    }
+
+    // the connect someone else is running, null if there is none right now
+    public CompletableFuture<Connection> join() {
+        CompletableFuture<Connection> future = connecting.get();
+        if (future != null) {
+            joinedConnects.increment();
+        }
+        return future;
+    }
+
+    // the link goes in before the future clears, a caller that sees no connect running sees the link
+    public void finish(CompletableFuture<Connection> future, Connection link, Throwable failure) {
+        if (link != null) {
+            links.add(link);
+            connects.increment();
+        } else {
+            failedConnects.increment();
+        }
+        connecting.compareAndSet(future, null);
+        if (link != null) {
+            future.complete(link);
+        } else {
+            future.completeExceptionally(failure);
+        }
+    }
+
+    public boolean remove(Connection link) {
+        return links.remove(link);
+    }
+
+    public List<Connection> getLinks() {
+        return links;
+    }
+
+    public int getDepth() {
+        int depth = 0;
+        for (Connection link : links) {
+            depth += link.getOutboundQueue().getDepth();
+        }
+        return depth;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("links=%d/%d depth=%d connects=%d failed=%d joined=%d",
+                links.size(), maxLinks, getDepth(), connects.sum(), failedConnects.sum(), joinedConnects.sum());
+    }
+}
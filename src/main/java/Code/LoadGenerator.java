@@ -0,0 +1,180 @@
+package Code;
+
+import Logs.LogLevel;
+import Logs.Logger;
+import Metrics.Counter;
+import Metrics.Histogram;
+import Metrics.MetricsRegistry;
+import NodesConstruct.ClientNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Open loop traffic from a ClientNode, in place of UserInput when mixnet.load=true. Every simulated sender
+ * has its own timetable at rate / senders (even gaps or poisson ones) and sends when the timetable says,
+ * not when the previous send came back. Each message carries the time it was meant to leave (LoadProbe),
+ * the destination measures its latency from there, so a sender that fell behind on a slow first hop or a
+ * gc pause shows up as latency instead of as fewer, nicer looking samples (coordinated omission). The
+ * destination prints those percentiles, this side prints what it sent and how far behind it ran.
+ *
+ *   mixnet.load.rate            messages per second over all senders (default 50)
+ *   mixnet.load.senders         simulated senders, one thread each (default 4)
+ *   mixnet.load.duration.s      how long to send (default 60)
+ *   mixnet.load.arrival         poisson (default) or fixed gaps
+ *   mixnet.load.destinations    comma separated, one picked at random per message (default BobDestination)
+ *   mixnet.load.mixes           comma separated (default MixNode_Alpha,MixNode_Beta,MixNode_Gamma)
+ *   mixnet.load.hops            0 (default) sends through all the mixes in order, n picks n of them at random per message
+ *   mixnet.load.payload.min/max message size in bytes, uniform in between (default 256 and 256)
+ *   mixnet.load.delay.ms        wait before the first send, for the node and its peers to come up (default 2000)
+ *   mixnet.load.report.s        progress line every so often (default 5)
+ */
+public class LoadGenerator implements Runnable {
+
+    private final ClientNode clientNode;
+    private final double rate = Settings.getDouble("mixnet.load.rate", 50);
+    private final int senders = Math.max(1, Settings.getInt("mixnet.load.senders", 4));
+    private final long durationNanos = TimeUnit.SECONDS.toNanos(Settings.getLong("mixnet.load.duration.s", 60));
+    private final boolean poisson = !"fixed".equalsIgnoreCase(Settings.getString("mixnet.load.arrival", "poisson"));
+    private final List<String> destinations;
+    private final List<String> mixes;
+    private final int hops = Settings.getInt("mixnet.load.hops", 0);
+    private final int minPayload = Settings.getInt("mixnet.load.payload.min", 256);
+    private final int maxPayload = Math.max(minPayload, Settings.getInt("mixnet.load.payload.max", minPayload));
+    private final long startDelayMillis = Settings.getLong("mixnet.load.delay.ms", 2000);
+    private final long reportNanos = TimeUnit.SECONDS.toNanos(Math.max(1, Settings.getLong("mixnet.load.report.s", 5)));
+
+    private final Map<String, AtomicLong> sequences = new ConcurrentHashMap<>(); // per destination
+    private final Counter sent;
+    private final Counter failed;
+    private final Histogram behindSchedule; // nanos between when a send was due and when it started
+    private volatile boolean running = true;
+
+    public LoadGenerator(ClientNode clientNode) {
+        this(clientNode, list(Settings.getString("mixnet.load.destinations", "BobDestination")),
+                list(Settings.getString("mixnet.load.mixes", "MixNode_Alpha,MixNode_Beta,MixNode_Gamma")));
+    }
+
+    // for a network whose node ids are not the docker ones (LocalNetwork), the other knobs still come from settings
+    public LoadGenerator(ClientNode clientNode, List<String> destinations, List<String> mixes) {
+        this.clientNode = clientNode;
+        this.destinations = List.copyOf(destinations);
+        this.mixes = List.copyOf(mixes);
+        MetricsRegistry metrics = MetricsRegistry.global();
+        String node = clientNode.getNodeID();
+        this.sent = metrics.counter("mixnet_load_sent_messages_total", "Load generator sends, by result", "node", node, "result", "sent");
+        this.failed = metrics.counter("mixnet_load_sent_messages_total", "Load generator sends, by result", "node", node, "result", "failed");
+        this.behindSchedule = metrics.histogram("mixnet_load_send_lag_seconds", "How late the load generator started a send against its timetable", 1e-9, "node", node);
+    }
+
+    @Override
+    public void run() {
+        if (destinations.isEmpty() || rate <= 0) {
+            Logger.log("Load: nothing to do, rate " + rate + " to " + destinations, LogLevel.Error);
+            return;
+        }
+        Logger.log("Load: " + rate + " msg/s from " + senders + " senders for " + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + "s, "
+                + (poisson ? "poisson" : "fixed") + " arrivals, " + minPayload + "-" + maxPayload + " bytes, to " + destinations
+                + " over " + (hops > 0 ? hops + " random of " + mixes : mixes), LogLevel.Status);
+        try {
+            Thread.sleep(startDelayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        ExecutorService executor = ExecutionMode.configured().newTaskExecutor("LoadSender");
+        CountDownLatch done = new CountDownLatch(senders);
+        long startNanos = System.nanoTime();
+        long startMicros = LoadProbe.epochMicros();
+        double gapNanos = 1e9 * senders / rate;
+        for (int i = 0; i < senders; i++) {
+            // spread the first sends over one gap so the senders do not start in lockstep
+            long firstNanos = startNanos + (long) (gapNanos * i / senders);
+            executor.submit(() -> {
+                try {
+                    runSender(firstNanos, gapNanos, startNanos, startMicros);
+                } catch (RuntimeException e) {
+                    Logger.log("Load: sender failed: " + e, LogLevel.Error);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        try {
+            while (!done.await(reportNanos, TimeUnit.NANOSECONDS)) {
+                report("Load", startNanos);
+            }
+        } catch (InterruptedException e) {
+            running = false;
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdown();
+        report("Load finished", startNanos);
+    }
+
+    private void runSender(long firstNanos, double gapNanos, long startNanos, long startMicros) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long endNanos = startNanos + durationNanos;
+        long intended = firstNanos;
+        while (running && intended < endNanos) {
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            behindSchedule.record(System.nanoTime() - intended);
+
+            String destination = destinations.get(random.nextInt(destinations.size()));
+            long sequence = sequences.computeIfAbsent(destination, key -> new AtomicLong()).getAndIncrement();
+            long intendedMicros = startMicros + (intended - startNanos) / 1_000;
+            int payloadBytes = minPayload == maxPayload ? minPayload : random.nextInt(minPayload, maxPayload + 1);
+            String content = new LoadProbe(clientNode.getNodeID(), sequence, intendedMicros).encode(payloadBytes);
+
+            if (clientNode.sendUserMessage(content, destination, pickMixes(random))) {
+                sent.increment();
+            } else {
+                failed.increment();
+            }
+
+            // late sends are not skipped: the next one is due when it was always due
+            intended += poisson ? (long) (-Math.log(1 - random.nextDouble()) * gapNanos) : (long) gapNanos;
+        }
+    }
+
+    private List<String> pickMixes(ThreadLocalRandom random) {
+        if (hops <= 0 || hops >= mixes.size()) {
+            return mixes;
+        }
+        List<String> shuffled = new ArrayList<>(mixes);
+        for (int i = 0; i < hops; i++) {
+            int j = random.nextInt(i, shuffled.size());
+            shuffled.set(j, shuffled.set(i, shuffled.get(j)));
+        }
+        return shuffled.subList(0, hops);
+    }
+
+    private void report(String title, long startNanos) {
+        double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+        Logger.log(String.format("%s: sent %d (%.1f msg/s), failed %d, behind schedule p50 %.2f ms p99 %.2f ms max %.2f ms",
+                title, sent.get(), sent.get() / seconds, failed.get(),
+                behindSchedule.quantile(0.5) / 1e6, behindSchedule.quantile(0.99) / 1e6, behindSchedule.getMax() / 1e6), LogLevel.Status);
+    }
+
+    public void shutdown() {
+        running = false;
+    }
+
+    private static List<String> list(String value) {
+        return Arrays.stream(value.split(",")).map(String::trim).filter(s -> !s.isEmpty()).toList();
+    }
+}
@@ -0,0 +1,63 @@
+package Code;
+
+import java.time.Instant;
+
+// the text a LoadGenerator message carries: load|<client>|<seq>|<intended send, epoch micros>|padding
+// seq counts per client and destination, so the destination can tell how many it has not seen
+public class LoadProbe {
+
+    public static final String MARKER = "load|";
+
+    private final String clientId;
+    private final long sequence;
+    private final long intendedMicros;
+
+    public LoadProbe(String clientId, long sequence, long intendedMicros) {
+        this.clientId = clientId;
+        this.sequence = sequence;
+        this.intendedMicros = intendedMicros;
+    }
+
+    public String encode(int totalChars) {
+        StringBuilder sb = new StringBuilder(Math.max(totalChars, 64));
+        sb.append(MARKER).append(clientId).append('|').append(sequence).append('|').append(intendedMicros).append('|');
+        while (sb.length() < totalChars) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    // null for anything that is not a probe, ordinary messages go through the normal path
+    public static LoadProbe parse(String content) {
+        if (content == null || !content.startsWith(MARKER)) {
+            return null;
+        }
+        String[] parts = content.split("\\|", 5);
+        if (parts.length < 4) {
+            return null;
+        }
+        try {
+            return new LoadProbe(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // wall clock, the two ends are different processes (same host, or the clocks had better agree)
+    public static long epochMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000L + now.getNano() / 1_000;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getIntendedMicros() {
+        return intendedMicros;
+    }
+}
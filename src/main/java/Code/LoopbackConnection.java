@@ -0,0 +1,186 @@
+package Code;
+
+import Logs.LogLevel;
+import Logs.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * One direction of an in process link. The sender's messages go on the same bounded OutboundQueue a socket
+ * link has (so the watermarks and stats work the same), and a delivery task on the runtime executor hands
+ * them to the receiving node while its ingress gate is open; at most one such task per link, so the
+ * receiver sees them in order. The Message object itself is handed over: once sendMessage returned true
+ * the sender must not touch it, which the queued network writers already needed.
+ */
+public class LoopbackConnection implements Connection {
+
+    private static final int MAX_MESSAGES_PER_DELIVERY = 64;
+
+    private final LoopbackTransport from;
+    private final LoopbackTransport to;
+    private final String remoteNodeId;
+    private final Executor executor;
+    private final OutboundQueue outboundQueue = new OutboundQueue();
+    private final AtomicBoolean delivering = new AtomicBoolean();
+    private final ReceivingEnd receivingEnd = new ReceivingEnd();
+    private volatile boolean connected = true;
+
+    LoopbackConnection(LoopbackTransport from, LoopbackTransport to, Executor executor) {
+        this.from = from;
+        this.to = to;
+        this.remoteNodeId = to.getPeerManager().nodeIdentifier;
+        this.executor = executor;
+        outboundQueue.setWritabilityListener(writable -> from.getPeerManager().onWritabilityChanged(this, writable));
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return "loopback:" + remoteNodeId;
+    }
+
+    @Override
+    public String getRemoteNodeId() {
+        return remoteNodeId;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public boolean sendMessage(Message message) {
+        if (!connected) {
+            Logger.log("Attempted to send msg to disc peer" + remoteNodeId, LogLevel.Info);
+            return false;
+        }
+        if (!outboundQueue.offer(message)) {
+            if (outboundQueue.isClosed()) {
+                Logger.log("Attempted to send msg to disc peer" + remoteNodeId, LogLevel.Info);
+            } else {
+                Logger.log("Outbound queue to " + remoteNodeId + " is full (" + outboundQueue.getCapacity() + "), message rejected", LogLevel.Warn);
+            }
+            return false;
+        }
+        scheduleDelivery();
+        return true;
+    }
+
+    // from a send, or from the receiver's gate opening again
+    void scheduleDelivery() {
+        if (!connected || outboundQueue.getDepth() == 0 || !delivering.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(this::deliver);
+        } catch (RejectedExecutionException e) {
+            delivering.set(false); // runtime is shutting down
+        }
+    }
+
+    private void deliver() {
+        PeerManager receiver = to.getPeerManager();
+        List<Message> batch = new ArrayList<>(MAX_MESSAGES_PER_DELIVERY);
+        try {
+            while (connected && receiver.getIngressGate().isOpen() && outboundQueue.drainTo(batch, MAX_MESSAGES_PER_DELIVERY) > 0) {
+                for (Message message : batch) {
+                    try {
+                        receiver.processReceivedMessage(message, receivingEnd);
+                    } catch (RuntimeException e) {
+                        Logger.log("Loopback delivery to " + remoteNodeId + " failed: " + e.getMessage(), LogLevel.Error);
+                    }
+                }
+                outboundQueue.recordFlush(batch.size(), 0);
+                from.getPeerManager().getTransportMetrics().recordWritten(batch.size(), 0);
+                receiver.getTransportMetrics().recordHandedOver(batch.size());
+                batch.clear();
+            }
+        } finally {
+            delivering.set(false);
+        }
+        // a send that came in after the last drain saw delivering still set
+        if (receiver.getIngressGate().isOpen()) {
+            scheduleDelivery();
+        }
+    }
+
+    @Override
+    public boolean isWritable() {
+        return outboundQueue.isWritable();
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    @Override
+    public void shutdownPeer() {
+        if (!connected) {
+            return;
+        }
+        connected = false;
+        from.forget(this, to);
+        from.getPeerManager().removePeer(remoteNodeId, this);
+        from.getPeerManager().onUndelivered(this, outboundQueue.close());
+    }
+
+    // what the receiving node is handed as the sender, replies open a link the other way
+    private class ReceivingEnd implements Connection {
+
+        private volatile LoopbackConnection back;
+
+        private LoopbackConnection back() {
+            LoopbackConnection link = back;
+            if (link == null || !link.isConnected()) {
+                synchronized (this) {
+                    link = back;
+                    if (link == null || !link.isConnected()) {
+                        link = to.open(from);
+                        back = link;
+                    }
+                }
+            }
+            return link;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "loopback:" + from.getPeerManager().nodeIdentifier;
+        }
+
+        @Override
+        public String getRemoteNodeId() {
+            return from.getPeerManager().nodeIdentifier;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public boolean sendMessage(Message message) {
+            return connected && back().sendMessage(message);
+        }
+
+        @Override
+        public boolean isWritable() {
+            return back().isWritable();
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return back().getOutboundQueue();
+        }
+
+        @Override
+        public void shutdownPeer() {
+            LoopbackConnection.this.shutdownPeer();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package Code;
+
+import Logs.LogLevel;
+import Logs.Logger;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * In process links between nodes hosted by the same JVM. Every node binds its id here on start; a connect
+ * to a node that is bound gets a LoopbackConnection that hands the Message object straight to the other
+ * node, no socket, no codec. Anything else goes to the network transport underneath, so a process hosting
+ * some of the path uses loopback for the hops it has and tcp for the rest.
+ *
+ * mixnet.transport=loopback has no network transport at all (everything must be in this process),
+ * otherwise it sits over socket/nio unless mixnet.loopback=false.
+ */
+public class LoopbackTransport implements Transport {
+
+    private static final Map<String, LoopbackTransport> bound = new ConcurrentHashMap<>();
+
+    private final int listeningPort;
+    private final PeerManager peerManager;
+    private final Transport network; // null when loopback is all there is
+    private final Set<LoopbackConnection> outbound = ConcurrentHashMap.newKeySet();
+    private final Set<LoopbackConnection> inbound = ConcurrentHashMap.newKeySet();
+
+    public LoopbackTransport(int listeningPort, PeerManager peerManager, Transport network) {
+        this.listeningPort = listeningPort;
+        this.peerManager = peerManager;
+        this.network = network;
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (network != null) {
+            network.start();
+        }
+        // links into this node pause while its gate is closed, same as a socket nobody reads
+        peerManager.getIngressGate().addListener(open -> {
+            if (open) {
+                for (LoopbackConnection connection : inbound) {
+                    connection.scheduleDelivery();
+                }
+            }
+        });
+
+        LoopbackTransport previous = bound.putIfAbsent(peerManager.nodeIdentifier, this);
+        if (previous != null) {
+            Logger.log("Another " + peerManager.nodeIdentifier + " is already bound in this process, this one only gets network links", LogLevel.Warn);
+        } else {
+            Logger.log("Bound " + peerManager.nodeIdentifier + " for in process links" + (network == null ? ", no network transport" : ""), LogLevel.Info);
+        }
+    }
+
+    @Override
+    public int getLocalPort() {
+        return network == null ? listeningPort : network.getLocalPort();
+    }
+
+    @Override
+    public Connection connect(String host, int port, String remoteNodeId, int timeoutMillis) throws IOException {
+        LoopbackTransport target = bound.get(remoteNodeId);
+        if (target != null) {
+            return open(target);
+        }
+        if (network == null) {
+            throw new IOException("Node " + remoteNodeId + " is not in this process and there is no network transport");
+        }
+        return network.connect(host, port, remoteNodeId, timeoutMillis);
+    }
+
+    LoopbackConnection open(LoopbackTransport target) {
+        LoopbackConnection connection = new LoopbackConnection(this, target, peerManager.getRuntime().getTaskExecutor());
+        outbound.add(connection);
+        target.inbound.add(connection);
+        return connection;
+    }
+
+    void forget(LoopbackConnection connection, LoopbackTransport target) {
+        outbound.remove(connection);
+        target.inbound.remove(connection);
+    }
+
+    PeerManager getPeerManager() {
+        return peerManager;
+    }
+
+    @Override
+    public void shutdown() {
+        bound.remove(peerManager.nodeIdentifier, this);
+        // both directions, a sender must not keep handing messages to a node that is gone
+        for (LoopbackConnection connection : outbound) {
+            connection.shutdownPeer();
+        }
+        for (LoopbackConnection connection : inbound) {
+            connection.shutdownPeer();
+        }
+        outbound.clear();
+        inbound.clear();
+        if (network != null) {
+            network.shutdown();
+        }
+    }
+}
@@ -6,10 +6,11 @@ import Logs.Logger;
 import NodesConstruct.*;
 
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class Main {
@@ -31,8 +32,8 @@ public class Main {
         Logger.log("Starting Mixnet Nodes...", LogLevel.Info);
 
         if (args.length < 1) {
-            System.err.println("Usage: java -jar target/Peer2Peer-1.0-SNAPSHOT.jar <command> [node_id]");
-            System.err.println("Commands: GenerateKeys | Client <node_id> | Mix <node_ids> | Destination <node_id>");
+            System.err.println("Usage: java -jar target/Peer2Peer-1.0-SNAPSHOT.jar <command> [node_id...]");
+            System.err.println("Commands: GenerateKeys | Client <node_id> | Mix <node_id>... | Destination <node_id>...");
             System.exit(1);
         }
 
@@ -58,55 +59,76 @@ public class Main {
         }
 
         String nodeType = command;
-        String nodeID = args[1];
-
-        NodeConfig thisNodeConfig = allNetworkNodes.get(nodeID);
-        if (thisNodeConfig == null) {
-            Logger.log("Error: Node ID '" + nodeID + "' not found in known network configurations.", LogLevel.Error);
+        // mixes and destinations can share one process, they all run on the same NodeRuntime
+        List<String> nodeIDs = List.of(args).subList(1, args.length);
+        if ("client".equalsIgnoreCase(nodeType) && nodeIDs.size() > 1) {
+            Logger.log("Error: one client per process, it reads the console.", LogLevel.Error);
             System.exit(1);
         }
 
-        AbstractNode currentNode = null;
+        List<NodeConfig> nodeConfigs = new ArrayList<>();
+        for (String nodeID : nodeIDs) {
+            NodeConfig thisNodeConfig = allNetworkNodes.get(nodeID);
+            if (thisNodeConfig == null) {
+                Logger.log("Error: Node ID '" + nodeID + "' not found in known network configurations.", LogLevel.Error);
+                System.exit(1);
+            }
+            nodeConfigs.add(thisNodeConfig);
+        }
+
+        List<AbstractNode> nodes = new ArrayList<>();
         UserInput userInput = null;
-        ExecutorService executor = Executors.newCachedThreadPool();
+        LoadGenerator loadGenerator = null;
+        ExecutorService executor = ExecutionMode.configured().newTaskExecutor("Node");
 
         try {
-            NodeKeyRegistry.loadKeysFromFile(nodeID, KEYS_DIR);
-            Logger.log("Successfully loaded keys for " + nodeID, LogLevel.Info);
-
-            switch (nodeType.toLowerCase()) {
-                case "client":
-                    currentNode = new ClientNode(thisNodeConfig.getId(), thisNodeConfig.getPort(), allNetworkNodes);
-
-                    userInput = new UserInput((ClientNode) currentNode);
-                    executor.submit(userInput);
-                    break;
-                case "mix":
-                    currentNode = new MixNode(thisNodeConfig.getId(), thisNodeConfig.getPort(), allNetworkNodes);
-                    break;
-                case "destination":
-                    currentNode = new DestinationNode(thisNodeConfig.getId(), thisNodeConfig.getPort(), allNetworkNodes);
-                    break;
-                default:
-                    Logger.log("Invalid node type: " + nodeType, LogLevel.Error);
-                    System.exit(1);
-            }
-
-            final AbstractNode finalCurrentNode = currentNode;
+            NodeKeyRegistry.loadKeysFromFile(nodeIDs, KEYS_DIR);
+            Logger.log("Successfully loaded keys for " + nodeIDs, LogLevel.Info);
+
+            for (NodeConfig thisNodeConfig : nodeConfigs) {
+                AbstractNode currentNode = null;
+                switch (nodeType.toLowerCase()) {
+                    case "client":
+                        currentNode = new ClientNode(thisNodeConfig.getId(), thisNodeConfig.getPort(), allNetworkNodes);
+
+                        // mixnet.load=true: scripted open loop traffic instead of the console, see LoadGenerator
+                        if (Settings.getBoolean("mixnet.load", false)) {
+                            loadGenerator = new LoadGenerator((ClientNode) currentNode);
+                            executor.submit(loadGenerator);
+                            break;
+                        }
+                        userInput = new UserInput((ClientNode) currentNode);
+                        executor.submit(userInput);
+                        break;
+                    case "mix":
+                        currentNode = new MixNode(thisNodeConfig.getId(), thisNodeConfig.getPort(), allNetworkNodes);
+                        break;
+                    case "destination":
+                        currentNode = new DestinationNode(thisNodeConfig.getId(), thisNodeConfig.getPort(), allNetworkNodes);
+                        break;
+                    default:
+                        Logger.log("Invalid node type: " + nodeType, LogLevel.Error);
+                        System.exit(1);
+                }
 
-            if (finalCurrentNode != null) {
-                Logger.log("Initializing " + nodeType + " node " + nodeID + " on port " + thisNodeConfig.getPort() + "...", LogLevel.Info);
+                final AbstractNode finalCurrentNode = currentNode;
+                nodes.add(finalCurrentNode);
+                Logger.log("Initializing " + nodeType + " node " + thisNodeConfig.getId() + " on port " + thisNodeConfig.getPort() + "...", LogLevel.Info);
                 executor.submit(() -> finalCurrentNode.start());
             }
 
             final UserInput finalUserInput = userInput;
+            final LoadGenerator finalLoadGenerator = loadGenerator;
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 Logger.log( "Shutdown hook activated. Initiating graceful shutdown...", LogLevel.Info);
                 if (finalUserInput != null) {
                     finalUserInput.interrupt();
                 }
-                if (finalCurrentNode != null) {
-                    finalCurrentNode.shutdown();
+                if (finalLoadGenerator != null) {
+                    finalLoadGenerator.shutdown();
+                }
+                for (AbstractNode node : nodes) {
+                    node.shutdown();
                 }
                 executor.shutdown();
                 try {
@@ -119,10 +141,10 @@ public class Main {
                     executor.shutdownNow();
                     Thread.currentThread().interrupt();
                 }
-                Logger.log("Node '" + nodeID + "' shutdown complete.", LogLevel.Info);
+                Logger.log("Nodes " + nodeIDs + " shutdown complete.", LogLevel.Info);
             }));
 
-            Logger.log("Node '" + nodeID + "' of type '" + nodeType + "' is running. Press Ctrl+C to stop.", LogLevel.Info);
+            Logger.log("Nodes " + nodeIDs + " of type '" + nodeType + "' are running. Press Ctrl+C to stop.", LogLevel.Info);
 
             while (!Thread.currentThread().isInterrupted()) {
                 try {
@@ -1,9 +1,9 @@
 package Code;
 
+import CryptoUtils.CipherSuite;
 import Logs.LogLevel;
 import Logs.Logger;
 
-import java.io.IOException;
 import java.io.Serializable;
 import java.util.Base64;
 import java.util.List;
@@ -17,22 +17,42 @@ public class Message implements Serializable {
     private List<String> fullPath;
     private int currentHopIndex;
 
-    private String encryptedPayloadBase64;
-    private String ivBase64;
+    private MessageType type = MessageType.ONION;
+    private CipherSuite suite = CipherSuite.RSA_OAEP; // how the layer keys are carried
 
-    private String encryptedSymmetricKeyForThisHopBase64;
+    // kept raw, the codecs decide how they go on the wire (base64 only for json)
+    private byte[] encryptedPayload;
+    private byte[] iv;
 
-    public Message(List<String> fullPath, String encryptedPayloadBase64, String ivBase64, String encryptedSymmetricKeyForThisHopBase64) {
+    private byte[] encryptedSymmetricKeyForThisHop;
+
+    // circuit frames only, the id this hop knows the circuit by
+    private long circuitId;
+
+    // local bookkeeping for stage latencies, never on the wire
+    private transient long stageEnteredNanos;
+
+    public Message(List<String> fullPath, byte[] encryptedPayload, byte[] iv, byte[] encryptedSymmetricKeyForThisHop) {
 
         this.content = null;
         this.fullPath = fullPath;
         this.currentHopIndex = 0;
 
-        this.encryptedPayloadBase64 = encryptedPayloadBase64;
-        this.ivBase64 = ivBase64;
-        this.encryptedSymmetricKeyForThisHopBase64 = encryptedSymmetricKeyForThisHopBase64;
+        this.encryptedPayload = encryptedPayload;
+        this.iv = iv;
+        this.encryptedSymmetricKeyForThisHop = encryptedSymmetricKeyForThisHop;
+    }
+
+    public Message(List<String> fullPath, String encryptedPayloadBase64, String ivBase64, String encryptedSymmetricKeyForThisHopBase64) {
+        this(fullPath, decodeBase64(encryptedPayloadBase64), decodeBase64(ivBase64), decodeBase64(encryptedSymmetricKeyForThisHopBase64));
     }
 
+    public MessageType getType() { return type == null ? MessageType.ONION : type; }
+    public void setType(MessageType type) { this.type = type; }
+
+    public CipherSuite getSuite() { return suite == null ? CipherSuite.RSA_OAEP : suite; }
+    public void setSuite(CipherSuite suite) { this.suite = suite; }
+
     public String getContent() { return content; }
     public void setContent(String content) { this.content = content; } // Used by client to set original, and dest to get final
 
@@ -42,6 +62,12 @@ public class Message implements Serializable {
     public int getCurrentHopIndex() { return currentHopIndex; }
     public void setCurrentHopIndex(int currentHopIndex) { this.currentHopIndex = currentHopIndex; }
 
+    public long getCircuitId() { return circuitId; }
+    public void setCircuitId(long circuitId) { this.circuitId = circuitId; }
+
+    public long getStageEnteredNanos() { return stageEnteredNanos; }
+    public void setStageEnteredNanos(long stageEnteredNanos) { this.stageEnteredNanos = stageEnteredNanos; }
+
     public String getNextHopID() {
         if (currentHopIndex + 1 < fullPath.size() ) {
             return fullPath.get(currentHopIndex + 1);
@@ -59,29 +85,33 @@ public class Message implements Serializable {
     }
 
     public byte[] getEncryptedPayload() {
-        return Base64.getDecoder().decode(encryptedPayloadBase64);
+        return encryptedPayload;
     }
 
     public byte[] getEncryptedPyloadWithUTF() {
-        return encryptedPayloadBase64.getBytes();
+        return encryptedPayload == null ? null : Base64.getEncoder().encode(encryptedPayload);
     }
 
     public void setEncryptedPayload(byte[] encryptedPayload) {
-        this.encryptedPayloadBase64 = Base64.getEncoder().encodeToString(encryptedPayload);
+        this.encryptedPayload = encryptedPayload;
     }
 
     public byte[] getIv() {
-        return Base64.getDecoder().decode(ivBase64);
+        return iv;
     }
     public void setIv(byte[] iv) {
-        this.ivBase64 = Base64.getEncoder().encodeToString(iv);
+        this.iv = iv;
     }
 
     public byte[] getEncryptedSymmetricKeyForThisHop() {
-        return Base64.getDecoder().decode(encryptedSymmetricKeyForThisHopBase64);
+        return encryptedSymmetricKeyForThisHop;
     }
     public void setEncryptedSymmetricKeyForThisHop(byte[] encryptedSymmetricKeyForThisHop) {
-        this.encryptedSymmetricKeyForThisHopBase64 = Base64.getEncoder().encodeToString(encryptedSymmetricKeyForThisHop);
+        this.encryptedSymmetricKeyForThisHop = encryptedSymmetricKeyForThisHop;
+    }
+
+    private static byte[] decodeBase64(String value) {
+        return value == null ? null : Base64.getDecoder().decode(value);
     }
 
     @Override
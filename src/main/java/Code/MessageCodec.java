@@ -0,0 +1,23 @@
+package Code;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+public interface MessageCodec {
+
+    String getName();
+
+    /**
+     * Writes one complete frame for the message. The scratch buffer is reused when it is big enough,
+     * otherwise a bigger one is returned. The returned buffer is flipped and ready to be written out.
+     * Throws when the message can't be put in a frame the other side would accept (too long a path or
+     * node id, too big overall), the message is not sendable and should be dropped, not retried.
+     */
+    ByteBuffer encode(Message message, ByteBuffer scratch) throws ProtocolException;
+
+    /**
+     * Decodes one frame starting at the buffer position. Returns null and leaves the position alone
+     * when the frame is not complete yet, so the caller can read more bytes and try again.
+     */
+    Message decode(ByteBuffer in) throws ProtocolException;
+}
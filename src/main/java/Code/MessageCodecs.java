@@ -0,0 +1,36 @@
+package Code;
+
+import Logs.LogLevel;
+import Logs.Logger;
+
+import java.nio.ByteBuffer;
+
+public final class MessageCodecs {
+
+    public static final MessageCodec JSON = new JsonMessageCodec();
+    public static final MessageCodec BINARY = new BinaryMessageCodec();
+
+    private static final MessageCodec CONFIGURED = forName(Settings.getString("mixnet.codec", "json"));
+
+    private MessageCodecs() {}
+
+    public static MessageCodec forName(String name) {
+        if ("binary".equalsIgnoreCase(name)) {
+            return BINARY;
+        }
+        if (!"json".equalsIgnoreCase(name)) {
+            Logger.log("Unknown codec '" + name + "', falling back to json", LogLevel.Warn);
+        }
+        return JSON;
+    }
+
+    // what we send with, set with mixnet.codec. receiving always accepts both
+    public static MessageCodec configured() {
+        return CONFIGURED;
+    }
+
+    // every frame says what it is by its first byte, so old json peers and binary peers can share a node
+    public static MessageCodec detect(ByteBuffer in) {
+        return in.get(in.position()) == BinaryMessageCodec.MAGIC ? BINARY : JSON;
+    }
+}
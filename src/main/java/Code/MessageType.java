@@ -0,0 +1,32 @@
+package Code;
+
+// the type byte of a binary frame, also carried in the json form so both codecs agree on it
+public enum MessageType {
+    ONION((byte) 1),
+    SPHINX((byte) 2), // fixed size packet, the whole onion sits in the payload field
+    CIRCUIT_CREATE((byte) 3), // an onion whose layer keys become the hops' session keys
+    CIRCUIT_DATA((byte) 4); // aes layers only, each hop finds its key by circuit id
+
+    public boolean isCircuit() {
+        return this == CIRCUIT_CREATE || this == CIRCUIT_DATA;
+    }
+
+    private final byte code;
+
+    MessageType(byte code) {
+        this.code = code;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    public static MessageType fromCode(byte code) {
+        for (MessageType type : values()) {
+            if (type.code == code) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,82 @@
+package Code;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+// receiving half of the multiplexed link, see MuxWriter for the chunk layout; lives in the FrameReader
+public class MuxReader {
+
+    // a sender only keeps this many messages going at once (its flush size), anything far past it is garbage
+    private static final int MAX_OPEN_STREAMS = 4096;
+
+    private final Map<Integer, ByteBuffer> assembling = new HashMap<>();
+
+    /**
+     * Takes one whole chunk off the buffer, or nothing when the chunk is not complete yet (the position
+     * does not move then). Returns the message the chunk finished, null if that stream has more to come.
+     */
+    public Message read(ByteBuffer in) throws ProtocolException {
+        int start = in.position();
+        if (in.remaining() < MuxWriter.HEADER_BYTES) {
+            return null;
+        }
+        int streamId = in.getInt(start + 1);
+        boolean fin = (in.get(start + 5) & MuxWriter.FLAG_FIN) != 0;
+        int length = in.getInt(start + 6);
+        if (length < 0 || length > FrameReader.MAX_FRAME_BYTES) {
+            throw new ProtocolException("Bad mux chunk length " + length + " on stream " + streamId);
+        }
+        if (in.remaining() < MuxWriter.HEADER_BYTES + length) {
+            return null;
+        }
+
+        ByteBuffer chunk = in.slice(start + MuxWriter.HEADER_BYTES, length);
+        in.position(start + MuxWriter.HEADER_BYTES + length);
+
+        ByteBuffer assembled = assembling.get(streamId);
+        if (assembled == null && fin) {
+            return decode(chunk, streamId); // fits one chunk, the common case, no copy
+        }
+        if (assembled == null) {
+            if (assembling.size() >= MAX_OPEN_STREAMS) {
+                throw new ProtocolException("More than " + MAX_OPEN_STREAMS + " mux streams open at once");
+            }
+            assembled = ByteBuffer.allocate(Math.max(length * 2, 1));
+        }
+        if (assembled.remaining() < length) {
+            if (assembled.position() + length > FrameReader.MAX_FRAME_BYTES) {
+                throw new ProtocolException("Mux stream " + streamId + " grew past " + FrameReader.MAX_FRAME_BYTES + " bytes");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(Math.max(assembled.capacity() * 2, assembled.position() + length), FrameReader.MAX_FRAME_BYTES));
+            assembled.flip();
+            bigger.put(assembled);
+            assembled = bigger;
+        }
+        assembled.put(chunk);
+
+        if (!fin) {
+            assembling.put(streamId, assembled);
+            return null;
+        }
+        assembling.remove(streamId);
+        assembled.flip();
+        return decode(assembled, streamId);
+    }
+
+    private Message decode(ByteBuffer frame, int streamId) throws ProtocolException {
+        if (!frame.hasRemaining()) {
+            throw new ProtocolException("Empty mux stream " + streamId);
+        }
+        Message message = MessageCodecs.detect(frame).decode(frame);
+        if (message == null || frame.hasRemaining()) {
+            throw new ProtocolException("Mux stream " + streamId + " did not hold exactly one frame");
+        }
+        return message;
+    }
+
+    public int getOpenStreams() {
+        return assembling.size();
+    }
+}
@@ -0,0 +1,178 @@
+package Code;
+
+import Logs.LogLevel;
+import Logs.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Sending half of the multiplexed link. Every message is cut into chunks of at most chunkBytes, each chunk
+ * goes out as its own frame tagged with a stream id:
+ *   magic(1) streamId(4) flags(1) length(4) bytes
+ * the bytes of a stream, once its FIN chunk arrived, are one ordinary codec frame (json or binary).
+ *
+ * Every message in flight is a stream and each round writes one chunk of every stream, so a small message
+ * is out after one round even when a 10 MB one was queued in front of it. Messages of one circuit share a
+ * stream and go out one after the other, a circuit's data must not overtake its earlier data.
+ *
+ * Writer thread only.
+ */
+public class MuxWriter {
+
+    public static final byte MAGIC = (byte) 0xB8; // next to BinaryMessageCodec.MAGIC, can't start json either
+    public static final int HEADER_BYTES = 10;
+    public static final byte FLAG_FIN = 1;
+
+    private final MessageCodec codec;
+    private final int chunkBytes;
+    private final ArrayDeque<Stream> ready = new ArrayDeque<>(); // round robin order
+    private final Map<Long, Stream> circuits = new HashMap<>();
+    private final byte[] header = new byte[HEADER_BYTES];
+    private int nextStreamId;
+    private int held;
+
+    public MuxWriter(MessageCodec codec, int chunkBytes) {
+        if (chunkBytes < 1) {
+            throw new IllegalArgumentException("Need chunks of at least one byte, got " + chunkBytes);
+        }
+        this.codec = codec;
+        this.chunkBytes = chunkBytes;
+    }
+
+    public static MuxWriter configured(MessageCodec codec) {
+        return new MuxWriter(codec, Settings.getInt("mixnet.mux.chunk.bytes", 8 * 1024));
+    }
+
+    public void add(Message message) {
+        held++;
+        if (message.getType().isCircuit()) {
+            Stream stream = circuits.get(message.getCircuitId());
+            if (stream != null) {
+                stream.waiting.addLast(message);
+                return;
+            }
+            stream = new Stream(message.getCircuitId());
+            if (start(stream, message)) {
+                circuits.put(message.getCircuitId(), stream);
+                ready.addLast(stream);
+            }
+            return;
+        }
+        Stream stream = new Stream(null);
+        if (start(stream, message)) {
+            ready.addLast(stream);
+        }
+    }
+
+    // a message the codec can't frame is dropped and the stream's next one tried, false when none was left
+    private boolean start(Stream stream, Message message) {
+        while (message != null) {
+            try {
+                stream.bytes = codec.encode(message, null);
+                stream.id = nextStreamId++;
+                stream.message = message;
+                return true;
+            } catch (ProtocolException e) {
+                Logger.log("Mux dropping message: " + e.getMessage(), LogLevel.Error);
+                held--;
+                message = stream.waiting.pollFirst();
+            }
+        }
+        return false;
+    }
+
+    // one chunk of every stream; finished messages are added to done, returns the bytes written
+    public long writeRound(OutputStream out, List<Message> done) throws IOException {
+        long written = 0;
+        for (int i = ready.size(); i > 0; i--) {
+            Stream stream = ready.pollFirst();
+            ByteBuffer bytes = stream.bytes;
+            int length = Math.min(chunkBytes, bytes.remaining());
+            boolean fin = length == bytes.remaining();
+
+            putHeader(stream.id, fin ? FLAG_FIN : (byte) 0, length);
+            out.write(header);
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), length);
+            bytes.position(bytes.position() + length);
+            written += HEADER_BYTES + length;
+
+            if (!fin) {
+                ready.addLast(stream);
+                continue;
+            }
+            held--;
+            done.add(stream.message);
+            if (start(stream, stream.waiting.pollFirst())) {
+                ready.addLast(stream);
+            } else {
+                stream.message = null;
+                stream.bytes = null;
+                if (stream.circuitId != null) {
+                    circuits.remove(stream.circuitId);
+                }
+            }
+        }
+        return written;
+    }
+
+    private void putHeader(int streamId, byte flags, int length) {
+        header[0] = MAGIC;
+        header[1] = (byte) (streamId >>> 24);
+        header[2] = (byte) (streamId >>> 16);
+        header[3] = (byte) (streamId >>> 8);
+        header[4] = (byte) streamId;
+        header[5] = flags;
+        header[6] = (byte) (length >>> 24);
+        header[7] = (byte) (length >>> 16);
+        header[8] = (byte) (length >>> 8);
+        header[9] = (byte) length;
+    }
+
+    // messages taken but not finished
+    public int getHeld() {
+        return held;
+    }
+
+    public boolean isIdle() {
+        return ready.isEmpty();
+    }
+
+    public int getOpenStreams() {
+        return ready.size();
+    }
+
+    // on close: the ones none of whose bytes went out yet, a half sent one is lost
+    public List<Message> takeUnstarted() {
+        List<Message> unstarted = new ArrayList<>();
+        for (Stream stream : ready) {
+            if (stream.bytes.position() == 0) {
+                unstarted.add(stream.message);
+            }
+            unstarted.addAll(stream.waiting);
+        }
+        ready.clear();
+        circuits.clear();
+        held = 0;
+        return unstarted;
+    }
+
+    private static final class Stream {
+        private final Long circuitId; // null for a one message stream
+        private final ArrayDeque<Message> waiting = new ArrayDeque<>();
+        private int id;
+        private Message message;
+        private ByteBuffer bytes;
+
+        private Stream(Long circuitId) {
+            this.circuitId = circuitId;
+        }
+    }
+}
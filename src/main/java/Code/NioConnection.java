@@ -0,0 +1,306 @@
+package Code;
+
+import Logs.LogLevel;
+import Logs.Logger;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// a non blocking link, all reads and writes happen on its event loop. Decoded messages are handed to the
+// node on the runtime's task executor (one task per link at a time, so in order), the loop only does io
+public class NioConnection implements Connection, NioEventLoop.Handler {
+
+    private static final int READ_BUFFER_BYTES = 4 * 1024; // grows per frame, shrinks back when idle
+    private static final int MAX_FRAMES_PER_WRITE = 64;
+    private static final int MAX_INBOUND_MESSAGES = 64; // decoded but not processed yet, reading pauses past that
+
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private final PeerManager peerManager;
+    private final String remoteNodeId;
+    private final String remoteAddress;
+    private final MessageCodec codec = MessageCodecs.configured();
+    private final FrameReader frameReader = new FrameReader(READ_BUFFER_BYTES);
+
+    private final OutboundQueue outboundQueue = new OutboundQueue();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // the batch being written, loop thread only
+    private final List<Message> batch = new ArrayList<>(MAX_FRAMES_PER_WRITE);
+    private ByteBuffer[] pending = new ByteBuffer[0];
+    private int pendingIndex;
+    private long pendingBytes;
+    private SelectionKey key;
+    private volatile boolean connected = true;
+
+    private final ConcurrentLinkedQueue<Message> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inboundDepth = new AtomicInteger();
+    private final AtomicBoolean delivering = new AtomicBoolean();
+    private volatile boolean inboundFull; // set on the loop, cleared there once the node caught up
+
+    public NioConnection(SocketChannel channel, NioEventLoop loop, PeerManager peerManager, String remoteNodeId) throws IOException {
+        this.channel = channel;
+        this.loop = loop;
+        this.peerManager = peerManager;
+        this.remoteNodeId = remoteNodeId;
+        this.remoteAddress = String.valueOf(channel.getRemoteAddress());
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        outboundQueue.setWritabilityListener(writable -> peerManager.onWritabilityChanged(this, writable));
+    }
+
+    public void register() {
+        loop.execute(() -> {
+            try {
+                key = loop.register(channel, peerManager.getIngressGate().isOpen() ? SelectionKey.OP_READ : 0, this);
+                if (outboundQueue.getDepth() > 0) {
+                    flush();
+                }
+            } catch (IOException e) {
+                Logger.log("Could not register channel for " + remoteNodeId + " (" + remoteAddress + "): " + e.getMessage(), LogLevel.Error);
+                close();
+            }
+        });
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public String getRemoteNodeId() {
+        return remoteNodeId;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected && channel.isOpen();
+    }
+
+    @Override
+    public boolean isWritable() {
+        return outboundQueue.isWritable();
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    @Override
+    public boolean sendMessage(Message message) {
+        if (!connected) {
+            Logger.log("Attempted to send msg to disc peer" + getRemoteNodeId(), LogLevel.Info);
+            return false;
+        }
+
+        if (!outboundQueue.offer(message)) {
+            if (outboundQueue.isClosed()) {
+                Logger.log("Attempted to send msg to disc peer" + getRemoteNodeId(), LogLevel.Info);
+            } else {
+                Logger.log("Outbound queue to " + getRemoteNodeId() + " is full (" + outboundQueue.getCapacity() + "), message rejected", LogLevel.Warn);
+            }
+            return false;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+        return true;
+    }
+
+    // loop thread only, the kernel buffer fills up and tcp pushes back on the sender
+    public void setReading(boolean reading) {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        if (reading && !inboundFull) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key.isReadable()) {
+            read();
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    private void read() throws IOException {
+        int read = frameReader.readFrom(channel);
+        peerManager.getTransportMetrics().recordRead(read);
+        if (read < 0) {
+            Logger.log("Peer " + remoteNodeId + " (" + remoteAddress + ") closed the channel", LogLevel.Info);
+            close();
+            return;
+        }
+
+        Message message;
+        try {
+            long start = System.nanoTime();
+            while ((message = frameReader.nextMessage()) != null) {
+                long decoded = System.nanoTime();
+                peerManager.getTransportMetrics().recordDecoded(decoded - start);
+                inbound.add(message);
+                inboundDepth.incrementAndGet();
+                start = System.nanoTime();
+            }
+        } catch (ProtocolException e) {
+            Logger.log("Protocol error: Malformed message from " + remoteNodeId + ": " + e.getMessage(), LogLevel.Error);
+            close();
+            return;
+        } finally {
+            scheduleDelivery();
+        }
+        frameReader.shrinkIfIdle();
+        if (inboundDepth.get() >= MAX_INBOUND_MESSAGES) {
+            inboundFull = true;
+            setReading(false);
+        }
+    }
+
+    private void scheduleDelivery() {
+        if (inbound.isEmpty() || !delivering.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            peerManager.getRuntime().getTaskExecutor().execute(this::deliver);
+        } catch (RejectedExecutionException e) {
+            delivering.set(false); // runtime is shutting down
+        }
+    }
+
+    // task executor, never more than one per link. What was read before the link closed is still handed over
+    private void deliver() {
+        try {
+            Message message;
+            while ((message = inbound.poll()) != null) {
+                inboundDepth.decrementAndGet();
+                try {
+                    peerManager.processReceivedMessage(message, this);
+                } catch (RuntimeException e) {
+                    Logger.log("Error handling message from " + remoteNodeId + ": " + e.getMessage(), LogLevel.Error);
+                }
+            }
+        } finally {
+            delivering.set(false);
+        }
+        // a read that came in after the last poll saw delivering still set
+        scheduleDelivery();
+        if (inboundFull && connected) {
+            loop.execute(this::resumeReading);
+        }
+    }
+
+    private void resumeReading() {
+        if (inboundFull && inboundDepth.get() < MAX_INBOUND_MESSAGES) {
+            inboundFull = false;
+            setReading(peerManager.getIngressGate().isOpen());
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        if (key == null || !key.isValid()) {
+            return; // not registered yet, register() flushes
+        }
+
+        try {
+            while (true) {
+                if (pendingIndex == pending.length && !nextBatch()) {
+                    break;
+                }
+
+                // one gathering write for every frame of the batch still pending
+                channel.write(pending, pendingIndex, pending.length - pendingIndex);
+                while (pendingIndex < pending.length && !pending[pendingIndex].hasRemaining()) {
+                    pending[pendingIndex++] = null;
+                }
+                if (pendingIndex < pending.length) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE); // socket buffer full, wait
+                    return;
+                }
+                outboundQueue.recordFlush(pending.length, pendingBytes);
+                peerManager.getTransportMetrics().recordWritten(pending.length, pendingBytes);
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            Logger.log("failed to send message to peer" + remoteNodeId + " : " + e.getMessage(), LogLevel.Error);
+            close();
+        }
+    }
+
+    // encodes the next run of queued messages, false if there is nothing queued
+    private boolean nextBatch() {
+        batch.clear();
+        if (outboundQueue.drainTo(batch, MAX_FRAMES_PER_WRITE) == 0) {
+            return false;
+        }
+
+        ByteBuffer[] frames = new ByteBuffer[batch.size()];
+        int count = 0;
+        pendingIndex = 0;
+        pendingBytes = 0;
+        for (Message message : batch) {
+            try {
+                frames[count] = codec.encode(message, null);
+            } catch (ProtocolException e) {
+                Logger.log("Dropping message for " + remoteNodeId + ": " + e.getMessage(), LogLevel.Error);
+                continue;
+            }
+            pendingBytes += frames[count++].remaining();
+        }
+        pending = count == frames.length ? frames : Arrays.copyOf(frames, count);
+        batch.clear();
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (!connected) {
+            return;
+        }
+        connected = false;
+        // frames already encoded may be half on the wire, only the queue is safe to hand back
+        int dropped = pending.length - pendingIndex;
+        if (dropped > 0) {
+            Logger.log("Dropping " + dropped + " partly written messages for " + remoteNodeId, LogLevel.Warn);
+        }
+        peerManager.onUndelivered(this, outboundQueue.close());
+
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Logger.log("Error closing channel from " + remoteAddress + ": " + e.getMessage(), LogLevel.Error);
+        }
+        peerManager.removePeer(remoteNodeId, this);
+    }
+
+    public PeerManager getPeerManager() {
+        return peerManager;
+    }
+
+    @Override
+    public void shutdownPeer() {
+        Logger.log("Shutting down peer " + getRemoteNodeId() + " (" + getRemoteAddress() + ")", LogLevel.Info);
+        loop.execute(this::close);
+    }
+}
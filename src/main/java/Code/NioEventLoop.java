@@ -0,0 +1,127 @@
+package Code;
+
+import Logs.LogLevel;
+import Logs.Logger;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+// one selector thread; everything touching its keys runs on it, other threads hand work in with execute()
+public class NioEventLoop implements Runnable {
+
+    public interface Handler {
+        void handle(SelectionKey key) throws IOException;
+
+        void close();
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    public NioEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    // only from the loop thread
+    public SelectionKey register(SelectableChannel channel, int interestOps, Handler handler) throws IOException {
+        return channel.register(selector, interestOps, handler);
+    }
+
+    // only from the loop thread
+    public void forEachHandler(Consumer<Handler> action) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid()) {
+                action.accept((Handler) key.attachment());
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                // tasks queued from the loop itself don't wake the selector, so never block while some are pending
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        if (key.isValid()) {
+                            handler.handle(key);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        Logger.log("Event loop " + thread.getName() + " closing a channel after: " + e.getMessage(), LogLevel.Warn);
+                        handler.close();
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                Logger.log("Selector failure in " + thread.getName() + ": " + e.getMessage(), LogLevel.Error);
+            }
+        }
+        closeAll();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Logger.log("Event loop task failed in " + thread.getName() + ": " + e.getMessage(), LogLevel.Error);
+            }
+        }
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                ((Handler) key.attachment()).close();
+            }
+            selector.close();
+        } catch (ClosedSelectorException | IOException e) {
+            Logger.log("Error closing selector of " + thread.getName() + ": " + e.getMessage(), LogLevel.Error);
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
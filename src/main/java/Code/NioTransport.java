@@ -0,0 +1,131 @@
+package Code;
+
+import Logs.LogLevel;
+import Logs.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// a few selector threads carry every connection instead of one thread per socket, the loops are the
+// runtime's and shared with every other node in the process
+public class NioTransport implements Transport {
+
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    private final int listeningPort;
+    private final PeerManager peerManager;
+    private NioEventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+
+    public NioTransport(int listeningPort, PeerManager peerManager) {
+        this.listeningPort = listeningPort;
+        this.peerManager = peerManager;
+    }
+
+    @Override
+    public void start() throws IOException {
+        loops = peerManager.getRuntime().getNioLoops();
+        peerManager.getIngressGate().addListener(this::setReading);
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(listeningPort), ACCEPT_BACKLOG);
+        serverChannel.configureBlocking(false);
+
+        NioEventLoop acceptLoop = loops[0];
+        acceptLoop.execute(() -> {
+            try {
+                acceptLoop.register(serverChannel, SelectionKey.OP_ACCEPT, new Acceptor());
+            } catch (IOException e) {
+                Logger.log("Could not register the accept channel: " + e.getMessage(), LogLevel.Error);
+            }
+        });
+        Logger.log("Successfull start and listening on port " + getLocalPort() + " with " + loops.length + " event loop(s)", LogLevel.Info);
+    }
+
+    @Override
+    public int getLocalPort() {
+        return serverChannel == null ? listeningPort : serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public Connection connect(String host, int port, String remoteNodeId, int timeoutMillis) throws IOException {
+        // blocking with a timeout through the socket adaptor, the connection switches it to non blocking after
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(host, port), timeoutMillis);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        NioConnection connection = new NioConnection(channel, nextLoop(), peerManager, remoteNodeId);
+        connection.register();
+        return connection;
+    }
+
+    // the gate flips from whatever thread filled or drained the node, each loop fixes up its own keys
+    private void setReading(boolean reading) {
+        forEachConnection(connection -> connection.setReading(reading));
+    }
+
+    // only this node's connections, the loops carry other nodes' too
+    private void forEachConnection(Consumer<NioConnection> action) {
+        for (NioEventLoop loop : loops) {
+            loop.execute(() -> loop.forEachHandler(handler -> {
+                if (handler instanceof NioConnection connection && connection.getPeerManager() == peerManager) {
+                    action.accept(connection);
+                }
+            }));
+        }
+    }
+
+    private NioEventLoop nextLoop() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    @Override
+    public void shutdown() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            Logger.log("Error in closing the server channel" + e.getMessage(), LogLevel.Error);
+        }
+        if (loops != null) {
+            forEachConnection(NioConnection::close);
+        }
+    }
+
+    private class Acceptor implements NioEventLoop.Handler {
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                try {
+                    NioConnection connection = new NioConnection(channel, nextLoop(), peerManager, "INCOMING");
+                    connection.register();
+                } catch (IOException e) {
+                    Logger.log("Peer not added and problem in peer connection" + e.getMessage(), LogLevel.Error);
+                    channel.close();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                Logger.log("Error in closing the server channel" + e.getMessage(), LogLevel.Error);
+            }
+        }
+    }
+}
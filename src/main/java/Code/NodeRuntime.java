@@ -0,0 +1,202 @@
+package Code;
+
+import Logs.LogLevel;
+import Logs.Logger;
+import Metrics.MetricsRegistry;
+import Metrics.MetricsServer;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The threads nodes run on, one set per process however many nodes it hosts: the nio selector loops,
+ * the task executor for blocking peer io and mix sends, the scheduler the mix strategies tick on and
+ * the crypto workers that peel layers. Everything that belongs to one node (keys, pool, circuits,
+ * ingress gate, peers) stays on the node, so a process with twenty mixes has twenty of those but still
+ * only a core's worth of crypto threads.
+ *
+ * Reference counted: the first node made starts it, the last one shut down stops it. The metrics
+ * endpoint (mixnet.metrics.port, off by default) is per process too, so it lives here.
+ */
+public class NodeRuntime {
+
+    public static final String CRYPTO_GATE_SOURCE = "crypto queue";
+    private static final long SHUTDOWN_WAIT_SECONDS = 5;
+
+    private static NodeRuntime shared;
+    private static int users;
+
+    private final ExecutionMode mode = ExecutionMode.configured();
+    private final ThreadPoolExecutor cryptoWorkers;
+    private final int cryptoQueueHigh;
+    private final int cryptoQueueLow;
+    private final Set<IngressGate> cryptoGated = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService taskExecutor;
+    private final int nioThreads;
+    private volatile NioEventLoop[] nioLoops; // made by the first nio transport that starts
+    private final MetricsServer metricsServer;
+
+    private NodeRuntime() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int workers = Settings.getInt("mixnet.crypto.workers", cores);
+        int queueCapacity = Settings.getInt("mixnet.crypto.queue", 4096);
+        this.cryptoQueueHigh = queueCapacity * 3 / 4;
+        this.cryptoQueueLow = queueCapacity / 4;
+        AtomicInteger workerCount = new AtomicInteger();
+        // full queue: the reader peels the message itself, which slows it down just the same
+        this.cryptoWorkers = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), task -> {
+            Thread thread = new Thread(task, "MixCrypto-" + workerCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+        // a dispatch waits on its sends, with one thread a slow hop at one mix would hold up every other mix
+        int schedulerThreads = Settings.getInt("mixnet.runtime.scheduler.threads", Math.max(2, cores));
+        this.scheduler = mode.newScheduler("MixDispatch", schedulerThreads);
+        this.taskExecutor = mode.newTaskExecutor("Peer");
+        this.nioThreads = Settings.getInt("mixnet.nio.threads", Math.max(1, cores / 2));
+
+        MetricsRegistry metrics = MetricsRegistry.global();
+        metrics.gauge("mixnet_crypto_queue_depth", "Layers waiting for a crypto worker", () -> cryptoWorkers.getQueue().size());
+        metrics.gauge("mixnet_crypto_active_workers", "Crypto workers busy peeling", cryptoWorkers::getActiveCount);
+        metrics.gauge("mixnet_runtime_nodes", "Nodes hosted by this process", NodeRuntime::getUserCount);
+        metrics.counter("mixnet_log_dropped_lines_total", "Log lines dropped because the logger ring was full", Logger::getDroppedCount);
+        this.metricsServer = startMetricsServer(metrics);
+
+        Logger.log("Node runtime up: " + workers + " crypto workers, " + schedulerThreads + " scheduler threads, " + mode.name().toLowerCase() + " task threads", LogLevel.Info);
+    }
+
+    private static MetricsServer startMetricsServer(MetricsRegistry metrics) {
+        int port = Settings.getInt("mixnet.metrics.port", -1);
+        if (port < 0) {
+            return null;
+        }
+        try {
+            MetricsServer server = new MetricsServer(metrics, Settings.getString("mixnet.metrics.host", "127.0.0.1"), port);
+            server.start();
+            return server;
+        } catch (IOException e) {
+            Logger.log("Could not start the metrics endpoint on port " + port + ": " + e.getMessage(), LogLevel.Error);
+            return null;
+        }
+    }
+
+    public static synchronized NodeRuntime acquire() {
+        if (shared == null) {
+            shared = new NodeRuntime();
+        }
+        users++;
+        return shared;
+    }
+
+    // once per acquire
+    public void release() {
+        synchronized (NodeRuntime.class) {
+            if (shared != this || --users > 0) {
+                return;
+            }
+            shared = null;
+        }
+        shutdown();
+    }
+
+    public static synchronized int getUserCount() {
+        return users;
+    }
+
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    public ExecutorService getTaskExecutor() {
+        return taskExecutor;
+    }
+
+    public ThreadPoolExecutor getCryptoWorkers() {
+        return cryptoWorkers;
+    }
+
+    // runs the task on a crypto worker and closes the node's gate while the shared queue is backed up
+    public void executeCrypto(IngressGate gate, Runnable task) {
+        cryptoWorkers.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                if (!cryptoGated.isEmpty() && cryptoWorkers.getQueue().size() <= cryptoQueueLow) {
+                    reopenCryptoGates();
+                }
+            }
+        });
+
+        int queued = cryptoWorkers.getQueue().size();
+        if (queued >= cryptoQueueHigh) {
+            gate.close(CRYPTO_GATE_SOURCE, queued + " messages waiting to be peeled");
+            cryptoGated.add(gate);
+            // the queue may have drained between the close and the add, nobody would open it then
+            if (cryptoWorkers.getQueue().size() <= cryptoQueueLow) {
+                reopenCryptoGates();
+            }
+        }
+    }
+
+    // the queue is shared, whichever node's task drains it opens the gates of all of them
+    private void reopenCryptoGates() {
+        for (IngressGate gate : cryptoGated) {
+            if (cryptoGated.remove(gate)) {
+                gate.open(CRYPTO_GATE_SOURCE);
+            }
+        }
+    }
+
+    public synchronized NioEventLoop[] getNioLoops() throws IOException {
+        if (nioLoops == null) {
+            NioEventLoop[] loops = new NioEventLoop[nioThreads];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new NioEventLoop("Network.Nio-" + i);
+                loops[i].start();
+            }
+            nioLoops = loops;
+        }
+        return nioLoops;
+    }
+
+    private void shutdown() {
+        Logger.log("Node runtime shutting down, last node is gone", LogLevel.Info);
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        scheduler.shutdownNow();
+        cryptoWorkers.shutdownNow();
+        taskExecutor.shutdownNow();
+        synchronized (this) {
+            if (nioLoops != null) {
+                for (NioEventLoop loop : nioLoops) {
+                    loop.shutdown();
+                }
+            }
+        }
+        try {
+            if (!scheduler.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS)
+                    || !taskExecutor.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                Logger.log("Node runtime threads did not terminate in time.", LogLevel.Warn);
+            }
+        } catch (InterruptedException e) {
+            Logger.log("Node runtime termination interrupted.", LogLevel.Error);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("nodes=%d cryptoQueue=%d cryptoActive=%d gated=%d nioLoops=%d",
+                getUserCount(), cryptoWorkers.getQueue().size(), cryptoWorkers.getActiveCount(), cryptoGated.size(), nioLoops == null ? 0 : nioLoops.length);
+    }
+}
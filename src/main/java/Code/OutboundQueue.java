@@ -0,0 +1,225 @@
+package Code;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Bounded per connection send queue. Callers never block on it: offer() fails once the queue is full,
+ * and writability flips off at the high watermark and back on at the low one so callers can hold off
+ * early. The writer drains it in batches and writes each batch with one flush.
+ */
+public class OutboundQueue {
+
+    public interface WritabilityListener {
+        void onWritabilityChanged(boolean writable);
+    }
+
+    private final int capacity;
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final ArrayDeque<Message> queue = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private volatile boolean writable = true;
+    private volatile WritabilityListener listener;
+    private boolean closed; // under the lock
+
+    private volatile int maxDepth;
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder framesFlushed = new LongAdder();
+    private final LongAdder bytesFlushed = new LongAdder();
+
+    public OutboundQueue() {
+        this(Settings.getInt("mixnet.outbound.capacity", 1024),
+                Settings.getInt("mixnet.outbound.high", 768),
+                Settings.getInt("mixnet.outbound.low", 256));
+    }
+
+    public OutboundQueue(int capacity, int highWatermark, int lowWatermark) {
+        if (capacity < 1 || lowWatermark < 0 || lowWatermark > highWatermark || highWatermark > capacity) {
+            throw new IllegalArgumentException("Need 0 <= low <= high <= capacity, got " + lowWatermark + "/" + highWatermark + "/" + capacity);
+        }
+        this.capacity = capacity;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+    }
+
+    public void setWritabilityListener(WritabilityListener listener) {
+        this.listener = listener;
+    }
+
+    // false when full or closed, the caller decides whether to drop, retry or reroute
+    public boolean offer(Message message) {
+        boolean becameUnwritable = false;
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (queue.size() >= capacity) {
+                rejected.increment();
+                return false;
+            }
+            queue.addLast(message);
+            accepted.increment();
+            if (queue.size() > maxDepth) {
+                maxDepth = queue.size();
+            }
+            if (writable && queue.size() >= highWatermark) {
+                writable = false;
+                becameUnwritable = true;
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        if (becameUnwritable) {
+            notifyListener(false);
+        }
+        return true;
+    }
+
+    // waits up to the timeout for the first message, then takes whatever else is there up to max
+    public int drainTo(List<Message> batch, int max, long timeout, TimeUnit unit) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = unit.toNanos(timeout);
+            while (queue.isEmpty()) {
+                if (nanos <= 0) {
+                    return 0;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return drainTo(batch, max);
+    }
+
+    // never waits
+    public int drainTo(List<Message> batch, int max) {
+        boolean becameWritable = false;
+        int drained = 0;
+        lock.lock();
+        try {
+            Message message;
+            while (drained < max && (message = queue.pollFirst()) != null) {
+                batch.add(message);
+                drained++;
+            }
+            if (!writable && queue.size() <= lowWatermark) {
+                writable = true;
+                becameWritable = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (becameWritable) {
+            notifyListener(true);
+        }
+        return drained;
+    }
+
+    // on close, hands back whatever never went out; every offer after this fails, so a send racing the
+    // close is refused instead of landing in a queue nobody drains any more
+    public List<Message> close() {
+        lock.lock();
+        try {
+            closed = true;
+            List<Message> unsent = new ArrayList<>(queue);
+            queue.clear();
+            return unsent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void recordFlush(int frames, long bytes) {
+        flushes.increment();
+        framesFlushed.add(frames);
+        bytesFlushed.add(bytes);
+    }
+
+    public boolean isWritable() {
+        return writable;
+    }
+
+    public int getDepth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getFlushCount() {
+        return flushes.sum();
+    }
+
+    public long getFramesFlushed() {
+        return framesFlushed.sum();
+    }
+
+    public long getBytesFlushed() {
+        return bytesFlushed.sum();
+    }
+
+    public double getAverageFramesPerFlush() {
+        long count = flushes.sum();
+        return count == 0 ? 0 : framesFlushed.sum() / (double) count;
+    }
+
+    public double getAverageBytesPerFlush() {
+        long count = flushes.sum();
+        return count == 0 ? 0 : bytesFlushed.sum() / (double) count;
+    }
+
+    private void notifyListener(boolean nowWritable) {
+        WritabilityListener current = listener;
+        if (current != null) {
+            current.onWritabilityChanged(nowWritable);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("depth=%d/%d max=%d accepted=%d rejected=%d flushes=%d frames/flush=%.1f bytes/flush=%.0f",
+                getDepth(), capacity, maxDepth, getAcceptedCount(), getRejectedCount(), getFlushCount(),
+                getAverageFramesPerFlush(), getAverageBytesPerFlush());
+    }
+}
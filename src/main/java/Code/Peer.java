@@ -2,21 +2,30 @@ package Code;
 
 import Logs.LogLevel;
 import Logs.Logger;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonSyntaxException;
 
 import java.io.*;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
-public class Peer implements Runnable {
+public class Peer implements Runnable, Connection {
 
-    private static final Gson gson = new GsonBuilder().create();
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_FRAMES_PER_FLUSH = 64;
 
     private final String remoteAddress;
     private final Socket socket;
-    private BufferedReader reader;
-    private PrintWriter writer;
+    private InputStream reader;
+    private OutputStream writer;
+    private final FrameReader frameReader = new FrameReader(BUFFER_SIZE);
+    private final MessageCodec codec = MessageCodecs.configured();
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE); // only touched by the writer
+    private final OutboundQueue outboundQueue = new OutboundQueue();
+    // mixnet.mux: messages go out as interleaved chunks so a big one doesn't hold up the rest
+    private final MuxWriter muxWriter = Settings.getBoolean("mixnet.mux", false) ? MuxWriter.configured(codec) : null;
     private volatile boolean connected = true;
     private final PeerManager peerManager;
     private String remoteNodeId;
@@ -28,6 +37,7 @@ public class Peer implements Runnable {
         this.remoteAddress = socket.getRemoteSocketAddress().toString();
 
         setupStreams();
+        outboundQueue.setWritabilityListener(writable -> peerManager.onWritabilityChanged(this, writable));
 
         Logger.log("Peer created for OUTGOING connection to " + remoteNodeId + " (" + remoteAddress + ")", LogLevel.Status);
     }
@@ -38,12 +48,13 @@ public class Peer implements Runnable {
         this.remoteAddress = socket.getRemoteSocketAddress().toString();
 
         setupStreams();
+        outboundQueue.setWritabilityListener(writable -> peerManager.onWritabilityChanged(this, writable));
         Logger.log("Peer created for INCOMING connection from " + remoteAddress, LogLevel.Status);
     }
 
     private void setupStreams() throws IOException {
-        reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        writer = new PrintWriter(socket.getOutputStream(), true); // true for auto-flush
+        reader = socket.getInputStream(); // FrameReader does the buffering
+        writer = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
     }
 
     public String getRemoteAddress() {
@@ -58,23 +69,108 @@ public class Peer implements Runnable {
         return connected && socket != null && !socket.isClosed();
     }
 
-    public synchronized void sendMessage(Message message) {
+    public boolean isWritable() {
+        return outboundQueue.isWritable();
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    // never blocks, the writer thread does the socket io
+    public boolean sendMessage(Message message) {
         if (!connected) {
             Logger.log("Attempted to send msg to disc peer" + getRemoteNodeId(), LogLevel.Info);
-            return;
+            return false;
+        }
+
+        if (!outboundQueue.offer(message)) {
+            if (outboundQueue.isClosed()) {
+                Logger.log("Attempted to send msg to disc peer" + getRemoteNodeId(), LogLevel.Info);
+            } else {
+                Logger.log("Outbound queue to " + getRemoteNodeId() + " is full (" + outboundQueue.getCapacity() + "), message rejected", LogLevel.Warn);
+            }
+            return false;
         }
+        return true;
+    }
 
-        // dont forget to change message za cont + id path
+    // second task per socket next to run(): drains whatever queued up and writes it with one flush
+    public void runWriter() {
+        List<Message> batch = new ArrayList<>(MAX_FRAMES_PER_FLUSH);
         try {
-            String jsonMessage = gson.toJson(message);
-            writer.println(jsonMessage);
-            writer.flush(); // clear flush for buffer
-            Logger.log("Sent message to " + getRemoteNodeId() + " (" + getRemoteAddress() + ") [HopIndex: " + message.getCurrentHopIndex() + "] Content: \"" + message.getContent() + "\"", LogLevel.Info);
+            while (connected) {
+                if (muxWriter != null) {
+                    writeMuxRound(batch);
+                    continue;
+                }
+                if (outboundQueue.drainTo(batch, MAX_FRAMES_PER_FLUSH, 500, TimeUnit.MILLISECONDS) == 0) {
+                    continue;
+                }
 
-        } catch (Exception e) {
+                long bytes = 0;
+                for (Message message : batch) {
+                    // dont forget to change message za cont + id path
+                    try {
+                        writeBuffer = codec.encode(message, writeBuffer);
+                    } catch (ProtocolException e) {
+                        Logger.log("Dropping message for " + getRemoteNodeId() + ": " + e.getMessage(), LogLevel.Error);
+                        continue;
+                    }
+                    bytes += writeBuffer.remaining();
+                    writer.write(writeBuffer.array(), writeBuffer.arrayOffset() + writeBuffer.position(), writeBuffer.remaining());
+                    logSent(message);
+                }
+                writer.flush(); // one syscall for the whole batch, unless it outgrew the buffer
+                outboundQueue.recordFlush(batch.size(), bytes);
+                peerManager.getTransportMetrics().recordWritten(batch.size(), bytes);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
             Logger.log("failed to send message to peer" + getRemoteNodeId() + " : " + e.getMessage(), LogLevel.Error);
-            connected = false; // quit connection
+            shutdownPeer(); // the reader sees the closed socket and cleans up
         }
+
+        // a batch that failed mid write may be partly delivered, only the queue is handed back
+        List<Message> unsent = outboundQueue.close();
+        if (muxWriter != null) {
+            unsent.addAll(0, muxWriter.takeUnstarted());
+        }
+        peerManager.onUndelivered(this, unsent);
+        Logger.log("Peer writer finished for " + getRemoteAddress() + ", " + outboundQueue, LogLevel.Info);
+    }
+
+    // tops the mux up to MAX_FRAMES_PER_FLUSH messages, then one chunk of each and a flush
+    private void writeMuxRound(List<Message> batch) throws IOException, InterruptedException {
+        int room = MAX_FRAMES_PER_FLUSH - muxWriter.getHeld();
+        if (room > 0) {
+            if (muxWriter.isIdle()) {
+                if (outboundQueue.drainTo(batch, room, 500, TimeUnit.MILLISECONDS) == 0) {
+                    return;
+                }
+            } else {
+                outboundQueue.drainTo(batch, room); // don't wait while streams are still going
+            }
+            for (Message message : batch) {
+                muxWriter.add(message);
+            }
+            batch.clear();
+        }
+
+        long bytes = muxWriter.writeRound(writer, batch);
+        writer.flush();
+        for (Message message : batch) {
+            logSent(message);
+        }
+        outboundQueue.recordFlush(batch.size(), bytes);
+        peerManager.getTransportMetrics().recordWritten(batch.size(), bytes);
+        batch.clear();
+    }
+
+    private void logSent(Message message) {
+        Logger.log("Sent message to {} [HopIndex: {}] Content: \"{}\"", LogLevel.Debug, getRemoteNodeId(), message.getCurrentHopIndex(), message.getContent());
     }
 
     @Override
@@ -82,17 +178,15 @@ public class Peer implements Runnable {
         if (remoteNodeId == null) {
             try {
                 //we first wait for any msg to arrive
-                String firstMessageJson = waitForMessage();
+                Message handshakeMessage = waitForMessage();
 
-                if (firstMessageJson == null) {
+                if (handshakeMessage == null) {
                     Logger.log("Incoming peer " + getRemoteAddress() + " disconnected before sendign ID ", LogLevel.Info);
                     return;
                 }
 
-                Message handshakeMessage = gson.fromJson(firstMessageJson, Message.class);
-
-                if (handshakeMessage == null || handshakeMessage.getFullPath() == null || handshakeMessage.getFullPath().isEmpty()) {
-                    Logger.log(" Incomming peer " + getRemoteAddress() + "sent a non-workign msg " + firstMessageJson, LogLevel.Info);
+                if (handshakeMessage.getFullPath() == null || handshakeMessage.getFullPath().isEmpty()) {
+                    Logger.log(" Incomming peer " + getRemoteAddress() + "sent a non-workign msg " + handshakeMessage, LogLevel.Info);
                     return;
                 }
 
@@ -103,8 +197,8 @@ public class Peer implements Runnable {
                 Logger.log("Peer handler started for the node -> " + remoteNodeId + " as " + remoteAddress, LogLevel.Info);
 
                 peerManager.processReceivedMessage(handshakeMessage, this);
-            } catch (JsonSyntaxException e) {
-                Logger.log("Incoming peer " + getRemoteAddress() + " sent non-JSON handshake: " + e.getMessage(), LogLevel.Error);
+            } catch (ProtocolException e) {
+                Logger.log("Incoming peer " + getRemoteAddress() + " sent a malformed handshake: " + e.getMessage(), LogLevel.Error);
                 return;
             } catch (IllegalArgumentException e) {
                 Logger.log("Validation error in handshake message from " + getRemoteAddress() + ": " + e.getMessage(), LogLevel.Error);
@@ -118,27 +212,23 @@ public class Peer implements Runnable {
 
         try {
             while (connected) {
-                String rawMessageJson = waitForMessage();
-
-                if (rawMessageJson == null) {
-                    Logger.log( "Peer " + getRemoteNodeId() + " disconnected or error reading. Stopping handler.", LogLevel.Warn);
+                try {
+                    peerManager.getIngressGate().awaitOpen(); // node is full, leave the bytes in the socket
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                     break;
                 }
 
-                Message message = null;
+                Message message;
                 try {
-
-                    message = gson.fromJson(rawMessageJson, Message.class);
-                    if (message == null) {
-                        Logger.log( "Received null message after deserialization from " + getRemoteNodeId() + ".", LogLevel.Error);
-                        break;
-                    }
-
-                } catch (JsonSyntaxException e) {
-                    Logger.log( "Protocol error: Malformed JSON message from " + getRemoteNodeId() + ": " + e.getMessage() + ". Raw: \"" + rawMessageJson + "\"", LogLevel.Error);
+                    message = waitForMessage();
+                } catch (ProtocolException e) {
+                    Logger.log( "Protocol error: Malformed message from " + getRemoteNodeId() + ": " + e.getMessage(), LogLevel.Error);
                     break;
-                } catch (IllegalArgumentException e) {
-                    Logger.log( "Validation error in message from " + getRemoteNodeId() + ": " + e.getMessage(), LogLevel.Error);
+                }
+
+                if (message == null) {
+                    Logger.log( "Peer " + getRemoteNodeId() + " disconnected or error reading. Stopping handler.", LogLevel.Warn);
                     break;
                 }
 
@@ -148,22 +238,38 @@ public class Peer implements Runnable {
             throw new RuntimeException(e);
         } finally {
             Logger.log( "Cleaning up connection for peer " + getRemoteNodeId() + " (" + getRemoteAddress() + ")", LogLevel.Info);
-            peerManager.removePeer(getRemoteNodeId());
+            connected = false; // stops the writer
+            peerManager.removePeer(getRemoteNodeId(), this);
 
+            // the socket takes both streams with it; the buffered writer stays the writer thread's, it may be
+            // mid write right now and finds out from the closed socket
             try {
-                if (reader != null) reader.close();
-                if (writer != null) writer.close();
                 if (socket != null && !socket.isClosed()) socket.close();
             } catch (IOException ex) {
-                Logger.log("Error closing writer/reader/socket from " + getRemoteAddress() + ": " + ex.getMessage(), LogLevel.Error);
+                Logger.log("Error closing socket from " + getRemoteAddress() + ": " + ex.getMessage(), LogLevel.Error);
             }
             Logger.log("Peer handler finished for " + getRemoteAddress(), LogLevel.Info);
         }
     }
 
-    private String waitForMessage() throws IOException {
+    // null once the stream ends
+    private Message waitForMessage() throws IOException {
         try {
-            return reader.readLine();
+            Message message = decodeNext();
+            while (message == null) {
+                int read = frameReader.readFrom(reader);
+                peerManager.getTransportMetrics().recordRead(read);
+                if (read < 0) {
+                    if (frameReader.buffered() > 0) {
+                        Logger.log("Peer " + getRemoteNodeId() + " closed mid frame, dropping " + frameReader.buffered() + " bytes", LogLevel.Warn);
+                    }
+                    return null;
+                }
+                message = decodeNext();
+            }
+            return message;
+        } catch (ProtocolException e) {
+            throw e;
         } catch (IOException e) {
             if (e.getMessage() != null && (e.getMessage().contains("Connection reset") || e.getMessage().contains("Socket closed"))) {
                 Logger.log("Peer " + getRemoteNodeId() + " disconnected unexpectedly during read.", LogLevel.Warn);
@@ -174,6 +280,15 @@ public class Peer implements Runnable {
         }
     }
 
+    private Message decodeNext() throws ProtocolException {
+        long start = System.nanoTime();
+        Message message = frameReader.nextMessage();
+        if (message != null) {
+            peerManager.getTransportMetrics().recordDecoded(System.nanoTime() - start);
+        }
+        return message;
+    }
+
     public void shutdownPeer() {
         Logger.log("Shutting down peer " + getRemoteNodeId() + " (" + getRemoteAddress() + ")", LogLevel.Info);
         connected = false;
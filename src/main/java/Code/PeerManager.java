@@ -2,100 +2,228 @@ package Code;
 
 import Logs.LogLevel;
 import Logs.Logger;
+import Metrics.MetricsRegistry;
 
 import java.io.IOException;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public abstract class PeerManager {
 
     protected final String nodeIdentifier;
-    private final Server server;
+    private final NodeRuntime runtime;
+    private final AtomicBoolean released = new AtomicBoolean();
+    private final Transport transport;
     private final int listeningPort;
-    private final ExecutorService peerHandlerExecutor = Executors.newCachedThreadPool();
 
-    private final Map<String, Peer> activePeers = new ConcurrentHashMap<>();
+    // what we send on, per next hop; activePeers is the incoming side, keyed by whatever the handshake said
+    private final Map<String, LinkPool> linkPools = new ConcurrentHashMap<>();
+    private final int linksPerPeer = Settings.getInt("mixnet.links.per.peer", 1);
+    private final int connectTimeoutMillis = Settings.getInt("mixnet.connect.timeout.ms", 3000);
+    private final Map<String, Connection> activePeers = new ConcurrentHashMap<>();
+    private final IngressGate ingressGate;
+    private final TransportMetrics transportMetrics;
 
     public PeerManager(int listeningPort, String nodeIdentifier) {
         this.listeningPort = listeningPort;
         this.nodeIdentifier = nodeIdentifier;
-        this.server = new Server(listeningPort, this);
+        this.ingressGate = new IngressGate(nodeIdentifier);
+        this.runtime = NodeRuntime.acquire();
+        this.transportMetrics = new TransportMetrics(MetricsRegistry.global(), nodeIdentifier);
+        this.transport = createTransport(Settings.getString("mixnet.transport", "socket"));
+    }
+
+    private Transport createTransport(String name) {
+        if ("loopback".equalsIgnoreCase(name)) {
+            return new LoopbackTransport(listeningPort, this, null);
+        }
+        Transport network;
+        if ("nio".equalsIgnoreCase(name)) {
+            network = new NioTransport(listeningPort, this);
+        } else {
+            if (!"socket".equalsIgnoreCase(name)) {
+                Logger.log("Unknown transport '" + name + "', using socket", LogLevel.Warn);
+            }
+            network = new SocketTransport(listeningPort, this);
+        }
+        // hops to nodes in this same process skip the network
+        return Settings.getBoolean("mixnet.loopback", true) ? new LoopbackTransport(listeningPort, this, network) : network;
     }
 
     public void start() {
-        server.start(); //start the server
-        Logger.log("PeerManager started", LogLevel.Info);
+        try {
+            transport.start(); //start the server
+        } catch (IOException e) {
+            Logger.log("Port is not listening or it's not working " + listeningPort + " <- port and cause -> " + e.getMessage(), LogLevel.Error);
+            return;
+        }
+        Logger.log("PeerManager started with " + transport.getClass().getSimpleName(), LogLevel.Info);
         //for mixnet development here
     }
 
     public void shutdown() {
         Logger.log("PeerManager initiating shutdown...", LogLevel.Info);
 
-        server.shutdown();
-
-        peerHandlerExecutor.shutdownNow();
-        try {
-            if (!peerHandlerExecutor.awaitTermination(5, java.util.concurrent.TimeUnit.SECONDS)) {
-                Logger.log("Peer handler executor did not terminate in time.", LogLevel.Warn);
-            }
-        } catch (InterruptedException e) {
-            Logger.log("Peer handler executor termination interrupted.", LogLevel.Error);
-            Thread.currentThread().interrupt(); //vrati status nazad
+        transport.shutdown();
+        if (released.compareAndSet(false, true)) {
+            runtime.release();
         }
 
         Logger.log("PeerManager shut down complete.", LogLevel.Info);
     }
 
-    public void handleNewIncomingConnection(Socket socket) throws IOException {
-        Peer peer = new Peer(socket, this, "INCOMING");
-        peerHandlerExecutor.submit(peer);
+    // threads shared with every other node in this process
+    public NodeRuntime getRuntime() {
+        return runtime;
     }
 
-    public Peer connectToPeer(String host, int port, String remoteNodeId) throws IOException {
-        Logger.log("Attempt to establish connection to " + remoteNodeId + " : " + port,LogLevel.Info);
+    public TransportMetrics getTransportMetrics() {
+        return transportMetrics;
+    }
 
-        Peer existingPeer = activePeers.get(remoteNodeId);
-        if ( existingPeer != null && existingPeer.isConnected() ) {
-            Logger.log("already connected to : " + remoteNodeId,LogLevel.Info);
-            return existingPeer;
-        }
+    public int getListeningPort() {
+        return transport.getLocalPort();
+    }
 
-        Socket outGoingSocket = new Socket(host,port);
+    // a live link to the node, opened if there is none; concurrent callers share one connect
+    public Connection connectToPeer(String host, int port, String remoteNodeId) throws IOException {
+        LinkPool pool = linkPools.computeIfAbsent(remoteNodeId, id -> new LinkPool(id, linksPerPeer));
+
+        CompletableFuture<Connection> pending;
+        while (true) {
+            Connection link = pool.pick();
+            if (link != null) {
+                // backed up and room for more: open one on the side, this send still goes out on what we have
+                CompletableFuture<Connection> lead = pool.leadAnother(link);
+                if (lead != null) {
+                    runtime.getTaskExecutor().execute(() -> openLink(pool, lead, host, port));
+                }
+                return link;
+            }
 
-        Peer peer = new Peer(outGoingSocket, this, remoteNodeId);
-        peerHandlerExecutor.submit(peer);
+            pending = pool.lead();
+            if (pending != null) {
+                openLink(pool, pending, host, port);
+                break;
+            }
+            pending = pool.join();
+            if (pending != null) {
+                Logger.log("Waiting on the connect to " + remoteNodeId + " already in flight", LogLevel.Debug);
+                break;
+            }
+            // the connect we missed just finished (or failed), look again
+        }
 
-        addPeer(remoteNodeId, peer);
+        try {
+            return pending.get(connectTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("Connect to " + remoteNodeId + " took over " + connectTimeoutMillis + " ms");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Connect to " + remoteNodeId + " failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting to " + remoteNodeId, e);
+        }
+    }
 
-        Logger.log("Successfull outoing connection to " + remoteNodeId + " : " + port,LogLevel.Success);
-        return peer;
+    private void openLink(LinkPool pool, CompletableFuture<Connection> lead, String host, int port) {
+        String remoteNodeId = pool.getRemoteNodeId();
+        Logger.log("Attempt to establish connection to " + remoteNodeId + " : " + port, LogLevel.Info);
+        try {
+            Connection link = transport.connect(host, port, remoteNodeId, connectTimeoutMillis);
+            pool.finish(lead, link, null);
+            Logger.log("Successfull outoing connection to " + remoteNodeId + " : " + port + ", " + pool, LogLevel.Success);
+        } catch (IOException | RuntimeException e) {
+            pool.finish(lead, null, e);
+            Logger.log("Could not connect to " + remoteNodeId + " : " + port + ": " + e.getMessage(), LogLevel.Warn);
+        }
     }
 
-    public void addPeer(String remoteNodeId, Peer peer) {
+    // incoming links once the handshake told us who it is; an older one for the same id is left running
+    public void addPeer(String remoteNodeId, Connection peer) {
         if ( peer.getRemoteNodeId() == null || !peer.getRemoteNodeId().equals(remoteNodeId) ) {
             Logger.log("Adjusting peer ID from " + remoteNodeId + " to actual " + peer.getRemoteNodeId() + " for storage", LogLevel.Debug);
             remoteNodeId = peer.getRemoteNodeId();
         }
 
-        Peer oldPeer = activePeers.put(remoteNodeId, peer);
+        Connection oldPeer = activePeers.put(remoteNodeId, peer);
 
         if ( oldPeer != null && oldPeer != peer ) {
-            Logger.log("Replaced existing connection for peer " + remoteNodeId + " : " + oldPeer.getRemoteNodeId() + " for storage", LogLevel.Info);
-            oldPeer.shutdownPeer();
-        } else {
-            Logger.log("attempt in removing non existant or same peer from the active peers list " + remoteNodeId, LogLevel.Info);
+            Logger.log("Newer connection for peer " + remoteNodeId + " stored, the older one stays open until its side closes it", LogLevel.Info);
         }
 
         Logger.log("Peer successfully added", LogLevel.Info);
     }
 
-    public void removePeer(String remoteNodeId) {
-        activePeers.remove(remoteNodeId);
+    // only drops this exact link, a newer one under the same id stays
+    public void removePeer(String remoteNodeId, Connection peer) {
+        activePeers.remove(remoteNodeId, peer);
+        LinkPool pool = linkPools.get(remoteNodeId);
+        if (pool != null) {
+            pool.remove(peer);
+        }
         Logger.log("Peer removed. Total active peers: " + activePeers.size(), LogLevel.Info);
     }
 
-    public abstract void processReceivedMessage(Message message, Peer sender);
+    // whatever buffers received work (a mix pool...) closes this when full
+    public IngressGate getIngressGate() {
+        return ingressGate;
+    }
+
+    public Map<String, Connection> getActivePeers() {
+        return Collections.unmodifiableMap(activePeers);
+    }
+
+    public Map<String, LinkPool> getLinkPools() {
+        return Collections.unmodifiableMap(linkPools);
+    }
+
+    // everything queued on outgoing links
+    public int getOutboundDepth() {
+        int depth = 0;
+        for (LinkPool pool : linkPools.values()) {
+            depth += pool.getDepth();
+        }
+        return depth;
+    }
+
+    // called from whichever thread crossed the watermark, keep it short
+    public void onWritabilityChanged(Connection connection, boolean writable) {
+        OutboundQueue queue = connection.getOutboundQueue();
+        if (writable) {
+            Logger.log("Peer " + connection.getRemoteNodeId() + " is writable again, " + queue, LogLevel.Info);
+        } else {
+            Logger.log("Peer " + connection.getRemoteNodeId() + " outbound queue passed its high watermark, " + queue, LogLevel.Warn);
+        }
+    }
+
+    // a link closed with these still queued; a node that can retry them overrides this
+    public void onUndelivered(Connection connection, List<Message> unsent) {
+        if (!unsent.isEmpty()) {
+            Logger.log("Dropping " + unsent.size() + " unsent messages for " + connection.getRemoteNodeId(), LogLevel.Warn);
+        }
+    }
+
+    // one line per link with its queue depth and flush sizes
+    public String describeOutboundQueues() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LinkPool> entry : linkPools.entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            for (Connection link : entry.getValue().getLinks()) {
+                sb.append("  ").append(link.getOutboundQueue()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    public abstract void processReceivedMessage(Message message, Connection sender);
 }
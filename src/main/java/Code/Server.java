@@ -11,19 +11,30 @@ public class Server extends Thread {
     private final int port;
     private ServerSocket serverSocket;
     private volatile boolean running = true; // flag to help us with shutdown
-    private final PeerManager peerManager;
+    private final SocketTransport transport;
 
-    public Server(int port, PeerManager peerManager) {
+    public Server(int port, SocketTransport transport, String nodeIdentifier) {
         this.port = port;
-        this.peerManager = peerManager;
-        Thread.currentThread().setName("Network.Server" + peerManager.nodeIdentifier); // self expl
+        this.transport = transport;
+        Thread.currentThread().setName("Network.Server" + nodeIdentifier); // self expl
+    }
+
+    // bound before the accept thread starts so the port (even an ephemeral 0) is known right away
+    public void bind() throws IOException {
+        serverSocket = new ServerSocket(port);
+        Logger.log("Successfull start and listening on port " + serverSocket.getLocalPort(), LogLevel.Info);
+    }
+
+    public int getLocalPort() {
+        return serverSocket == null ? port : serverSocket.getLocalPort();
     }
 
     @Override
     public void run() {
         try {
-            serverSocket = new ServerSocket(port);
-            Logger.log("Successfull start and listening on port...", LogLevel.Info);
+            if (serverSocket == null) {
+                bind();
+            }
 
             while (running) {
                 Socket newPeerSocket;
@@ -47,7 +58,7 @@ public class Server extends Thread {
                 Logger.log("-------------------------");
 
                 try { //add peer to the manager
-                    peerManager.handleNewIncomingConnection(newPeerSocket);
+                    transport.handleNewIncomingConnection(newPeerSocket);
                 } catch (Exception e) {
                     Logger.log("Peer not added and problem in peer connection" + e.getMessage(), LogLevel.Error);
                     try {
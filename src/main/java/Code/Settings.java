@@ -0,0 +1,64 @@
+package Code;
+
+import Logs.LogLevel;
+import Logs.Logger;
+
+import java.util.Locale;
+
+// runtime knobs: -Dmixnet.codec=binary or the env var MIXNET_CODEC=binary (handy from docker-compose)
+public final class Settings {
+
+    private Settings() {}
+
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = System.getenv(key.toUpperCase(Locale.ROOT).replace('.', '_'));
+        }
+        return (value == null || value.isBlank()) ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Logger.log("Setting " + key + " is not a number: '" + value + "', using " + defaultValue, LogLevel.Warn);
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            Logger.log("Setting " + key + " is not a number: '" + value + "', using " + defaultValue, LogLevel.Warn);
+            return defaultValue;
+        }
+    }
+
+    public static double getDouble(String key, double defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            Logger.log("Setting " + key + " is not a number: '" + value + "', using " + defaultValue, LogLevel.Warn);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
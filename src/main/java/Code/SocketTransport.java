@@ -0,0 +1,78 @@
+package Code;
+
+import Logs.LogLevel;
+import Logs.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+// the original model: a blocking Server thread, and a reader and a writer task per socket
+public class SocketTransport implements Transport {
+
+    private final PeerManager peerManager;
+    private final Server server;
+    private final ExecutorService peerHandlerExecutor;
+    // the executor is the runtime's, so shutdown closes this node's sockets instead of stopping it
+    private final Set<Peer> peers = ConcurrentHashMap.newKeySet();
+
+    public SocketTransport(int listeningPort, PeerManager peerManager) {
+        this.peerManager = peerManager;
+        this.peerHandlerExecutor = peerManager.getRuntime().getTaskExecutor();
+        this.server = new Server(listeningPort, this, peerManager.nodeIdentifier);
+    }
+
+    @Override
+    public void start() throws IOException {
+        server.bind();
+        server.start(); //start the server
+    }
+
+    @Override
+    public int getLocalPort() {
+        return server.getLocalPort();
+    }
+
+    public void handleNewIncomingConnection(Socket socket) throws IOException {
+        Peer peer = new Peer(socket, peerManager, "INCOMING");
+        track(peer);
+        peerHandlerExecutor.submit(peer);
+        peerHandlerExecutor.submit(peer::runWriter);
+    }
+
+    @Override
+    public Connection connect(String host, int port, String remoteNodeId, int timeoutMillis) throws IOException {
+        Socket outGoingSocket = new Socket();
+        try {
+            outGoingSocket.connect(new InetSocketAddress(host, port), timeoutMillis);
+        } catch (IOException e) {
+            outGoingSocket.close();
+            throw e;
+        }
+
+        Peer peer = new Peer(outGoingSocket, peerManager, remoteNodeId);
+        track(peer);
+        peerHandlerExecutor.submit(peer);
+        peerHandlerExecutor.submit(peer::runWriter);
+        return peer;
+    }
+
+    private void track(Peer peer) {
+        peers.removeIf(old -> !old.isConnected());
+        peers.add(peer);
+    }
+
+    @Override
+    public void shutdown() {
+        server.shutdown();
+
+        // the reader and writer tasks see their socket closed and finish on their own
+        for (Peer peer : peers) {
+            peer.shutdownPeer();
+        }
+        peers.clear();
+    }
+}
@@ -0,0 +1,17 @@
+package Code;
+
+import java.io.IOException;
+
+// how a PeerManager talks to the network, picked with mixnet.transport (socket | nio | loopback)
+public interface Transport {
+
+    // binds the listening port, after this getLocalPort is valid
+    void start() throws IOException;
+
+    int getLocalPort();
+
+    // gives up after timeoutMillis, 0 waits as long as the os does
+    Connection connect(String host, int port, String remoteNodeId, int timeoutMillis) throws IOException;
+
+    void shutdown();
+}
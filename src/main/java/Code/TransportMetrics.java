@@ -0,0 +1,44 @@
+package Code;
+
+import Metrics.Counter;
+import Metrics.Histogram;
+import Metrics.MetricsRegistry;
+
+// what a node's links move, whichever transport carries them; one per PeerManager
+public class TransportMetrics {
+
+    private final Counter bytesIn;
+    private final Counter messagesIn;
+    private final Counter bytesOut;
+    private final Counter messagesOut;
+    private final Histogram decodeNanos;
+
+    public TransportMetrics(MetricsRegistry registry, String nodeId) {
+        this.bytesIn = registry.counter("mixnet_link_received_bytes_total", "Bytes read from links", "node", nodeId);
+        this.messagesIn = registry.counter("mixnet_link_received_messages_total", "Messages decoded from links", "node", nodeId);
+        this.bytesOut = registry.counter("mixnet_link_sent_bytes_total", "Bytes written to links", "node", nodeId);
+        this.messagesOut = registry.counter("mixnet_link_sent_messages_total", "Messages written to links", "node", nodeId);
+        this.decodeNanos = registry.histogram("mixnet_link_decode_seconds", "Time to decode one frame that was fully buffered", 1e-9, "node", nodeId);
+    }
+
+    public void recordRead(int bytes) {
+        if (bytes > 0) {
+            bytesIn.add(bytes);
+        }
+    }
+
+    public void recordDecoded(long nanos) {
+        messagesIn.increment();
+        decodeNanos.record(nanos);
+    }
+
+    // loopback hands the object over, there is nothing to decode
+    public void recordHandedOver(int messages) {
+        messagesIn.add(messages);
+    }
+
+    public void recordWritten(int messages, long bytes) {
+        messagesOut.add(messages);
+        bytesOut.add(bytes);
+    }
+}
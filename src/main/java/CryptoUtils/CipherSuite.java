@@ -0,0 +1,125 @@
+package CryptoUtils;
+
+import Code.Settings;
+import Logs.LogLevel;
+import Logs.Logger;
+
+import java.security.*;
+
+/*
+ * How a hop's layer key gets to it. The client picks one per message with mixnet.suite and every node
+ * holds keys for both, the key block in the message (or sphinx header) is what differs:
+ *   rsa    - random 32 byte key wrapped with RSA-2048 OAEP, 256 byte block
+ *   x25519 - ephemeral X25519 public key, the key comes out of the agreement through HKDF, 32 byte block
+ */
+public enum CipherSuite {
+    RSA_OAEP((byte) 1, "rsa", "RSA", 256, "public_keys.json", "_private.key"),
+    X25519_HKDF((byte) 2, "x25519", "X25519", X25519KeyUtil.PUBLIC_KEY_BYTES, "public_keys_x25519.json", "_x25519_private.key");
+
+    private static final int LAYER_KEY_BYTES = 32;
+
+    private final byte code;
+    private final String shortName;
+    private final String keyAlgorithm;
+    private final int keyBlockBytes;
+    private final String publicKeysFile;
+    private final String privateKeySuffix;
+
+    CipherSuite(byte code, String shortName, String keyAlgorithm, int keyBlockBytes, String publicKeysFile, String privateKeySuffix) {
+        this.code = code;
+        this.shortName = shortName;
+        this.keyAlgorithm = keyAlgorithm;
+        this.keyBlockBytes = keyBlockBytes;
+        this.publicKeysFile = publicKeysFile;
+        this.privateKeySuffix = privateKeySuffix;
+    }
+
+    public static CipherSuite configured() {
+        return fromName(Settings.getString("mixnet.suite", "rsa"));
+    }
+
+    public static CipherSuite fromName(String name) {
+        for (CipherSuite suite : values()) {
+            if (suite.shortName.equalsIgnoreCase(name) || suite.name().equalsIgnoreCase(name)) {
+                return suite;
+            }
+        }
+        Logger.log("Unknown cipher suite '" + name + "', using rsa", LogLevel.Warn);
+        return RSA_OAEP;
+    }
+
+    public static CipherSuite fromCode(byte code) {
+        for (CipherSuite suite : values()) {
+            if (suite.code == code) {
+                return suite;
+            }
+        }
+        return null;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    public String getShortName() {
+        return shortName;
+    }
+
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    public int getKeyBlockBytes() {
+        return keyBlockBytes;
+    }
+
+    public String getPublicKeysFile() {
+        return publicKeysFile;
+    }
+
+    public String privateKeyFile(String nodeId) {
+        return nodeId + privateKeySuffix;
+    }
+
+    public KeyPair generateKeyPair() throws NoSuchAlgorithmException {
+        return this == X25519_HKDF ? X25519KeyUtil.generateKeyPair() : RsaEncryptionUtil.generateKeyPair();
+    }
+
+    // a fresh 32 byte layer key for the node and the block that lets only that node recover it
+    public LayerKey newLayerKey(PublicKey nodePublicKey) throws GeneralSecurityException {
+        if (this == X25519_HKDF) {
+            byte[][] encapsulated = X25519KeyUtil.encapsulate(nodePublicKey);
+            return new LayerKey(encapsulated[0], encapsulated[1]);
+        }
+        byte[] key = CryptoEngine.randomBytes(LAYER_KEY_BYTES);
+        return new LayerKey(RsaEncryptionUtil.encrypt(key, nodePublicKey), key);
+    }
+
+    public byte[] openLayerKey(byte[] keyBlock, PrivateKey nodePrivateKey) throws GeneralSecurityException {
+        if (keyBlock == null || keyBlock.length != keyBlockBytes) {
+            throw new InvalidKeyException("Key block for " + shortName + " must be " + keyBlockBytes + " bytes");
+        }
+        if (this == X25519_HKDF) {
+            return X25519KeyUtil.decapsulate(keyBlock, nodePrivateKey);
+        }
+        return RsaEncryptionUtil.decrypt(keyBlock, nodePrivateKey);
+    }
+
+    public static class LayerKey {
+        private final byte[] keyBlock;
+        private final byte[] secret;
+
+        public LayerKey(byte[] keyBlock, byte[] secret) {
+            this.keyBlock = keyBlock;
+            this.secret = secret;
+        }
+
+        public byte[] getKeyBlock() {
+            return keyBlock;
+        }
+
+        public byte[] getSecret() {
+            return secret;
+        }
+    }
+}
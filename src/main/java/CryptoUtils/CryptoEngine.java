@@ -0,0 +1,209 @@
+package CryptoUtils;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+
+/*
+ * The one place that holds Cipher / KeyGenerator / Mac / SecureRandom instances. Provider lookup and DRBG
+ * seeding are paid once per thread instead of once per call, the instances are never shared so no locking.
+ * AesEncryptionUtil / RsaEncryptionUtil / X25519KeyUtil go through here, hot paths that already own
+ * buffers can use the ByteBuffer methods and skip the intermediate arrays.
+ *
+ * Per thread means per platform thread: the crypto workers are a fixed pool so that is a handful of
+ * contexts. Virtual threads borrow one for the length of a call (ThreadContexts). The exception is
+ * hmacSha256, whose Mac outlives the call: a virtual thread gets a fresh one.
+ */
+public final class CryptoEngine {
+
+    public static final int GCM_IV_BYTES = 12;
+    public static final int GCM_TAG_BYTES = 16;
+    public static final int AES_KEY_BITS = 256;
+
+    private static final String AES_GCM = "AES/GCM/NoPadding";
+    private static final String RSA_OAEP = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+
+    private static final ThreadContexts<Context> contexts = new ThreadContexts<>(Context::new);
+
+    private CryptoEngine() {}
+
+    // AES-GCM
+
+    public static SecretKey generateAesKey() {
+        Context context = contexts.acquire();
+        try {
+            return context.aesKeys.generateKey();
+        } finally {
+            contexts.release(context);
+        }
+    }
+
+    public static void nextBytes(byte[] bytes) {
+        Context context = contexts.acquire();
+        try {
+            context.random.nextBytes(bytes);
+        } finally {
+            contexts.release(context);
+        }
+    }
+
+    public static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        nextBytes(bytes);
+        return bytes;
+    }
+
+    public static long nextLong() {
+        Context context = contexts.acquire();
+        try {
+            return context.random.nextLong();
+        } finally {
+            contexts.release(context);
+        }
+    }
+
+    public static int aesOutputSize(int plainTextLength) {
+        return plainTextLength + GCM_TAG_BYTES;
+    }
+
+    // returns ciphertext||tag, the fresh iv goes into ivOut
+    public static byte[] aesEncrypt(byte[] plainText, int offset, int length, SecretKey key, byte[] ivOut) throws GeneralSecurityException {
+        Context context = contexts.acquire();
+        try {
+            return context.startAesEncrypt(key, ivOut).doFinal(plainText, offset, length);
+        } finally {
+            contexts.release(context);
+        }
+    }
+
+    public static byte[] aesDecrypt(byte[] cipherText, int offset, int length, byte[] iv, SecretKey key) throws GeneralSecurityException {
+        Context context = contexts.acquire();
+        try {
+            return context.startAesDecrypt(key, iv, 0).doFinal(cipherText, offset, length);
+        } finally {
+            contexts.release(context);
+        }
+    }
+
+    // everything remaining in plainText goes into out (needs aesOutputSize free), returns the bytes written
+    public static int aesEncrypt(ByteBuffer plainText, ByteBuffer out, SecretKey key, byte[] ivOut) throws GeneralSecurityException {
+        Context context = contexts.acquire();
+        try {
+            return context.startAesEncrypt(key, ivOut).doFinal(plainText, out);
+        } finally {
+            contexts.release(context);
+        }
+    }
+
+    // the tag is checked before anything lands in out
+    public static int aesDecrypt(ByteBuffer cipherText, ByteBuffer out, byte[] iv, SecretKey key) throws GeneralSecurityException {
+        Context context = contexts.acquire();
+        try {
+            return context.startAesDecrypt(key, iv, 0).doFinal(cipherText, out);
+        } finally {
+            contexts.release(context);
+        }
+    }
+
+    // RSA-OAEP
+
+    public static byte[] rsaEncrypt(byte[] plainText, PublicKey publicKey) throws GeneralSecurityException {
+        Context context = contexts.acquire();
+        try {
+            context.rsa.init(Cipher.ENCRYPT_MODE, publicKey, context.random);
+            return context.rsa.doFinal(plainText);
+        } finally {
+            contexts.release(context);
+        }
+    }
+
+    public static byte[] rsaDecrypt(byte[] cipherText, PrivateKey privateKey) throws GeneralSecurityException {
+        Context context = contexts.acquire();
+        try {
+            context.rsa.init(Cipher.DECRYPT_MODE, privateKey);
+            return context.rsa.doFinal(cipherText);
+        } finally {
+            contexts.release(context);
+        }
+    }
+
+    // X25519 / HMAC
+
+    public static byte[] x25519Agree(PrivateKey privateKey, PublicKey publicKey) throws GeneralSecurityException {
+        Context context = contexts.acquire();
+        try {
+            context.x25519.init(privateKey);
+            context.x25519.doPhase(publicKey, true);
+            return context.x25519.generateSecret();
+        } finally {
+            contexts.release(context);
+        }
+    }
+
+    public static PublicKey x25519PublicKey(KeySpec spec) throws GeneralSecurityException {
+        Context context = contexts.acquire();
+        try {
+            return context.x25519Keys.generatePublic(spec);
+        } finally {
+            contexts.release(context);
+        }
+    }
+
+    // the caller inits it and must be done with it before calling back in here
+    public static Mac hmacSha256(byte[] key) throws GeneralSecurityException {
+        Mac hmac = Thread.currentThread().isVirtual() ? Mac.getInstance("HmacSHA256") : contexts.ownedByThread().hmac;
+        hmac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return hmac;
+    }
+
+    private static final class Context {
+        private final SecureRandom random = new SecureRandom();
+        private final Cipher aesGcm;
+        private final Cipher rsa;
+        private final KeyGenerator aesKeys;
+        private final KeyAgreement x25519;
+        private final KeyFactory x25519Keys;
+        private final Mac hmac;
+
+        private Context() {
+            try {
+                aesGcm = Cipher.getInstance(AES_GCM);
+                rsa = Cipher.getInstance(RSA_OAEP);
+                aesKeys = KeyGenerator.getInstance("AES");
+                aesKeys.init(AES_KEY_BITS, random);
+                x25519 = KeyAgreement.getInstance("X25519");
+                x25519Keys = KeyFactory.getInstance("X25519");
+                hmac = Mac.getInstance("HmacSHA256");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("A required JCE algorithm is not available", e);
+            }
+        }
+
+        Cipher startAesEncrypt(Key key, byte[] ivOut) throws GeneralSecurityException {
+            if (ivOut.length != GCM_IV_BYTES) {
+                throw new IllegalArgumentException("iv buffer must be " + GCM_IV_BYTES + " bytes");
+            }
+            // a fresh random iv every time, GCM refuses a reused key+iv on the same instance anyway
+            random.nextBytes(ivOut);
+            aesGcm.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BYTES * 8, ivOut));
+            return aesGcm;
+        }
+
+        Cipher startAesDecrypt(Key key, byte[] iv, int ivOffset) throws GeneralSecurityException {
+            aesGcm.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BYTES * 8, iv, ivOffset, GCM_IV_BYTES));
+            return aesGcm;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package CryptoUtils;
+
+import Code.Settings;
+import Logs.LogLevel;
+import Logs.Logger;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Client side stock of ready layer keys (secret + key block) per node. A layer key does not depend on
+ * the payload, so the public key work can happen before the send: every node a path used gets topped
+ * up to perNode keys in the background, and a send only takes keys out and does the AES chaining.
+ * Whatever is missing at send time is made on the workers in parallel, one task per hop.
+ *
+ * Every key is handed out once and never again. Keys are tied to the public key they were made for,
+ * a node whose key changed (registry reload) loses its stock.
+ */
+public class LayerKeyPool {
+
+    private final CipherSuite suite;
+    private final int perNode;
+    private final int threads;
+    private final ExecutorService workers;
+    private final Map<String, NodeStock> stocks = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder generated = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+
+    public LayerKeyPool(CipherSuite suite, int perNode, int threads) {
+        if (perNode < 0 || threads < 1) {
+            throw new IllegalArgumentException("Need perNode >= 0 and threads >= 1, got " + perNode + "/" + threads);
+        }
+        this.suite = suite;
+        this.perNode = perNode;
+        this.threads = threads;
+        AtomicInteger workerCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "LayerKeys-" + suite.getShortName() + "-" + workerCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static LayerKeyPool configured(CipherSuite suite) {
+        return new LayerKeyPool(suite,
+                Settings.getInt("mixnet.keypool.size", 16),
+                Settings.getInt("mixnet.keypool.threads", Runtime.getRuntime().availableProcessors()));
+    }
+
+    public CipherSuite getSuite() {
+        return suite;
+    }
+
+    // start filling for a path ahead of its first send
+    public void warm(List<String> path, Map<String, PublicKey> publicKeys) {
+        for (String nodeId : path) {
+            PublicKey publicKey = publicKeys.get(nodeId);
+            if (publicKey != null) {
+                refill(stockFor(nodeId, publicKey));
+            }
+        }
+    }
+
+    // one key per hop, indexed like path
+    public CipherSuite.LayerKey[] take(List<String> path, Map<String, PublicKey> publicKeys) throws GeneralSecurityException {
+        CipherSuite.LayerKey[] layerKeys = new CipherSuite.LayerKey[path.size()];
+        NodeStock[] touched = new NodeStock[path.size()];
+        List<Integer> missing = new ArrayList<>();
+
+        for (int i = 0; i < layerKeys.length; i++) {
+            String nodeId = path.get(i);
+            PublicKey publicKey = publicKeys.get(nodeId);
+            if (publicKey == null) {
+                throw new InvalidKeyException("Public key not found for node: " + nodeId);
+            }
+            NodeStock stock = stockFor(nodeId, publicKey);
+            touched[i] = stock;
+            CipherSuite.LayerKey layerKey = stock.ready.poll();
+            if (layerKey != null) {
+                stock.count.decrementAndGet();
+                hits.increment();
+                layerKeys[i] = layerKey;
+            } else {
+                misses.increment();
+                missing.add(i);
+            }
+        }
+
+        if (missing.size() == 1 || threads == 1) {
+            // nothing to gain from a hand off
+            for (int i : missing) {
+                layerKeys[i] = suite.newLayerKey(publicKeys.get(path.get(i)));
+                generated.increment();
+            }
+        } else {
+            // cold path, the hops do not depend on each other so spread them over the workers
+            List<CompletableFuture<CipherSuite.LayerKey>> futures = new ArrayList<>(missing.size());
+            for (int i : missing) {
+                PublicKey publicKey = publicKeys.get(path.get(i));
+                futures.add(CompletableFuture.supplyAsync(() -> newLayerKey(publicKey), workers));
+            }
+            try {
+                for (int j = 0; j < missing.size(); j++) {
+                    layerKeys[missing.get(j)] = futures.get(j).join();
+                }
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof GeneralSecurityException) {
+                    throw (GeneralSecurityException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        // after the cold path so its tasks are not queued behind refills
+        for (NodeStock stock : touched) {
+            refill(stock);
+        }
+        return layerKeys;
+    }
+
+    private NodeStock stockFor(String nodeId, PublicKey publicKey) {
+        NodeStock stock = stocks.get(nodeId);
+        if (stock != null && stock.publicKey.equals(publicKey)) {
+            return stock;
+        }
+        return stocks.compute(nodeId, (id, old) -> {
+            if (old != null && old.publicKey.equals(publicKey)) {
+                return old;
+            }
+            if (old != null) {
+                discarded.add(old.count.get());
+                Logger.log("LayerKeyPool: public key of " + id + " changed, dropped " + old.count.get() + " ready keys", LogLevel.Info);
+            }
+            return new NodeStock(id, publicKey);
+        });
+    }
+
+    private void refill(NodeStock stock) {
+        if (stock.count.get() >= perNode || !stock.refilling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    // stops early when the node got a new key and this stock was replaced
+                    while (stock.count.get() < perNode && stocks.get(stock.nodeId) == stock) {
+                        stock.ready.add(newLayerKey(stock.publicKey));
+                        stock.count.incrementAndGet();
+                    }
+                } catch (CompletionException e) {
+                    Logger.log("LayerKeyPool: could not make layer keys for " + stock.nodeId + ": " + e.getCause(), LogLevel.Warn);
+                } finally {
+                    stock.refilling.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            stock.refilling.set(false);
+        }
+    }
+
+    private CipherSuite.LayerKey newLayerKey(PublicKey publicKey) {
+        try {
+            CipherSuite.LayerKey layerKey = suite.newLayerKey(publicKey);
+            generated.increment();
+            return layerKey;
+        } catch (GeneralSecurityException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    public int getReadyCount() {
+        int ready = 0;
+        for (NodeStock stock : stocks.values()) {
+            ready += stock.count.get();
+        }
+        return ready;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+        try {
+            if (!workers.awaitTermination(2, TimeUnit.SECONDS)) {
+                Logger.log("LayerKeyPool workers did not terminate in time.", LogLevel.Warn);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stocks.clear();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("suite=%s nodes=%d ready=%d target=%d hits=%d misses=%d generated=%d discarded=%d",
+                suite.getShortName(), stocks.size(), getReadyCount(), perNode, hits.sum(), misses.sum(), generated.sum(), discarded.sum());
+    }
+
+    private static final class NodeStock {
+        private final String nodeId;
+        private final PublicKey publicKey;
+        private final ConcurrentLinkedQueue<CipherSuite.LayerKey> ready = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger count = new AtomicInteger();
+        private final AtomicBoolean refilling = new AtomicBoolean();
+
+        private NodeStock(String nodeId, PublicKey publicKey) {
+            this.nodeId = nodeId;
+            this.publicKey = publicKey;
+        }
+    }
+}
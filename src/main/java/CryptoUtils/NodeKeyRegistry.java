@@ -13,42 +13,69 @@ import java.security.*;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class NodeKeyRegistry {
 
-    private static final Map<String, PublicKey> publicKeys = new ConcurrentHashMap<>();
+    // one set of maps per cipher suite, rsa is what the old single maps held
+    private static final Map<CipherSuite, Map<String, PublicKey>> publicKeys = new EnumMap<>(CipherSuite.class);
 
-    private static final Map<String, PrivateKey> privateKeys = new ConcurrentHashMap<>();
+    private static final Map<CipherSuite, Map<String, PrivateKey>> privateKeys = new EnumMap<>(CipherSuite.class);
 
     private static final Map<String, KeyPair> allNodeKeyPairs = new ConcurrentHashMap<>();
 
+    static {
+        for (CipherSuite suite : CipherSuite.values()) {
+            publicKeys.put(suite, new ConcurrentHashMap<>());
+            privateKeys.put(suite, new ConcurrentHashMap<>());
+        }
+    }
+
     public static void generateAndRegisterKeys(Map<String, NodeConfig> nodeIds) throws NoSuchAlgorithmException {
 
         //clear these becuase of the triple generation of keys
 
-        publicKeys.clear();
-        privateKeys.clear();
+        clear();
         allNodeKeyPairs.clear();
 
-        Logger.log("Generating RSA key pairs", LogLevel.Status);
+        Logger.log("Generating RSA and X25519 key pairs", LogLevel.Status);
 
         for ( NodeConfig nodeConf : nodeIds.values() ) {
             //we extract the node id from the element in the map of the nodeconfig first value
             String nodeId = nodeConf.getId();
 
-            KeyPair keyPair = RsaEncryptionUtil.generateKeyPair();
-            publicKeys.put(nodeId, keyPair.getPublic());
-            privateKeys.put(nodeId, keyPair.getPrivate());
-
-            allNodeKeyPairs.put(nodeId, keyPair);
-            Logger.log("Successfully generated key pair for : " + nodeId, LogLevel.Success);
+            generateAndRegisterKeys(nodeId);
+            Logger.log("Successfully generated key pairs for : " + nodeId, LogLevel.Success);
 
             
         }
-        Logger.log("Finished generating RSA key pairs for the nodes and assigned", LogLevel.Status);
+        Logger.log("Finished generating key pairs for the nodes and assigned", LogLevel.Status);
+    }
+
+    // one node's keys of every suite, in memory only, leaves the other nodes' keys alone
+    public static void generateAndRegisterKeys(String nodeId) throws NoSuchAlgorithmException {
+        for (CipherSuite suite : CipherSuite.values()) {
+            KeyPair keyPair = suite.generateKeyPair();
+            publicKeys.get(suite).put(nodeId, keyPair.getPublic());
+            privateKeys.get(suite).put(nodeId, keyPair.getPrivate());
+
+            if (suite == CipherSuite.RSA_OAEP) {
+                allNodeKeyPairs.put(nodeId, keyPair);
+            }
+        }
+    }
+
+    public static void removeKeys(String nodeId) {
+        for (CipherSuite suite : CipherSuite.values()) {
+            publicKeys.get(suite).remove(nodeId);
+            privateKeys.get(suite).remove(nodeId);
+        }
+        allNodeKeyPairs.remove(nodeId);
     }
 
     // lets try with file creation
@@ -59,72 +86,104 @@ public class NodeKeyRegistry {
             Files.createDirectories(dirPath);
         }
 
-        //now we load the public keys to a file
-        Map<String, String> pubKeysBase64 = new HashMap<>();
+        for (CipherSuite suite : CipherSuite.values()) {
+            //now we load the public keys to a file
+            Map<String, String> pubKeysBase64 = new HashMap<>();
 
-        for (Map.Entry<String, PublicKey> entry : publicKeys.entrySet()) {
-            pubKeysBase64.put(entry.getKey(), Base64.getEncoder().encodeToString(entry.getValue().getEncoded()));
-        }
+            for (Map.Entry<String, PublicKey> entry : publicKeys.get(suite).entrySet()) {
+                pubKeysBase64.put(entry.getKey(), Base64.getEncoder().encodeToString(entry.getValue().getEncoded()));
+            }
 
-        String publicKeysJson = new GsonBuilder().setPrettyPrinting().create().toJson(pubKeysBase64);
-        Files.writeString(dirPath.resolve("public_keys.json"), publicKeysJson);
-        Logger.log("The public keys are saved to the jar ", LogLevel.Status);
-
-        // now we create special ones for the nodes themselves
-        PrivateKey privateKey = privateKeys.get(nodeIdToSavePrivKey);
-        if(privateKey != null) {
-            Files.write(dirPath.resolve(nodeIdToSavePrivKey + "_private.key"), privateKey.getEncoded());
-            Logger.log("Saved private key for " + nodeIdToSavePrivKey + " to " + nodeIdToSavePrivKey + "_private.key", LogLevel.Info);
-        } else {
-            Logger.log("Warning: Private key for " + nodeIdToSavePrivKey + " not found for saving.", LogLevel.Warn);
+            String publicKeysJson = new GsonBuilder().setPrettyPrinting().create().toJson(pubKeysBase64);
+            Files.writeString(dirPath.resolve(suite.getPublicKeysFile()), publicKeysJson);
+            Logger.log("The " + suite.getShortName() + " public keys are saved to " + suite.getPublicKeysFile(), LogLevel.Status);
+
+            // now we create special ones for the nodes themselves
+            PrivateKey privateKey = privateKeys.get(suite).get(nodeIdToSavePrivKey);
+            if(privateKey != null) {
+                Files.write(dirPath.resolve(suite.privateKeyFile(nodeIdToSavePrivKey)), privateKey.getEncoded());
+                Logger.log("Saved private key for " + nodeIdToSavePrivKey + " to " + suite.privateKeyFile(nodeIdToSavePrivKey), LogLevel.Info);
+            } else {
+                Logger.log("Warning: " + suite.getShortName() + " private key for " + nodeIdToSavePrivKey + " not found for saving.", LogLevel.Warn);
+            }
         }
     }
 
     //keys hopefully generated , file created, now load
     public static void loadKeysFromFile(String nodeId, String keysDirPath) throws IOException, NoSuchAlgorithmException, java.security.spec.InvalidKeySpecException {
-        // Clear current keys first
-        publicKeys.clear();
-        privateKeys.clear();
+        loadKeysFromFile(List.of(nodeId), keysDirPath);
+    }
 
+    // the public keys plus the private keys of every node this process hosts. Adds to what is there, nodes
+    // loaded before keep their private keys, so it can be called again for another node while others run
+    public static void loadKeysFromFile(Collection<String> nodeIds, String keysDirPath) throws IOException, NoSuchAlgorithmException, java.security.spec.InvalidKeySpecException {
         Path dirPath = Paths.get(keysDirPath);
 
-        // Load all public keys
-        Path pubKeysPath = dirPath.resolve("public_keys.json");
-        if (Files.exists(pubKeysPath)) {
-            String publicKeysJson = Files.readString(pubKeysPath);
-            Map<String, String> pubKeysBase64 = new GsonBuilder().create().fromJson(publicKeysJson, Map.class);
-            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            for (Map.Entry<String, String> entry : pubKeysBase64.entrySet()) {
-                X509EncodedKeySpec pubKeySpec = new X509EncodedKeySpec(Base64.getDecoder().decode(entry.getValue()));
-                publicKeys.put(entry.getKey(), keyFactory.generatePublic(pubKeySpec));
+        for (CipherSuite suite : CipherSuite.values()) {
+            // rsa keys are required, x25519 ones are optional so key dirs from before keep working
+            boolean required = suite == CipherSuite.RSA_OAEP;
+            KeyFactory keyFactory = KeyFactory.getInstance(suite.getKeyAlgorithm());
+
+            // Load all public keys
+            Path pubKeysPath = dirPath.resolve(suite.getPublicKeysFile());
+            if (Files.exists(pubKeysPath)) {
+                String publicKeysJson = Files.readString(pubKeysPath);
+                Map<String, String> pubKeysBase64 = new GsonBuilder().create().fromJson(publicKeysJson, Map.class);
+                for (Map.Entry<String, String> entry : pubKeysBase64.entrySet()) {
+                    X509EncodedKeySpec pubKeySpec = new X509EncodedKeySpec(Base64.getDecoder().decode(entry.getValue()));
+                    publicKeys.get(suite).put(entry.getKey(), keyFactory.generatePublic(pubKeySpec));
+                }
+                // replaced in place rather than cleared first, running nodes keep finding their peers
+                publicKeys.get(suite).keySet().retainAll(pubKeysBase64.keySet());
+                Logger.log("Loaded all public keys from " + suite.getPublicKeysFile(), LogLevel.Info);
+            } else if (required) {
+                Logger.log( "Error: " + suite.getPublicKeysFile() + " not found at " + pubKeysPath + ". Cannot load public keys.", LogLevel.Error);
+                throw new IOException("Public keys file not found.");
+            } else {
+                Logger.log("No " + suite.getPublicKeysFile() + " at " + pubKeysPath + ", " + suite.getShortName() + " suite disabled", LogLevel.Warn);
+                continue;
+            }
+
+            // now we load THESE(THE ONES thats usin it rn for enncryptin) nodes' private keys
+            for (String nodeId : nodeIds) {
+                Path privateKeyPath = dirPath.resolve(suite.privateKeyFile(nodeId));
+                if (Files.exists(privateKeyPath)) {
+                    byte[] privateKeyBytes = Files.readAllBytes(privateKeyPath);
+                    PKCS8EncodedKeySpec privKeySpec = new PKCS8EncodedKeySpec(privateKeyBytes);
+                    privateKeys.get(suite).put(nodeId, keyFactory.generatePrivate(privKeySpec));
+                    Logger.log("Loaded private key for " + nodeId + " from " + suite.privateKeyFile(nodeId), LogLevel.Info);
+                } else if (required) {
+                    Logger.log("Error: Private key file for " + nodeId + " not found at " + privateKeyPath + ". Cannot load private key.", LogLevel.Error);
+                    throw new IOException("Private key file for " + nodeId + " not found.");
+                } else {
+                    Logger.log("No " + suite.getShortName() + " private key for " + nodeId + " at " + privateKeyPath, LogLevel.Warn);
+                }
             }
-            Logger.log("Loaded all public keys from public_keys.json", LogLevel.Info);
-        } else {
-            Logger.log( "Error: public_keys.json not found at " + pubKeysPath + ". Cannot load public keys.", LogLevel.Error);
-            throw new IOException("Public keys file not found.");
         }
+        Logger.log("Keys loaded successfully for nodes: " + nodeIds, LogLevel.Status);
+    }
 
-        // now we load THIS(THE ONE thats usin it rn for enncryptin) node's private key
-        Path privateKeyPath = dirPath.resolve(nodeId + "_private.key");
-        if (Files.exists(privateKeyPath)) {
-            byte[] privateKeyBytes = Files.readAllBytes(privateKeyPath);
-            PKCS8EncodedKeySpec privKeySpec = new PKCS8EncodedKeySpec(privateKeyBytes);
-            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            privateKeys.put(nodeId, keyFactory.generatePrivate(privKeySpec));
-            Logger.log("Loaded private key for " + nodeId + " from " + nodeId + "_private.key", LogLevel.Info);
-        } else {
-            Logger.log("Error: Private key file for " + nodeId + " not found at " + privateKeyPath + ". Cannot load private key.", LogLevel.Error);
-            throw new IOException("Private key file for " + nodeId + " not found.");
+    private static void clear() {
+        for (CipherSuite suite : CipherSuite.values()) {
+            publicKeys.get(suite).clear();
+            privateKeys.get(suite).clear();
         }
-        Logger.log("Keys loaded successfully for node: " + nodeId, LogLevel.Status);
     }
 
     public static PublicKey getPublicKey(String nodeId) {
-        return publicKeys.get(nodeId);
+        return getPublicKey(nodeId, CipherSuite.RSA_OAEP);
     }
 
     public static PrivateKey getPrivateKey(String nodeId) {
-        return privateKeys.get(nodeId);
+        return getPrivateKey(nodeId, CipherSuite.RSA_OAEP);
+    }
+
+    public static PublicKey getPublicKey(String nodeId, CipherSuite suite) {
+        return publicKeys.get(suite).get(nodeId);
+    }
+
+    public static PrivateKey getPrivateKey(String nodeId, CipherSuite suite) {
+        return privateKeys.get(suite).get(nodeId);
     }
 
     public static KeyPair getKeyPair(String nodeId) {
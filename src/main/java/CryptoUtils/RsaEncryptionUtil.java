@@ -1,9 +1,5 @@
 package CryptoUtils;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import java.security.*;
 import java.util.Base64;
 
@@ -12,8 +8,6 @@ public class RsaEncryptionUtil {
     private static final String ALGORITHM = "RSA";
     private static final int KEY_SIZE = 2048;
 
-    private static final String CIPHER_TRANSFORMATION = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
-
     //first we generate the key that will link the AES key pairs between the cleint and mix/dest nodes
     public static KeyPair generateKeyPair() throws NoSuchAlgorithmException {
         KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(ALGORITHM);
@@ -21,16 +15,13 @@ public class RsaEncryptionUtil {
         return keyPairGenerator.generateKeyPair();
     }
 
-    public static byte[] encrypt(byte[] plainText, PublicKey publicKey) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
-        cipher.init(Cipher.ENCRYPT_MODE, publicKey);
-        return cipher.doFinal(plainText);
+    // OAEP with SHA-256, the per thread cipher lives in CryptoEngine
+    public static byte[] encrypt(byte[] plainText, PublicKey publicKey) throws GeneralSecurityException {
+        return CryptoEngine.rsaEncrypt(plainText, publicKey);
     }
 
-    public static byte[] decrypt(byte[] cipherText, PrivateKey privateKey) throws NoSuchPaddingException, NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException, InvalidKeyException {
-        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
-        cipher.init(Cipher.DECRYPT_MODE, privateKey);
-        return cipher.doFinal(cipherText);
+    public static byte[] decrypt(byte[] cipherText, PrivateKey privateKey) throws GeneralSecurityException {
+        return CryptoEngine.rsaDecrypt(cipherText, privateKey);
     }
 
     public static String publicKeyToBase64(PublicKey publicKey) {
@@ -0,0 +1,354 @@
+package CryptoUtils;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Fixed size onion packet in the spirit of Sphinx. Every hop sees exactly the same number of bytes, no
+ * matter how many layers are left, and peels its layer inside the same array.
+ *
+ *   header  = keyBlock | mac(16) | routing(MAX_HOPS * slot)
+ *   slot    = nextHopId(32) | nextKeyBlock | nextMac(16)
+ *   payload = PAYLOAD_BYTES, one AES-CTR layer per hop, innermost is tag(16) | length(4) | message | zero padding
+ *
+ * The key block is whatever the cipher suite needs to hand the hop its key: 256 bytes of RSA-OAEP or a
+ * 32 byte X25519 ephemeral key, so the two suites give two packet sizes and the size says which one it is.
+ *
+ * A hop recovers its key, checks the mac over the routing block, decrypts the routing block, reads the
+ * first slot and shifts everything left by one slot. The freed tail is filled with keystream, which the
+ * client precomputed as "filler" so the next hop's mac still matches. An all zero next hop id means this
+ * hop is the destination.
+ *
+ * The payload layers are plain CTR, so a mix can flip bits in it and they come out flipped at the other end
+ * (a tagging attack). The tag is an HMAC over everything after it in the innermost payload, keyed from the
+ * destination's hop key, and the destination's peel throws when it does not match: a packet touched anywhere
+ * on the way is dropped instead of delivered with the mark in it.
+ */
+public final class SphinxPacket {
+
+    public static final int MAX_HOPS = 8;
+    public static final int NODE_ID_BYTES = 32;
+    public static final int MAC_BYTES = 16;
+    public static final int PAYLOAD_BYTES = 2048;
+
+    public static final int MAX_MESSAGE_BYTES = PAYLOAD_BYTES - MAC_BYTES - 4;
+
+    // offsets for one suite's key block size
+    private static final class Layout {
+        final CipherSuite suite;
+        final int keyBlockBytes;
+        final int slotBytes;
+        final int routingBytes;
+        final int headerBytes;
+        final int packetBytes;
+
+        Layout(CipherSuite suite) {
+            this.suite = suite;
+            this.keyBlockBytes = suite.getKeyBlockBytes();
+            this.slotBytes = NODE_ID_BYTES + keyBlockBytes + MAC_BYTES;
+            this.routingBytes = MAX_HOPS * slotBytes;
+            this.headerBytes = keyBlockBytes + MAC_BYTES + routingBytes;
+            this.packetBytes = headerBytes + PAYLOAD_BYTES;
+        }
+    }
+
+    private static final Map<CipherSuite, Layout> layouts = new EnumMap<>(CipherSuite.class);
+
+    static {
+        for (CipherSuite suite : CipherSuite.values()) {
+            layouts.put(suite, new Layout(suite));
+        }
+    }
+
+    private static final byte[] HEADER_LABEL = "sphinx-header".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MAC_LABEL = "sphinx-mac".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PAYLOAD_LABEL = "sphinx-payload".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PAYLOAD_MAC_LABEL = "sphinx-payload-mac".getBytes(StandardCharsets.US_ASCII);
+    private static final IvParameterSpec ZERO_IV = new IvParameterSpec(new byte[16]); // every key is used once
+
+    private static final SecureRandom random = new SecureRandom();
+
+    // the ctr cipher, the mac and the scratch arrays are reused so a peel doesn't allocate per packet,
+    // lent per call on virtual threads
+    private static final ThreadContexts<Context> contexts = new ThreadContexts<>(Context::new);
+
+    private SphinxPacket() {}
+
+    public static int packetBytes(CipherSuite suite) {
+        return layouts.get(suite).packetBytes;
+    }
+
+    // which suite built the packet, null if the size matches none
+    public static CipherSuite suiteOf(byte[] packet) {
+        Layout layout = packet == null ? null : layoutFor(packet.length);
+        return layout == null ? null : layout.suite;
+    }
+
+    private static Layout layoutFor(int packetBytes) {
+        for (Layout layout : layouts.values()) {
+            if (layout.packetBytes == packetBytes) {
+                return layout;
+            }
+        }
+        return null;
+    }
+
+    public static byte[] build(byte[] message, List<String> path, Map<String, PublicKey> publicKeys) throws GeneralSecurityException {
+        return build(message, path, publicKeys, CipherSuite.RSA_OAEP);
+    }
+
+    public static byte[] build(byte[] message, List<String> path, Map<String, PublicKey> publicKeys, CipherSuite suite) throws GeneralSecurityException {
+        return build(message, path, publicKeys, suite, null);
+    }
+
+    // layerKeys indexed like path, e.g. out of a LayerKeyPool; null makes them here
+    public static byte[] build(byte[] message, List<String> path, Map<String, PublicKey> publicKeys, CipherSuite suite,
+                               CipherSuite.LayerKey[] layerKeys) throws GeneralSecurityException {
+        Context ctx = contexts.acquire();
+        try {
+            return build(ctx, message, path, publicKeys, suite, layerKeys);
+        } finally {
+            contexts.release(ctx);
+        }
+    }
+
+    private static byte[] build(Context ctx, byte[] message, List<String> path, Map<String, PublicKey> publicKeys, CipherSuite suite,
+                                CipherSuite.LayerKey[] layerKeys) throws GeneralSecurityException {
+        int hops = path.size();
+        if (hops < 1 || hops > MAX_HOPS) {
+            throw new IllegalArgumentException("Sphinx packets support 1 to " + MAX_HOPS + " hops, got " + hops);
+        }
+        if (message.length > MAX_MESSAGE_BYTES) {
+            throw new IllegalArgumentException("Message of " + message.length + " bytes does not fit a " + MAX_MESSAGE_BYTES + " byte sphinx payload");
+        }
+
+        Layout layout = layouts.get(suite);
+        int slotBytes = layout.slotBytes;
+        int routingBytes = layout.routingBytes;
+        int keyBlockBytes = layout.keyBlockBytes;
+
+        byte[][] wrappedKeys = new byte[hops][];
+        byte[][] headerKeys = new byte[hops][];
+        byte[][] macKeys = new byte[hops][];
+        byte[][] payloadKeys = new byte[hops][];
+        byte[][] streams = new byte[hops][];
+        byte[] payloadMacKey = null;
+
+        for (int i = 0; i < hops; i++) {
+            PublicKey publicKey = publicKeys.get(path.get(i));
+            if (publicKey == null) {
+                throw new InvalidKeyException("Public key not found for node: " + path.get(i));
+            }
+
+            CipherSuite.LayerKey layerKey = layerKeys != null ? layerKeys[i] : suite.newLayerKey(publicKey);
+            byte[] hopKey = layerKey.getSecret();
+            wrappedKeys[i] = layerKey.getKeyBlock();
+            if (wrappedKeys[i].length != keyBlockBytes) {
+                throw new InvalidKeyException("Sphinx packets need a " + keyBlockBytes + " byte " + suite.getShortName() + " key block for " + path.get(i));
+            }
+
+            headerKeys[i] = ctx.derive(hopKey, HEADER_LABEL);
+            macKeys[i] = ctx.derive(hopKey, MAC_LABEL);
+            payloadKeys[i] = ctx.derive(hopKey, PAYLOAD_LABEL);
+            if (i == hops - 1) {
+                payloadMacKey = ctx.derive(hopKey, PAYLOAD_MAC_LABEL);
+            }
+
+            streams[i] = new byte[routingBytes + slotBytes];
+            ctx.ctr(headerKeys[i], streams[i], 0, streams[i].length);
+        }
+
+        // filler: what the shifted in tail of the routing block will look like after each hop
+        byte[] filler = new byte[0];
+        for (int i = 0; i < hops - 1; i++) {
+            byte[] next = Arrays.copyOf(filler, filler.length + slotBytes);
+            xor(next, 0, streams[i], routingBytes - filler.length, next.length);
+            filler = next;
+        }
+
+        // innermost routing block, the destination reads an all zero next hop
+        byte[] routing = new byte[routingBytes];
+        int openBytes = routingBytes - filler.length;
+        random.nextBytes(routing);
+        Arrays.fill(routing, 0, NODE_ID_BYTES, (byte) 0);
+        xor(routing, 0, streams[hops - 1], 0, openBytes);
+        System.arraycopy(filler, 0, routing, openBytes, filler.length);
+        byte[] mac = ctx.mac(macKeys[hops - 1], routing, 0, routingBytes);
+
+        for (int i = hops - 2; i >= 0; i--) {
+            byte[] outer = new byte[routingBytes];
+            writeNodeId(path.get(i + 1), outer, 0);
+            System.arraycopy(wrappedKeys[i + 1], 0, outer, NODE_ID_BYTES, keyBlockBytes);
+            System.arraycopy(mac, 0, outer, NODE_ID_BYTES + keyBlockBytes, MAC_BYTES);
+            System.arraycopy(routing, 0, outer, slotBytes, routingBytes - slotBytes);
+            xor(outer, 0, streams[i], 0, routingBytes);
+
+            routing = outer;
+            mac = ctx.mac(macKeys[i], routing, 0, routingBytes);
+        }
+
+        byte[] packet = new byte[layout.packetBytes];
+        System.arraycopy(wrappedKeys[0], 0, packet, 0, keyBlockBytes);
+        System.arraycopy(mac, 0, packet, keyBlockBytes, MAC_BYTES);
+        System.arraycopy(routing, 0, packet, keyBlockBytes + MAC_BYTES, routingBytes);
+
+        int payloadStart = layout.headerBytes;
+        ByteBuffer.wrap(packet, payloadStart + MAC_BYTES, 4).putInt(message.length);
+        System.arraycopy(message, 0, packet, payloadStart + MAC_BYTES + 4, message.length);
+        byte[] tag = ctx.mac(payloadMacKey, packet, payloadStart + MAC_BYTES, PAYLOAD_BYTES - MAC_BYTES);
+        System.arraycopy(tag, 0, packet, payloadStart, MAC_BYTES);
+        for (int i = hops - 1; i >= 0; i--) {
+            ctx.ctr(payloadKeys[i], packet, layout.headerBytes, PAYLOAD_BYTES);
+        }
+        return packet;
+    }
+
+    /**
+     * Peels this hop's layer inside the packet array. Returns the next hop id, or null when this node
+     * is the destination and {@link #openPayload(byte[])} can be called, the payload tag has been
+     * checked by then. The private key has to be the node's key for the packet's suite, see
+     * {@link #suiteOf(byte[])}.
+     */
+    public static String peel(byte[] packet, PrivateKey privateKey) throws GeneralSecurityException {
+        Layout layout = packet == null ? null : layoutFor(packet.length);
+        if (layout == null) {
+            throw new GeneralSecurityException("Not a sphinx packet size: " + (packet == null ? 0 : packet.length) + " bytes");
+        }
+        Context ctx = contexts.acquire();
+        try {
+            return peel(ctx, layout, packet, privateKey);
+        } finally {
+            contexts.release(ctx);
+        }
+    }
+
+    private static String peel(Context ctx, Layout layout, byte[] packet, PrivateKey privateKey) throws GeneralSecurityException {
+        int keyBlockBytes = layout.keyBlockBytes;
+        int slotBytes = layout.slotBytes;
+        int headerBytes = layout.headerBytes;
+
+        byte[] hopKey = layout.suite.openLayerKey(Arrays.copyOf(packet, keyBlockBytes), privateKey);
+
+        byte[] macKey = ctx.derive(hopKey, MAC_LABEL);
+        if (!ctx.macMatches(macKey, packet, keyBlockBytes + MAC_BYTES, layout.routingBytes, packet, keyBlockBytes)) {
+            throw new GeneralSecurityException("Sphinx header mac mismatch");
+        }
+
+        // decrypt the routing block in place, then shift it one slot left and let the keystream fill the tail
+        int routingStart = keyBlockBytes + MAC_BYTES;
+        Cipher headerCipher = ctx.startCtr(ctx.derive(hopKey, HEADER_LABEL));
+        headerCipher.update(packet, routingStart, layout.routingBytes, packet, routingStart);
+
+        String nextHopId = readNodeId(packet, routingStart);
+
+        System.arraycopy(packet, slotBytes, packet, 0, headerBytes - slotBytes);
+        Arrays.fill(packet, headerBytes - slotBytes, headerBytes, (byte) 0);
+        headerCipher.doFinal(packet, headerBytes - slotBytes, slotBytes, packet, headerBytes - slotBytes);
+
+        ctx.ctr(ctx.derive(hopKey, PAYLOAD_LABEL), packet, headerBytes, PAYLOAD_BYTES);
+        if (nextHopId == null && !ctx.macMatches(ctx.derive(hopKey, PAYLOAD_MAC_LABEL),
+                packet, headerBytes + MAC_BYTES, PAYLOAD_BYTES - MAC_BYTES, packet, headerBytes)) {
+            throw new GeneralSecurityException("Sphinx payload was tampered with or not for this node");
+        }
+        return nextHopId;
+    }
+
+    // only valid after the destination peeled the last layer, peel checked the tag
+    public static byte[] openPayload(byte[] packet) throws GeneralSecurityException {
+        Layout layout = packet == null ? null : layoutFor(packet.length);
+        if (layout == null) {
+            throw new GeneralSecurityException("Not a sphinx packet size: " + (packet == null ? 0 : packet.length) + " bytes");
+        }
+        int headerBytes = layout.headerBytes;
+
+        int length = ByteBuffer.wrap(packet, headerBytes + MAC_BYTES, 4).getInt();
+        if (length < 0 || length > MAX_MESSAGE_BYTES) {
+            throw new GeneralSecurityException("Bad sphinx payload length " + length);
+        }
+        int start = headerBytes + MAC_BYTES + 4;
+        return Arrays.copyOfRange(packet, start, start + length);
+    }
+
+    private static void writeNodeId(String nodeId, byte[] out, int offset) {
+        byte[] id = nodeId.getBytes(StandardCharsets.UTF_8);
+        if (id.length == 0 || id.length > NODE_ID_BYTES) {
+            throw new IllegalArgumentException("Node id '" + nodeId + "' must be 1 to " + NODE_ID_BYTES + " bytes for sphinx packets");
+        }
+        System.arraycopy(id, 0, out, offset, id.length);
+    }
+
+    private static String readNodeId(byte[] in, int offset) {
+        int length = 0;
+        while (length < NODE_ID_BYTES && in[offset + length] != 0) {
+            length++;
+        }
+        return length == 0 ? null : new String(in, offset, length, StandardCharsets.UTF_8);
+    }
+
+    private static void xor(byte[] target, int targetOffset, byte[] stream, int streamOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            target[targetOffset + i] ^= stream[streamOffset + i];
+        }
+    }
+
+    private static final class Context {
+        private final Cipher ctr;
+        private final Mac hmac;
+        private final byte[] macScratch = new byte[32];
+
+        private Context() {
+            try {
+                ctr = Cipher.getInstance("AES/CTR/NoPadding");
+                hmac = Mac.getInstance("HmacSHA256");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES-CTR or HmacSHA256 not available", e);
+            }
+        }
+
+        byte[] derive(byte[] hopKey, byte[] label) throws GeneralSecurityException {
+            hmac.init(new SecretKeySpec(hopKey, "HmacSHA256"));
+            return hmac.doFinal(label);
+        }
+
+        Cipher startCtr(byte[] key) throws GeneralSecurityException {
+            ctr.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), ZERO_IV);
+            return ctr;
+        }
+
+        // xors the keystream into the region, in place
+        void ctr(byte[] key, byte[] data, int offset, int length) throws GeneralSecurityException {
+            startCtr(key).doFinal(data, offset, length, data, offset);
+        }
+
+        byte[] mac(byte[] key, byte[] data, int offset, int length) throws GeneralSecurityException {
+            hmac.init(new SecretKeySpec(key, "HmacSHA256"));
+            hmac.update(data, offset, length);
+            return Arrays.copyOf(hmac.doFinal(), MAC_BYTES);
+        }
+
+        boolean macMatches(byte[] key, byte[] data, int offset, int length, byte[] expected, int expectedOffset) throws GeneralSecurityException {
+            hmac.init(new SecretKeySpec(key, "HmacSHA256"));
+            hmac.update(data, offset, length);
+            hmac.doFinal(macScratch, 0);
+
+            int diff = 0;
+            for (int i = 0; i < MAC_BYTES; i++) {
+                diff |= macScratch[i] ^ expected[expectedOffset + i];
+            }
+            return diff == 0;
+        }
+    }
+}
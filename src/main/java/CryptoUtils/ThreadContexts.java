@@ -0,0 +1,59 @@
+package CryptoUtils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/*
+ * Reusable JCE state (ciphers, macs, scratch arrays) per thread, for CryptoEngine and SphinxPacket. A
+ * platform thread keeps its own in a thread local. Virtual threads come and go per task and a thread
+ * local would build one per task, so they borrow from a shared queue for the length of a call and give it
+ * back; more can be out at once, only maxIdle are kept when they come back.
+ */
+final class ThreadContexts<T> {
+
+    private final ThreadLocal<T> perThread;
+    private final Supplier<T> factory;
+    private final int maxIdle;
+    private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    ThreadContexts(Supplier<T> factory) {
+        this(factory, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    ThreadContexts(Supplier<T> factory, int maxIdle) {
+        this.perThread = ThreadLocal.withInitial(factory);
+        this.factory = factory;
+        this.maxIdle = maxIdle;
+    }
+
+    // has to go back through release() on the same thread
+    T acquire() {
+        if (!Thread.currentThread().isVirtual()) {
+            return perThread.get();
+        }
+        T context = idle.poll();
+        if (context == null) {
+            return factory.get();
+        }
+        idleCount.decrementAndGet();
+        return context;
+    }
+
+    void release(T context) {
+        if (!Thread.currentThread().isVirtual()) {
+            return;
+        }
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.offer(context);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    // the platform thread's own, never lent out; for state that outlives the call
+    T ownedByThread() {
+        return perThread.get();
+    }
+}
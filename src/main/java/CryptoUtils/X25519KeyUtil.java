@@ -0,0 +1,79 @@
+package CryptoUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+// ephemeral-static X25519 agreement + HKDF-SHA256, the cheap alternative to wrapping layer keys with RSA
+public class X25519KeyUtil {
+
+    private static final String ALGORITHM = "X25519";
+    public static final int PUBLIC_KEY_BYTES = 32;
+    public static final int LAYER_KEY_BYTES = 32;
+
+    // the fixed X.509 SubjectPublicKeyInfo header in front of every raw X25519 public key
+    private static final byte[] X509_PREFIX = {0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x03, 0x21, 0x00};
+    private static final byte[] LAYER_INFO = "mixnet-layer-key".getBytes(StandardCharsets.US_ASCII);
+
+    public static KeyPair generateKeyPair() throws NoSuchAlgorithmException {
+        return KeyPairGenerator.getInstance(ALGORITHM).generateKeyPair();
+    }
+
+    // the 32 byte u coordinate, that is all that goes on the wire
+    public static byte[] rawPublicKey(PublicKey publicKey) {
+        byte[] encoded = publicKey.getEncoded();
+        return Arrays.copyOfRange(encoded, encoded.length - PUBLIC_KEY_BYTES, encoded.length);
+    }
+
+    public static PublicKey publicKeyFromRaw(byte[] raw) throws GeneralSecurityException {
+        if (raw == null || raw.length != PUBLIC_KEY_BYTES) {
+            throw new InvalidKeyException("X25519 public key must be " + PUBLIC_KEY_BYTES + " bytes");
+        }
+        byte[] encoded = Arrays.copyOf(X509_PREFIX, X509_PREFIX.length + PUBLIC_KEY_BYTES);
+        System.arraycopy(raw, 0, encoded, X509_PREFIX.length, PUBLIC_KEY_BYTES);
+        return CryptoEngine.x25519PublicKey(new X509EncodedKeySpec(encoded));
+    }
+
+    // sender side: fresh ephemeral key, returns {ephemeral public (raw), layer key}
+    public static byte[][] encapsulate(PublicKey nodePublicKey) throws GeneralSecurityException {
+        KeyPair ephemeral = generateKeyPair();
+        byte[] ephemeralRaw = rawPublicKey(ephemeral.getPublic());
+        byte[] shared = agree(ephemeral.getPrivate(), nodePublicKey);
+        return new byte[][] {ephemeralRaw, hkdf(shared, ephemeralRaw, LAYER_INFO, LAYER_KEY_BYTES)};
+    }
+
+    // node side: same layer key from our static private key and the sender's ephemeral public key
+    public static byte[] decapsulate(byte[] ephemeralRaw, PrivateKey nodePrivateKey) throws GeneralSecurityException {
+        byte[] shared = agree(nodePrivateKey, publicKeyFromRaw(ephemeralRaw));
+        return hkdf(shared, ephemeralRaw, LAYER_INFO, LAYER_KEY_BYTES);
+    }
+
+    // the jdk rejects low order points here, so an all zero secret never comes out
+    private static byte[] agree(PrivateKey privateKey, PublicKey publicKey) throws GeneralSecurityException {
+        return CryptoEngine.x25519Agree(privateKey, publicKey);
+    }
+
+    // RFC 5869 with HMAC-SHA256
+    public static byte[] hkdf(byte[] inputKey, byte[] salt, byte[] info, int length) throws GeneralSecurityException {
+        Mac hmac = CryptoEngine.hmacSha256(salt == null || salt.length == 0 ? new byte[32] : salt);
+        byte[] prk = hmac.doFinal(inputKey);
+
+        hmac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        byte[] out = new byte[length];
+        byte[] block = new byte[0];
+        int written = 0;
+        for (int counter = 1; written < length; counter++) {
+            hmac.update(block);
+            hmac.update(info);
+            hmac.update((byte) counter);
+            block = hmac.doFinal();
+            int n = Math.min(block.length, length - written);
+            System.arraycopy(block, 0, out, written, n);
+            written += n;
+        }
+        return out;
+    }
+}
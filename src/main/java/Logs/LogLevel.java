@@ -1,10 +1,21 @@
 package Logs;
 
+// severity decides what passes mixnet.log.level; Status and Success are milestones, they rank with Info
 public enum LogLevel {
-    Warn,
-    Error,
-    Info,
-    Debug,
-    Status,
-    Success,
-}
\ No newline at end of file
+    Warn(3),
+    Error(4),
+    Info(1),
+    Debug(0),
+    Status(2),
+    Success(2);
+
+    private final int severity;
+
+    LogLevel(int severity) {
+        this.severity = severity;
+    }
+
+    public int getSeverity() {
+        return severity;
+    }
+}
@@ -1,7 +1,27 @@
 package Logs;
 
-import java.text.SimpleDateFormat;
+import Code.Settings;
 
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/*
+ * Callers only check the level and drop a line into a ring of preallocated slots, one "Logger" thread
+ * formats and prints them in batches, so no thread waits on the stdout lock. When the ring is full the
+ * line is dropped and counted, the writer reports how many it lost. Below mixnet.log.level nothing is
+ * built at all, as long as the call site uses the pattern or Supplier overloads.
+ *
+ *   mixnet.log.level   debug | info | warn | error | off (default info)
+ *   mixnet.log.buffer  slots in the ring, rounded up to a power of two (default 8192)
+ *   mixnet.log.async   false prints on the calling thread like before
+ */
 public class Logger {
 
     public static final String RESET = "\u001B[0m";
@@ -11,26 +31,234 @@ public class Logger {
     public static final String SUCCESS = "\u001B[34m";
     public static final String DEBUG = "\u001B[35m";
     public static final String STATUS = "\u001B[36m";
-    private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    private static final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
 
-    public static void log(String msg, LogLevel level) {
-        String threadName = Thread.currentThread().getName();
-        String timestamp = dateFormat.format(System.currentTimeMillis());
-        String messagePrefix = "[" + timestamp + "][ " + threadName + "] " + level + ": ";
+    private static final int OFF = Integer.MAX_VALUE;
+    private static final int MAX_LINES_PER_WRITE = 256;
+
+    private static volatile int minSeverity = parseLevel(Settings.getString("mixnet.log.level", "info"));
+    private static final boolean async = !"false".equalsIgnoreCase(Settings.getString("mixnet.log.async", "true"));
+
+    // bounded multi producer ring: a slot is free for the producer at position p when its sequence is p,
+    // ready for the writer when it is p + 1, the writer hands it back by setting p + capacity
+    private static final int capacity = ringCapacity(Settings.getString("mixnet.log.buffer", "8192"));
+    private static final int mask = capacity - 1;
+    private static final Slot[] slots = new Slot[capacity];
+    private static final AtomicLongArray sequences = new AtomicLongArray(capacity);
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head; // writer thread only
+    private static volatile long printed; // head as of the last print, for flush()
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong written = new AtomicLong();
+    private static volatile Thread writer;
 
-        switch (level) {
-            case Info -> messagePrefix = INFO + messagePrefix + RESET;
-            case Warn -> messagePrefix = WARN + messagePrefix + RESET;
-            case Error -> messagePrefix = ERROR + messagePrefix + RESET;
-            case Debug -> messagePrefix = DEBUG + messagePrefix + RESET;
-            case Status -> messagePrefix = STATUS + messagePrefix + RESET;
-            case Success -> messagePrefix = SUCCESS + messagePrefix + RESET;
+    static {
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+            sequences.set(i, i);
         }
+        if (async) {
+            writer = new Thread(Logger::runWriter, "Logger");
+            writer.setDaemon(true);
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(Logger::flush, "Logger-flush"));
+        }
+    }
+
+    public static boolean isEnabled(LogLevel level) {
+        return level.getSeverity() >= minSeverity;
+    }
 
-        System.out.println(messagePrefix + msg);
+    public static void log(String msg, LogLevel level) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        if (!async) {
+            printLine(System.currentTimeMillis(), Thread.currentThread().getName(), level, msg);
+            return;
+        }
+        enqueue(msg, level);
     }
 
     public static void log(String msg) {
         log(msg, LogLevel.Info);
     }
-}
\ No newline at end of file
+
+    // for lines that are expensive to build (payload dumps, toString of stats)
+    public static void log(Supplier<String> msg, LogLevel level) {
+        if (isEnabled(level)) {
+            log(msg.get(), level);
+        }
+    }
+
+    // "{}" in the pattern is replaced by the arguments in order, only when the level is on
+    public static void log(String pattern, LogLevel level, Object arg) {
+        if (isEnabled(level)) {
+            log(format(pattern, arg, null, null, 1), level);
+        }
+    }
+
+    public static void log(String pattern, LogLevel level, Object arg1, Object arg2) {
+        if (isEnabled(level)) {
+            log(format(pattern, arg1, arg2, null, 2), level);
+        }
+    }
+
+    public static void log(String pattern, LogLevel level, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(level)) {
+            log(format(pattern, arg1, arg2, arg3, 3), level);
+        }
+    }
+
+    public static void setLevel(String level) {
+        minSeverity = parseLevel(level);
+    }
+
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public static long getWrittenCount() {
+        return written.get();
+    }
+
+    // waits (up to a second) until everything logged so far is printed, for shutdown and benchmarks
+    public static void flush() {
+        if (!async) {
+            return;
+        }
+        long target = tail.get();
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        while (printed < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    private static void enqueue(String msg, LogLevel level) {
+        long position;
+        Slot slot;
+        while (true) {
+            position = tail.get();
+            int index = (int) (position & mask);
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slot = slots[index];
+                    break;
+                }
+            } else if (sequence < position) {
+                dropped.incrementAndGet(); // ring is full, never block the caller
+                return;
+            }
+            // else another producer took this position, go again
+        }
+        slot.millis = System.currentTimeMillis();
+        slot.thread = Thread.currentThread().getName();
+        slot.level = level;
+        slot.msg = msg;
+        sequences.set((int) (position & mask), position + 1);
+    }
+
+    private static void runWriter() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        long reportedDrops = 0;
+        while (true) {
+            int lines = 0;
+            while (lines < MAX_LINES_PER_WRITE) {
+                int index = (int) (head & mask);
+                if (sequences.get(index) != head + 1) {
+                    break;
+                }
+                Slot slot = slots[index];
+                appendLine(out, slot.millis, slot.thread, slot.level, slot.msg);
+                slot.msg = null;
+                slot.thread = null;
+                sequences.set(index, head + capacity);
+                head++;
+                lines++;
+            }
+
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                appendLine(out, System.currentTimeMillis(), "Logger", LogLevel.Warn, "Logger ring was full, dropped " + (drops - reportedDrops) + " lines (" + drops + " in total)");
+                reportedDrops = drops;
+            }
+
+            if (out.length() > 0) {
+                PrintStream stdout = System.out; // looked up every time, benchmarks swap it
+                stdout.print(out);
+                stdout.flush();
+                written.addAndGet(lines);
+                out.setLength(0);
+            }
+            printed = head;
+            if (lines == 0) {
+                LockSupport.parkNanos(1_000_000);
+            }
+        }
+    }
+
+    private static void printLine(long millis, String thread, LogLevel level, String msg) {
+        StringBuilder line = new StringBuilder(msg == null ? 64 : msg.length() + 64);
+        appendLine(line, millis, thread, level, msg);
+        System.out.print(line);
+        written.incrementAndGet();
+    }
+
+    private static void appendLine(StringBuilder out, long millis, String thread, LogLevel level, String msg) {
+        String color = switch (level) {
+            case Info -> INFO;
+            case Warn -> WARN;
+            case Error -> ERROR;
+            case Debug -> DEBUG;
+            case Status -> STATUS;
+            case Success -> SUCCESS;
+        };
+        out.append(color).append('[');
+        dateFormat.formatTo(Instant.ofEpochMilli(millis), out);
+        out.append("][ ").append(thread).append("] ").append(level).append(": ").append(RESET).append(msg).append(System.lineSeparator());
+    }
+
+    private static String format(String pattern, Object arg1, Object arg2, Object arg3, int count) {
+        StringBuilder sb = new StringBuilder(pattern.length() + 32 * count);
+        int from = 0;
+        for (int i = 0; i < count; i++) {
+            int at = pattern.indexOf("{}", from);
+            if (at < 0) {
+                break;
+            }
+            sb.append(pattern, from, at).append(i == 0 ? arg1 : i == 1 ? arg2 : arg3);
+            from = at + 2;
+        }
+        return sb.append(pattern, from, pattern.length()).toString();
+    }
+
+    private static int parseLevel(String level) {
+        switch (level.toLowerCase(Locale.ROOT)) {
+            case "debug": return LogLevel.Debug.getSeverity();
+            case "warn": return LogLevel.Warn.getSeverity();
+            case "error": return LogLevel.Error.getSeverity();
+            case "off": return OFF;
+            default: return LogLevel.Info.getSeverity();
+        }
+    }
+
+    private static int ringCapacity(String value) {
+        int requested;
+        try {
+            requested = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            requested = 8192; // no logging here, we are still being set up
+        }
+        return Integer.highestOneBit(Math.max(2, Math.min(requested, 1 << 24)) * 2 - 1);
+    }
+
+    // the writer reads these after it sees the sequence, the sequence write publishes them
+    private static final class Slot {
+        private long millis;
+        private String thread;
+        private LogLevel level;
+        private String msg;
+    }
+}
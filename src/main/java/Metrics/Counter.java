@@ -0,0 +1,21 @@
+package Metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// only goes up, striped so hot paths on many threads don't fight over one cache line
+public class Counter {
+
+    private final LongAdder value = new LongAdder();
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+}
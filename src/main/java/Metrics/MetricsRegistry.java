@@ -0,0 +1,138 @@
+package Metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+
+/*
+ * Every counter, gauge and histogram of this process, by name and labels. Nodes look their series up once
+ * while they are built and keep the object; only code without a node to hang it on (the client's onion
+ * builder) looks up per call. Labels come as name/value pairs: histogram("x", "...", 1e-9, "node", id).
+ *
+ * Histograms go out as prometheus summaries (p50/p99/p999 plus _sum and _count), the scale turns the
+ * recorded unit into the exported one, 1e-9 for nanos to seconds.
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry GLOBAL = new MetricsRegistry();
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>(); // sorted, stable scrape output
+
+    public static MetricsRegistry global() {
+        return GLOBAL;
+    }
+
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter", 1).series.computeIfAbsent(labelString(labels), key -> new Counter());
+    }
+
+    public Histogram histogram(String name, String help, double scale, String... labels) {
+        return (Histogram) family(name, help, "summary", scale).series.computeIfAbsent(labelString(labels), key -> new Histogram());
+    }
+
+    // a counter something else already keeps (a LongAdder of its own), read at scrape time
+    public void counter(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, "counter", 1).series.put(labelString(labels), value);
+    }
+
+    // read at scrape time; a second registration under the same labels replaces the first
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, "gauge", 1).series.put(labelString(labels), value);
+    }
+
+    // a node that shuts down takes its series with it, its gauges would keep it reachable otherwise
+    public void removeSeries(String labelName, String labelValue) {
+        String match = labelName + "=\"" + escape(labelValue) + "\"";
+        for (Family family : families.values()) {
+            family.series.keySet().removeIf(labels -> labels.startsWith("{" + match + ",") || labels.startsWith("{" + match + "}")
+                    || labels.contains("," + match + ",") || labels.contains("," + match + "}"));
+        }
+    }
+
+    private Family family(String name, String help, String type, double scale) {
+        Family family = families.computeIfAbsent(name, key -> new Family(help, type, scale));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + family.type + ", not a " + type);
+        }
+        return family;
+    }
+
+    // text exposition format 0.0.4
+    public void writePrometheus(StringBuilder out) {
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            if (family.series.isEmpty()) {
+                continue;
+            }
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+                if (metric instanceof Counter) {
+                    sample(out, name, labels, ((Counter) metric).get());
+                } else if (metric instanceof DoubleSupplier) {
+                    sample(out, name, labels, ((DoubleSupplier) metric).getAsDouble());
+                } else {
+                    Histogram histogram = (Histogram) metric;
+                    for (double q : QUANTILES) {
+                        sample(out, name, withLabel(labels, "quantile", Double.toString(q)), histogram.quantile(q) * family.scale);
+                    }
+                    sample(out, name + "_sum", labels, histogram.getSum() * family.scale);
+                    sample(out, name + "_count", labels, histogram.getCount());
+                }
+            }
+        }
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name).append(labels).append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static String withLabel(String labels, String name, String value) {
+        String label = name + "=\"" + escape(value) + "\"";
+        return labels.isEmpty() ? "{" + label + "}" : labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
+
+    private static String labelString(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels come in name/value pairs, got " + labels.length + " strings");
+        }
+        if (labels.length == 0) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class Family {
+        private final String help;
+        private final String type;
+        private final double scale;
+        private final Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+        private Family(String help, String type, double scale) {
+            this.help = help;
+            this.type = type;
+            this.scale = scale;
+        }
+    }
+}
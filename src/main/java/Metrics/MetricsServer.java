@@ -0,0 +1,60 @@
+package Metrics;
+
+import Logs.LogLevel;
+import Logs.Logger;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+// GET /metrics in prometheus text format, on the jdk's own http server, one thread (scrapes are rare)
+public class MetricsServer {
+
+    private final MetricsRegistry registry;
+    private final HttpServer server;
+
+    public MetricsServer(MetricsRegistry registry, String host, int port) throws IOException {
+        this.registry = registry;
+        this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/metrics", this::scrape);
+        server.setExecutor(null); // the server's own dispatcher thread
+    }
+
+    public void start() {
+        server.start();
+        Logger.log("Metrics on http://" + server.getAddress().getHostString() + ":" + getPort() + "/metrics", LogLevel.Status);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void scrape(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder text = new StringBuilder(16 * 1024);
+            registry.writePrometheus(text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (RuntimeException e) {
+            Logger.log("Metrics scrape failed: " + e.getMessage(), LogLevel.Error);
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+}
@@ -1,14 +1,17 @@
 package NodesConstruct;
 
 import Code.Message;
-import Code.Peer;
+import Code.Connection;
 import Code.PeerManager;
 import CryptoUtils.NodeKeyRegistry;
 import Logs.LogLevel;
 import Logs.Logger;
+import Metrics.MetricsRegistry;
 
+import java.io.IOException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.List;
 import java.util.Map;
 
 public abstract class AbstractNode extends PeerManager {
@@ -20,10 +23,14 @@ public abstract class AbstractNode extends PeerManager {
     protected PrivateKey privateKey;
     protected PublicKey publicKey;
 
+    protected final RetryQueue retryQueue;
+
     public AbstractNode(String nodeID, int listeningPort, Map<String, NodeConfig> knownNodeConfigs) {
         super(listeningPort, nodeID);
         this.nodeID = nodeID;
         this.knownNodeConfigs = knownNodeConfigs;
+        this.retryQueue = new RetryQueue(nodeID, this::connectToNode, getRuntime().getScheduler(), getRuntime().getTaskExecutor());
+        registerDeliveryMetrics(MetricsRegistry.global());
         try {
             this.privateKey = NodeKeyRegistry.getPrivateKey(nodeID);
             this.publicKey = NodeKeyRegistry.getPublicKey(nodeID);
@@ -49,31 +56,101 @@ public abstract class AbstractNode extends PeerManager {
     }
 
     @Override
-    public abstract void processReceivedMessage(Message message, Peer sender);
+    public abstract void processReceivedMessage(Message message, Connection sender);
 
     public String getNodeID() {
         return nodeID;
     }
 
-    protected void sendMessageToNode(String targetNodeId, Message message) {
+    // false if the message was dropped; a link that is down does not count, the retry queue takes those
+    protected boolean sendMessageToNode(String targetNodeId, Message message) {
         NodeConfig targetConfig = knownNodeConfigs.get(targetNodeId);
 
         if ( targetConfig == null ) {
             Logger.log("The node : " + targetNodeId + " can't find the id of the targetted node -> " + targetNodeId, LogLevel.Error);
-            return;
+            return false;
+        }
+
+        if ( retryQueue.isBackingOff(targetNodeId) ) {
+            return retryQueue.add(targetNodeId, message);
         }
 
         try {
-            Peer targetPeer = super.connectToPeer(targetConfig.getHost(), targetConfig.getPort(), targetNodeId);
+            Connection targetPeer = super.connectToPeer(targetConfig.getHost(), targetConfig.getPort(), targetNodeId);
 
-            if ( targetPeer != null ) {
-                targetPeer.sendMessage(message);
-                Logger.log("Send message to : " + targetNodeId + ", following " + message.getContent(), LogLevel.Info);
-            } else {
-                Logger.log("failed connection to " + targetNodeId, LogLevel.Error);
+            if ( !targetPeer.isWritable() ) {
+                Logger.log("Link to {} is backed up ({} queued), sending anyway", LogLevel.Debug, targetNodeId, targetPeer.getOutboundQueue().getDepth());
             }
+            if ( !targetPeer.sendMessage(message) ) {
+                if ( targetPeer.isConnected() ) {
+                    // link is up, we are just sending faster than it drains
+                    retryQueue.recordRejected();
+                    Logger.log("Message to " + targetNodeId + " was not queued", LogLevel.Warn);
+                    return false;
+                }
+                Logger.log("Link to " + targetNodeId + " went down, message goes to the retry queue", LogLevel.Info);
+                return retryQueue.add(targetNodeId, message);
+            }
+            retryQueue.recordSent();
+            Logger.log("Send message to : {}, following {}", LogLevel.Debug, targetNodeId, message.getContent());
+            return true;
+        } catch (IOException e) {
+            Logger.log("Could not reach " + targetNodeId + " (" + e.getMessage() + "), message goes to the retry queue", LogLevel.Warn);
+            return retryQueue.add(targetNodeId, message);
         } catch (Exception e) {
             Logger.log("Error sending the message to the wanted node", LogLevel.Error);
+            return false;
+        }
+    }
+
+    private Connection connectToNode(String targetNodeId) throws IOException {
+        NodeConfig targetConfig = knownNodeConfigs.get(targetNodeId);
+        if ( targetConfig == null ) {
+            throw new IOException("No config for node " + targetNodeId);
+        }
+        return super.connectToPeer(targetConfig.getHost(), targetConfig.getPort(), targetNodeId);
+    }
+
+    // messages still queued on a link that closed; only ones for a node we know how to reach again
+    @Override
+    public void onUndelivered(Connection connection, List<Message> unsent) {
+        String targetNodeId = connection.getRemoteNodeId();
+        if ( unsent.isEmpty() ) {
+            return;
+        }
+        if ( targetNodeId == null || !knownNodeConfigs.containsKey(targetNodeId) ) {
+            super.onUndelivered(connection, unsent);
+            return;
         }
+        int kept = 0;
+        for (Message message : unsent) {
+            if ( retryQueue.add(targetNodeId, message) ) {
+                kept++;
+            }
+        }
+        Logger.log("Link to " + targetNodeId + " closed with " + unsent.size() + " unsent, " + kept + " moved to the retry queue", LogLevel.Warn);
+    }
+
+    private void registerDeliveryMetrics(MetricsRegistry metrics) {
+        String help = "Outgoing messages by what became of them";
+        metrics.counter("mixnet_delivery_messages_total", help, retryQueue::getSentCount, "node", nodeID, "outcome", "sent");
+        metrics.counter("mixnet_delivery_messages_total", help, retryQueue::getRetriedCount, "node", nodeID, "outcome", "retried");
+        metrics.counter("mixnet_delivery_messages_total", help, retryQueue::getExpiredCount, "node", nodeID, "outcome", "expired");
+        metrics.counter("mixnet_delivery_messages_total", help, retryQueue::getOverflowCount, "node", nodeID, "outcome", "overflow");
+        metrics.counter("mixnet_delivery_messages_total", help, retryQueue::getRejectedCount, "node", nodeID, "outcome", "rejected");
+        metrics.gauge("mixnet_delivery_retry_waiting", "Messages waiting for a link to come back", retryQueue::getWaitingCount, "node", nodeID);
+        metrics.gauge("mixnet_outbound_queue_depth", "Messages queued on outgoing links", this::getOutboundDepth, "node", nodeID);
+    }
+
+    public RetryQueue getRetryQueue() {
+        return retryQueue;
+    }
+
+    @Override
+    public void shutdown() {
+        retryQueue.close();
+        super.shutdown();
+        MetricsRegistry.global().removeSeries("node", nodeID);
+        Logger.log("Node " + nodeID + " delivery: " + retryQueue, LogLevel.Info);
     }
 }
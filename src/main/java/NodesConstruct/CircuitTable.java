@@ -0,0 +1,207 @@
+package NodesConstruct;
+
+import Code.Message;
+import Code.Settings;
+import Logs.LogLevel;
+import Logs.Logger;
+
+import javax.crypto.SecretKey;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * circuit id -> session key (and where to send next) for the circuits running through this node.
+ * Kept in access order, so the idle ones sit at the head: lookups drop those past the idle ttl and
+ * the oldest go first once the table is full. Data that shows up before its circuit's create (both
+ * went through the shuffle upstream) is held for a short while instead of being dropped.
+ */
+public class CircuitTable {
+
+    public static class Circuit {
+        private final SecretKey sessionKey;
+        private final String nextHopId;
+        private final long nextCircuitId;
+        private long lastUsedNanos;
+
+        Circuit(SecretKey sessionKey, String nextHopId, long nextCircuitId) {
+            this.sessionKey = sessionKey;
+            this.nextHopId = nextHopId;
+            this.nextCircuitId = nextCircuitId;
+        }
+
+        public SecretKey getSessionKey() {
+            return sessionKey;
+        }
+
+        // null at the destination
+        public String getNextHopId() {
+            return nextHopId;
+        }
+
+        public long getNextCircuitId() {
+            return nextCircuitId;
+        }
+    }
+
+    private static class Pending {
+        final List<Message> messages = new ArrayList<>();
+        final long since = System.nanoTime();
+    }
+
+    private final String nodeId;
+    private final int maxCircuits;
+    private final long idleTtlNanos;
+    private final int maxPending;
+    private final long pendingTtlNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Long, Circuit> circuits = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Long, Pending> pending = new LinkedHashMap<>();
+    private int pendingCount;
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder pendingDropped = new LongAdder();
+
+    public CircuitTable(String nodeId) {
+        this(nodeId,
+                Settings.getInt("mixnet.circuit.max", 10_000),
+                Settings.getLong("mixnet.circuit.ttl.ms", 10 * 60 * 1000),
+                Settings.getInt("mixnet.circuit.pending.max", 1024),
+                Settings.getLong("mixnet.circuit.pending.ttl.ms", 15_000));
+    }
+
+    public CircuitTable(String nodeId, int maxCircuits, long idleTtlMillis, int maxPending, long pendingTtlMillis) {
+        this.nodeId = nodeId;
+        this.maxCircuits = maxCircuits;
+        this.idleTtlNanos = idleTtlMillis * 1_000_000L;
+        this.maxPending = maxPending;
+        this.pendingTtlNanos = pendingTtlMillis * 1_000_000L;
+    }
+
+    // registers the circuit and hands back any data that was waiting for it
+    public List<Message> put(long circuitId, SecretKey sessionKey, String nextHopId, long nextCircuitId) {
+        Circuit circuit = new Circuit(sessionKey, nextHopId, nextCircuitId);
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            circuit.lastUsedNanos = now;
+            expire(now);
+            if (circuits.put(circuitId, circuit) == null) {
+                created.increment();
+            }
+            while (circuits.size() > maxCircuits) {
+                Iterator<Long> oldest = circuits.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+                evicted.increment();
+            }
+
+            Pending waiting = pending.remove(circuitId);
+            if (waiting == null) {
+                return List.of();
+            }
+            pendingCount -= waiting.messages.size();
+            return waiting.messages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Circuit get(long circuitId) {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            expire(now);
+            Circuit circuit = circuits.get(circuitId);
+            if (circuit == null) {
+                misses.increment();
+                return null;
+            }
+            circuit.lastUsedNanos = now;
+            hits.increment();
+            return circuit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // false if there is no room to hold it, the caller drops it
+    public boolean holdPending(long circuitId, Message message) {
+        lock.lock();
+        try {
+            expire(System.nanoTime());
+            if (pendingCount >= maxPending) {
+                pendingDropped.increment();
+                return false;
+            }
+            pending.computeIfAbsent(circuitId, id -> new Pending()).messages.add(message);
+            pendingCount++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // heads of both maps are the oldest, so this stops at the first one still alive
+    private void expire(long now) {
+        Iterator<Circuit> idle = circuits.values().iterator();
+        while (idle.hasNext()) {
+            if (now - idle.next().lastUsedNanos < idleTtlNanos) {
+                break;
+            }
+            idle.remove();
+            expired.increment();
+        }
+
+        Iterator<Map.Entry<Long, Pending>> waiting = pending.entrySet().iterator();
+        while (waiting.hasNext()) {
+            Map.Entry<Long, Pending> entry = waiting.next();
+            if (now - entry.getValue().since < pendingTtlNanos) {
+                break;
+            }
+            waiting.remove();
+            pendingCount -= entry.getValue().messages.size();
+            pendingDropped.add(entry.getValue().messages.size());
+            Logger.log("Node " + nodeId + ": circuit " + Long.toHexString(entry.getKey()) + " never got created, dropped "
+                    + entry.getValue().messages.size() + " waiting messages", LogLevel.Warn);
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return circuits.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("circuits=%d/%d pending=%d created=%d hits=%d misses=%d expired=%d evicted=%d pendingDropped=%d",
+                    circuits.size(), maxCircuits, pendingCount, created.sum(), hits.sum(), misses.sum(), expired.sum(),
+                    evicted.sum(), pendingDropped.sum());
+        } finally {
+            lock.unlock();
+        }
+    }
+}
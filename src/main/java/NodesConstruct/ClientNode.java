@@ -2,26 +2,44 @@ package NodesConstruct;
 
 import Code.ClientMessageBuilder;
 import Code.Message;
-import Code.Peer;
+import Code.Connection;
+import Code.Settings;
+import CryptoUtils.CipherSuite;
+import CryptoUtils.LayerKeyPool;
 import CryptoUtils.NodeKeyRegistry;
 import Logs.LogLevel;
 import Logs.Logger;
 
+import java.nio.charset.StandardCharsets;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ClientNode extends AbstractNode {
 
+    // onion (default, grows per layer) or sphinx (fixed size packets)
+    private final boolean useSphinxPackets = "sphinx".equalsIgnoreCase(Settings.getString("mixnet.packet", "onion"));
+    // rsa (default) or x25519 layer keys
+    private final CipherSuite cipherSuite = CipherSuite.configured();
+    // circuit mode: one public key handshake per path, then aes only data
+    private final boolean useCircuits = Settings.getBoolean("mixnet.circuits", false);
+    // rebuilt well before the mixes' idle ttl would drop them
+    private final long circuitReuseNanos = Settings.getLong("mixnet.circuit.ttl.ms", 10 * 60 * 1000) * 1_000_000L / 2;
+    private final Map<List<String>, ClientMessageBuilder.Circuit> circuits = new ConcurrentHashMap<>();
+    // layer keys made ahead of the send, per node the paths go through
+    private final LayerKeyPool layerKeyPool = LayerKeyPool.configured(cipherSuite);
+
     public ClientNode(String nodeID, int listeningPort, Map<String, NodeConfig> knownNodeConfigs) {
         super(nodeID, listeningPort, knownNodeConfigs);
 
-        Logger.log("ClientNode is done.", LogLevel.Info);
+        Logger.log("ClientNode is done. Packet format: " + (useCircuits ? "circuit" : useSphinxPackets ? "sphinx" : "onion") + ", cipher suite: " + cipherSuite.getShortName(), LogLevel.Info);
     }
 
-    public void sendUserMessage(String content, String targetDestinationId, List<String> mixNodeIds) {
+    // false when the message could not be built or handed to the first hop (queued for a retry counts as handed)
+    public boolean sendUserMessage(String content, String targetDestinationId, List<String> mixNodeIds) {
         try {
             List<String> fullPath = new ArrayList<>();
 
@@ -34,39 +52,59 @@ public class ClientNode extends AbstractNode {
             Map<String, PublicKey> publicKeysFromPathNodes = new HashMap<>();
 
             for ( String keyForNode : fullPath ) {
-                PublicKey pkForNode = NodeKeyRegistry.getPublicKey(keyForNode);
+                PublicKey pkForNode = NodeKeyRegistry.getPublicKey(keyForNode, cipherSuite);
                 if ( pkForNode == null ) {
                     Logger.log("Client: public key was not found for this node -> " + keyForNode + " in path i think", LogLevel.Info);
-                    return;
+                    return false;
                 }
                 publicKeysFromPathNodes.put(keyForNode, pkForNode);
             }
 
-            Message onionMessage = ClientMessageBuilder.buildOnionMessage(
-                    content.getBytes("UTF-8"),
-                    fullPath,
-                    publicKeysFromPathNodes
-            );
+            if (useCircuits) {
+                return sendOverCircuit(content.getBytes(StandardCharsets.UTF_8), fullPath, publicKeysFromPathNodes);
+            }
+
+            Message onionMessage = useSphinxPackets
+                    ? ClientMessageBuilder.buildSphinxMessage(content.getBytes("UTF-8"), fullPath, publicKeysFromPathNodes, layerKeyPool)
+                    : ClientMessageBuilder.buildOnionMessage(content.getBytes("UTF-8"), fullPath, publicKeysFromPathNodes, layerKeyPool);
 
-            Logger.log( " this is the message after buildonionmessage : " + onionMessage, LogLevel.Info );
+            Logger.log(" this is the message after buildonionmessage : {}", LogLevel.Debug, onionMessage);
 
             String firstHopId = fullPath.get(0);
 
-            Logger.log("First hop is going to be at : " + firstHopId + ", with a full path of -> " + fullPath, LogLevel.Info);
+            Logger.log("First hop is going to be at : {}, with a full path of -> {}", LogLevel.Debug, firstHopId, fullPath);
 
-            sendMessageToNode(firstHopId, onionMessage);
+            return sendMessageToNode(firstHopId, onionMessage);
         } catch (Exception e) {
             e.printStackTrace();
+            return false;
+        }
+    }
+
+    private boolean sendOverCircuit(byte[] content, List<String> fullPath, Map<String, PublicKey> publicKeys) throws Exception {
+        ClientMessageBuilder.Circuit circuit = circuits.get(fullPath);
+        if (circuit == null || System.nanoTime() - circuit.getLastUsedNanos() > circuitReuseNanos) {
+            circuit = ClientMessageBuilder.buildCircuit(fullPath, publicKeys, cipherSuite);
+            if (!sendMessageToNode(fullPath.get(0), circuit.getCreateMessage())) {
+                Logger.log("Client: could not send the circuit create over " + fullPath, LogLevel.Error);
+                return false;
+            }
+            circuits.put(List.copyOf(fullPath), circuit);
         }
+
+        // the hops hold data that beats its create through the shuffle, so no need to wait for it here
+        return sendMessageToNode(fullPath.get(0), ClientMessageBuilder.buildCircuitData(content, circuit));
     }
 
     @Override
-    public void processReceivedMessage(Message message, Peer sender) {
+    public void processReceivedMessage(Message message, Connection sender) {
         Logger.log( "Received message from " + sender.getRemoteAddress() + " with msg : " + message.getContent() + " this should not be happening btw ", LogLevel.Info);
     }
 
     @Override
     public void shutdown() {
+        Logger.log("Client layer key pool: " + layerKeyPool, LogLevel.Info);
+        layerKeyPool.shutdown();
         super.shutdown();
     }
 }
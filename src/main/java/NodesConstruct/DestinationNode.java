@@ -1,32 +1,71 @@
 package NodesConstruct;
 
+import Code.ClientMessageBuilder;
+import Code.LoadProbe;
 import Code.Message;
-import Code.Peer;
+import Code.MessageType;
+import Code.Connection;
+import Code.Settings;
 import CryptoUtils.AesEncryptionUtil;
 import CryptoUtils.NodeKeyRegistry;
-import CryptoUtils.RsaEncryptionUtil;
+import CryptoUtils.SphinxPacket;
 import Logs.LogLevel;
 import Logs.Logger;
+import Metrics.Counter;
+import Metrics.Histogram;
+import Metrics.MetricsRegistry;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.security.PrivateKey;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class DestinationNode extends AbstractNode {
 
+    private final CircuitTable circuits;
+    private final Histogram onionDecrypt;
+    private final Histogram sphinxDecrypt;
+    private final Histogram circuitDecrypt;
+    private final Counter delivered;
+    // LoadGenerator probes are counted here instead of printed
+    private final LoadStats loadStats;
+    private final ScheduledFuture<?> loadReports;
+
     public DestinationNode(String nodeID, int listeningPort, Map<String, NodeConfig> knownNodeConfigs) {
         super(nodeID, listeningPort, knownNodeConfigs);
+        this.circuits = new CircuitTable(nodeID);
+        MetricsRegistry metrics = MetricsRegistry.global();
+        String help = "Time to open the last layer at the destination, by packet kind";
+        this.onionDecrypt = metrics.histogram("mixnet_destination_decrypt_seconds", help, 1e-9, "node", nodeID, "kind", "onion");
+        this.sphinxDecrypt = metrics.histogram("mixnet_destination_decrypt_seconds", help, 1e-9, "node", nodeID, "kind", "sphinx");
+        this.circuitDecrypt = metrics.histogram("mixnet_destination_decrypt_seconds", help, 1e-9, "node", nodeID, "kind", "circuit");
+        this.delivered = metrics.counter("mixnet_destination_delivered_messages_total", "Messages opened and delivered at this destination", "node", nodeID);
+        this.loadStats = new LoadStats(nodeID);
+        long reportSeconds = Math.max(1, Settings.getLong("mixnet.load.report.s", 5));
+        this.loadReports = getRuntime().getScheduler().scheduleAtFixedRate(() -> loadStats.report(false), reportSeconds, reportSeconds, TimeUnit.SECONDS);
         Logger.log("Destination peer is working ", LogLevel.Status);
     }
 
     @Override
-    public void processReceivedMessage(Message message, Peer sender) {
+    public void processReceivedMessage(Message message, Connection sender) {
+
+        Logger.log("DestinationNode {}: Message received from {}", LogLevel.Debug, this.nodeID, sender.getRemoteAddress());
 
-        Logger.log("DestinationNode " + this.nodeID + ": Message received from " + sender.getRemoteAddress(), LogLevel.Info);
-        Logger.log("DestinationNode " + this.nodeID + ": Current hop index: " + message.getCurrentHopIndex() + ", Full path: " + message.getFullPath(), LogLevel.Info);
+        if (message.getType() == MessageType.SPHINX) {
+            processSphinxPacket(message);
+            return;
+        }
+        if (message.getType() == MessageType.CIRCUIT_DATA) {
+            processCircuitData(message);
+            return;
+        }
+        Logger.log("DestinationNode {}: Current hop index: {}, Full path: {}", LogLevel.Debug, this.nodeID, message.getCurrentHopIndex(), message.getFullPath());
 
 
         if ( ( message.getCurrentHopIndex() + 1 )!= message.getFullPath().size() ) {
@@ -42,9 +81,9 @@ public class DestinationNode extends AbstractNode {
         }
 
         //decrypting again , starts from here
-        PrivateKey myPrivateKey = NodeKeyRegistry.getPrivateKey(this.nodeID);
+        PrivateKey myPrivateKey = NodeKeyRegistry.getPrivateKey(this.nodeID, message.getSuite());
         if (myPrivateKey == null) {
-            Logger.log("DestinationNode " + this.nodeID + ": Private key not found. Cannot decrypt final message.", LogLevel.Error);
+            Logger.log("DestinationNode " + this.nodeID + ": " + message.getSuite().getShortName() + " private key not found. Cannot decrypt final message.", LogLevel.Error);
             return;
         }
 
@@ -54,17 +93,16 @@ public class DestinationNode extends AbstractNode {
             return;
         }
 
-        byte[] encryptedMessageForTesting = message.getEncryptedPyloadWithUTF();
-        Logger.log("encrypted payloard after being sent from mixnode " + encryptedMessageForTesting, LogLevel.Info);
-        Logger.log("encrypted payloard after being sent from mixnode " + Arrays.toString(encryptedMessageForTesting), LogLevel.Info);
+        Logger.log(() -> "encrypted payloard after being sent from mixnode " + Arrays.toString(message.getEncryptedPyloadWithUTF()), LogLevel.Debug);
 
+        long start = System.nanoTime();
         SecretKey aesKeyForThisLayer;
         try {
-            byte[] decryptedAesKeyBytes = RsaEncryptionUtil.decrypt(encryptedAesKeyBytes, myPrivateKey);
+            byte[] decryptedAesKeyBytes = message.getSuite().openLayerKey(encryptedAesKeyBytes, myPrivateKey);
             aesKeyForThisLayer = new SecretKeySpec(decryptedAesKeyBytes, 0, decryptedAesKeyBytes.length, "AES");
             Logger.log("DestinationNode " + this.nodeID + ": AES key decrypted successfully.", LogLevel.Debug);
         } catch (Exception e) {
-            Logger.log("DestinationNode " + this.nodeID + ": Failed to decrypt AES key with RSA for final layer. Error: " + e.getMessage(), LogLevel.Error);
+            Logger.log("DestinationNode " + this.nodeID + ": Failed to recover the AES key for final layer. Error: " + e.getMessage(), LogLevel.Error);
             return;
         }
 
@@ -75,34 +113,122 @@ public class DestinationNode extends AbstractNode {
             return;
         }
 
-        Logger.log("this is the message before beging decrypted " + encryptedPayloadBytes, LogLevel.Info);
-
         byte[] decryptedOriginalMessageBytes;
         try {
             AesEncryptionUtil.EncryptedData encryptedData = new AesEncryptionUtil.EncryptedData(encryptedPayloadBytes, ivBytes);
             decryptedOriginalMessageBytes = AesEncryptionUtil.decrypt(encryptedData, aesKeyForThisLayer);
+            onionDecrypt.record(System.nanoTime() - start);
             Logger.log("DestinationNode " + this.nodeID + ": Final AES payload decrypted successfully. Bytes length: " + decryptedOriginalMessageBytes.length, LogLevel.Debug);
         } catch (Exception e) {
             Logger.log("DestinationNode " + this.nodeID + ": Failed to decrypt final AES payload. Error: " + e.getMessage(), LogLevel.Error);
             return;
         }
 
+        if (message.getType() == MessageType.CIRCUIT_CREATE) {
+            if (!Arrays.equals(decryptedOriginalMessageBytes, ClientMessageBuilder.CIRCUIT_CREATE_MARKER)) {
+                Logger.log("DestinationNode " + this.nodeID + ": circuit create with an unexpected payload, dropping it", LogLevel.Error);
+                return;
+            }
+            List<Message> waiting = circuits.put(message.getCircuitId(), aesKeyForThisLayer, null, 0);
+            Logger.log("DestinationNode " + this.nodeID + ": circuit " + Long.toHexString(message.getCircuitId()) + " ends here, " + circuits, LogLevel.Info);
+            for (Message data : waiting) {
+                processCircuitData(data);
+            }
+            return;
+        }
+
         try {
             String originalMessage = new String(decryptedOriginalMessageBytes, "UTF-8");
 
-            message.setContent(originalMessage);
-
-            Logger.log("-------------------------------------------------------", LogLevel.Success);
-            Logger.log("DESTINATION NODE (" + nodeID + ") RECEIVED AND DECRYPTED ORIGINAL MESSAGE:", LogLevel.Success);
-            Logger.log("'" + originalMessage + "'", LogLevel.Success);
+            deliver(message, originalMessage);
 
         } catch (UnsupportedEncodingException e) {
             Logger.log("DestinationNode " + nodeID + ": Failed to convert decrypted bytes to UTF-8 string. Error: " + e.getMessage(), LogLevel.Error);
         }
     }
 
+    private void processSphinxPacket(Message message) {
+        PrivateKey myPrivateKey = NodeKeyRegistry.getPrivateKey(this.nodeID, message.getSuite());
+        if (myPrivateKey == null) {
+            Logger.log("DestinationNode " + this.nodeID + ": " + message.getSuite().getShortName() + " private key not found. Cannot decrypt final message.", LogLevel.Error);
+            return;
+        }
+
+        long start = System.nanoTime();
+        byte[] originalMessageBytes;
+        try {
+            String nextHopId = SphinxPacket.peel(message.getEncryptedPayload(), myPrivateKey);
+            if (nextHopId != null) {
+                Logger.log("DestinationNode " + this.nodeID + ": sphinx packet still routes to " + nextHopId + ", not for us", LogLevel.Error);
+                return;
+            }
+            originalMessageBytes = SphinxPacket.openPayload(message.getEncryptedPayload());
+            sphinxDecrypt.record(System.nanoTime() - start);
+        } catch (Exception e) {
+            Logger.log("DestinationNode " + this.nodeID + ": Failed to open sphinx packet. Error: " + e.getMessage(), LogLevel.Error);
+            return;
+        }
+
+        String originalMessage = new String(originalMessageBytes, StandardCharsets.UTF_8);
+        deliver(message, originalMessage);
+    }
+
+    private void processCircuitData(Message message) {
+        CircuitTable.Circuit circuit = circuits.get(message.getCircuitId());
+        if (circuit == null) {
+            if (!circuits.holdPending(message.getCircuitId(), message)) {
+                Logger.log("DestinationNode " + this.nodeID + ": unknown circuit " + Long.toHexString(message.getCircuitId()) + " and no room to wait for it, dropping", LogLevel.Warn);
+            }
+            return;
+        }
+
+        long start = System.nanoTime();
+        byte[] originalMessageBytes;
+        try {
+            originalMessageBytes = AesEncryptionUtil.decrypt(new AesEncryptionUtil.EncryptedData(message.getEncryptedPayload(), message.getIv()), circuit.getSessionKey());
+            circuitDecrypt.record(System.nanoTime() - start);
+        } catch (Exception e) {
+            Logger.log("DestinationNode " + this.nodeID + ": Failed to decrypt circuit data. Error: " + e.getMessage(), LogLevel.Error);
+            return;
+        }
+
+        String originalMessage = new String(originalMessageBytes, StandardCharsets.UTF_8);
+        deliver(message, originalMessage);
+    }
+
+    private void deliver(Message message, String originalMessage) {
+        message.setContent(originalMessage);
+        delivered.increment();
+
+        LoadProbe probe = LoadProbe.parse(originalMessage);
+        if (probe != null) {
+            loadStats.record(probe);
+            return;
+        }
+
+        Logger.log("-------------------------------------------------------", LogLevel.Success);
+        Logger.log("DESTINATION NODE (" + nodeID + ") RECEIVED AND DECRYPTED ORIGINAL MESSAGE:", LogLevel.Success);
+        Logger.log("'" + originalMessage + "'", LogLevel.Success);
+    }
+
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    public LoadStats getLoadStats() {
+        return loadStats;
+    }
+
+    public CircuitTable getCircuits() {
+        return circuits;
+    }
+
     @Override
     public void shutdown() {
+        loadReports.cancel(false);
+        if (!loadStats.isEmpty()) {
+            loadStats.report(true);
+        }
         super.shutdown();
     }
 }
@@ -0,0 +1,125 @@
+package NodesConstruct;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// counters for MixNode dispatch ticks, one HopStats per next hop
+public class DispatchStats {
+
+    public static class HopStats {
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder timedOut = new LongAdder();
+        private final LongAdder sendNanos = new LongAdder();
+        private final AtomicLong maxSendNanos = new AtomicLong();
+
+        void recordSend(long nanos, boolean ok) {
+            if (ok) {
+                sent.increment();
+            } else {
+                failed.increment();
+            }
+            sendNanos.add(nanos);
+            maxSendNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        void recordTimeout(int messagesLeft) {
+            timedOut.add(messagesLeft);
+        }
+
+        public long getSent() {
+            return sent.sum();
+        }
+
+        public long getFailed() {
+            return failed.sum();
+        }
+
+        public long getTimedOut() {
+            return timedOut.sum();
+        }
+
+        public double getAverageSendMicros() {
+            long count = sent.sum() + failed.sum();
+            return count == 0 ? 0 : sendNanos.sum() / (count * 1000.0);
+        }
+
+        public double getMaxSendMicros() {
+            return maxSendNanos.get() / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("sent=%d failed=%d timedOut=%d avg=%.1fus max=%.1fus",
+                    getSent(), getFailed(), getTimedOut(), getAverageSendMicros(), getMaxSendMicros());
+        }
+    }
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final AtomicLong maxBatchSize = new AtomicLong();
+    private final LongAdder dispatchNanos = new LongAdder();
+    private final AtomicLong maxDispatchNanos = new AtomicLong();
+    private volatile int lastBatchSize;
+    private final Map<String, HopStats> hops = new ConcurrentHashMap<>();
+
+    void recordBatch(int size, long nanos) {
+        batches.increment();
+        messages.add(size);
+        lastBatchSize = size;
+        maxBatchSize.accumulateAndGet(size, Math::max);
+        dispatchNanos.add(nanos);
+        maxDispatchNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    HopStats hop(String nextHopId) {
+        return hops.computeIfAbsent(nextHopId, id -> new HopStats());
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    public int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    public long getMaxBatchSize() {
+        return maxBatchSize.get();
+    }
+
+    public double getAverageBatchSize() {
+        long count = batches.sum();
+        return count == 0 ? 0 : messages.sum() / (double) count;
+    }
+
+    public double getAverageDispatchMillis() {
+        long count = batches.sum();
+        return count == 0 ? 0 : dispatchNanos.sum() / (count * 1_000_000.0);
+    }
+
+    public double getMaxDispatchMillis() {
+        return maxDispatchNanos.get() / 1_000_000.0;
+    }
+
+    public Map<String, HopStats> getHops() {
+        return Collections.unmodifiableMap(hops);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.format("batches=%d messages=%d batch avg=%.1f max=%d dispatch avg=%.2fms max=%.2fms",
+                getBatches(), getMessages(), getAverageBatchSize(), getMaxBatchSize(), getAverageDispatchMillis(), getMaxDispatchMillis()));
+        for (Map.Entry<String, HopStats> entry : hops.entrySet()) {
+            sb.append("\n  -> ").append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,81 @@
+package NodesConstruct;
+
+import Code.LoadProbe;
+import Logs.LogLevel;
+import Logs.Logger;
+import Metrics.Histogram;
+import Metrics.MetricsRegistry;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * What a destination saw of LoadGenerator traffic, per sending client: end to end latency measured from
+ * the time the probe was meant to leave the client (not when it actually did), delivered throughput and
+ * how many of the client's sequence numbers have not turned up (yet, the mixes are still holding some
+ * while a run is going). Latency is kept in micros, the histogram is exported as mixnet_load_latency_seconds.
+ */
+public class LoadStats {
+
+    private final String nodeId;
+    private final Map<String, ClientStats> clients = new ConcurrentSkipListMap<>();
+
+    public LoadStats(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public void record(LoadProbe probe) {
+        long now = LoadProbe.epochMicros();
+        ClientStats stats = clients.computeIfAbsent(probe.getClientId(), client -> new ClientStats(
+                MetricsRegistry.global().histogram("mixnet_load_latency_seconds", "End to end latency of load generator messages, from their intended send time",
+                        1e-6, "node", nodeId, "client", client)));
+        stats.latency.record(now - probe.getIntendedMicros());
+        stats.delivered.increment();
+        stats.highestSequence.accumulate(probe.getSequence());
+        stats.firstMicros.compareAndSet(0, now);
+        stats.lastMicros.set(now);
+    }
+
+    // one line per client that got something since the last report, nothing when load is not running
+    public void report(boolean always) {
+        for (Map.Entry<String, ClientStats> entry : clients.entrySet()) {
+            ClientStats stats = entry.getValue();
+            long delivered = stats.delivered.sum();
+            if (!always && delivered == stats.reported) {
+                continue;
+            }
+            stats.reported = delivered;
+            Logger.log(entry.getKey() + " -> " + nodeId + ": " + stats, LogLevel.Status);
+        }
+    }
+
+    public boolean isEmpty() {
+        return clients.isEmpty();
+    }
+
+    private static final class ClientStats {
+        private final Histogram latency;
+        private final LongAdder delivered = new LongAdder();
+        private final LongAccumulator highestSequence = new LongAccumulator(Math::max, -1);
+        private final AtomicLong firstMicros = new AtomicLong();
+        private final AtomicLong lastMicros = new AtomicLong();
+        private volatile long reported; // as of the last report line
+
+        private ClientStats(Histogram latency) {
+            this.latency = latency;
+        }
+
+        @Override
+        public String toString() {
+            long count = delivered.sum();
+            double seconds = (lastMicros.get() - firstMicros.get()) / 1e6;
+            return String.format("delivered %d (%.1f msg/s), missing %d, latency ms p50 %.1f p90 %.1f p99 %.1f p99.9 %.1f max %.1f",
+                    count, seconds > 0 ? (count - 1) / seconds : 0.0, highestSequence.get() + 1 - count,
+                    latency.quantile(0.5) / 1e3, latency.quantile(0.9) / 1e3, latency.quantile(0.99) / 1e3,
+                    latency.quantile(0.999) / 1e3, latency.getMax() / 1e3);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package NodesConstruct;
+
+import Code.LoadGenerator;
+import CryptoUtils.NodeKeyRegistry;
+import Logs.LogLevel;
+import Logs.Logger;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * A whole mixnet in this JVM for tests and benchmarks: n clients, m mixes and k destinations on 127.0.0.1,
+ * every node on an ephemeral port, keys generated in memory, no docker, no key files, no Main table.
+ *
+ *   try (LocalNetwork network = new LocalNetwork(1, 3, 1).start()) {
+ *       network.send(0, "hello", 0);
+ *       network.awaitDelivered(1, 10_000);
+ *   }
+ *
+ * Node ids get a per network prefix ("net1-Mix0"), so several networks can be up in one JVM at once. Hops
+ * between the nodes are in process links unless -Dmixnet.loopback=false, then they go over real sockets
+ * on the configured transport. Everything else (mix strategy, packet format, suite) comes from the usual
+ * settings, the timed 5 s mix default makes for slow tests: -Dmixnet.mix.strategy=threshold with a small
+ * mixnet.mix.threshold is what a throughput run wants.
+ */
+public class LocalNetwork implements AutoCloseable {
+
+    private static final AtomicInteger networks = new AtomicInteger();
+
+    private final String prefix;
+    private final int clientCount;
+    private final int mixCount;
+    private final int destinationCount;
+    // the nodes hold on to this map, the real ports go in as each node binds
+    private final Map<String, NodeConfig> configs = new ConcurrentHashMap<>();
+    private final List<ClientNode> clients = new ArrayList<>();
+    private final List<MixNode> mixes = new ArrayList<>();
+    private final List<DestinationNode> destinations = new ArrayList<>();
+    private final List<AbstractNode> started = new ArrayList<>();
+
+    public LocalNetwork(int clients, int mixes, int destinations) {
+        if (clients < 1 || mixes < 0 || destinations < 1) {
+            throw new IllegalArgumentException("Need at least a client and a destination, got " + clients + "/" + mixes + "/" + destinations);
+        }
+        this.prefix = "net" + networks.incrementAndGet() + "-";
+        this.clientCount = clients;
+        this.mixCount = mixes;
+        this.destinationCount = destinations;
+    }
+
+    // destinations first, then mixes, then clients, so nothing sends to a node that is not listening yet
+    public LocalNetwork start() throws NoSuchAlgorithmException {
+        long startNanos = System.nanoTime();
+        try {
+            for (int i = 0; i < destinationCount; i++) {
+                String id = generateKeys("Dest" + i);
+                destinations.add(startNode(new DestinationNode(id, 0, configs)));
+            }
+            for (int i = 0; i < mixCount; i++) {
+                String id = generateKeys("Mix" + i);
+                mixes.add(startNode(new MixNode(id, 0, configs)));
+            }
+            for (int i = 0; i < clientCount; i++) {
+                String id = generateKeys("Client" + i);
+                clients.add(startNode(new ClientNode(id, 0, configs)));
+            }
+        } catch (NoSuchAlgorithmException | RuntimeException e) {
+            shutdown();
+            throw e;
+        }
+        Logger.log("Local network " + prefix + " up in " + (System.nanoTime() - startNanos) / 1_000_000 + " ms: "
+                + clientCount + " clients, " + mixCount + " mixes, " + destinationCount + " destinations", LogLevel.Status);
+        return this;
+    }
+
+    private String generateKeys(String name) throws NoSuchAlgorithmException {
+        String id = prefix + name;
+        NodeKeyRegistry.generateAndRegisterKeys(id);
+        return id;
+    }
+
+    private <T extends AbstractNode> T startNode(T node) {
+        started.add(node);
+        node.start();
+        configs.put(node.getNodeID(), new NodeConfig(node.getNodeID(), "127.0.0.1", node.getListeningPort()));
+        return node;
+    }
+
+    // through every mix in order; false if the client could not hand it to the first hop
+    public boolean send(int client, String content, int destination) {
+        return send(client, content, destination, getMixIds());
+    }
+
+    public boolean send(int client, String content, int destination, List<String> mixIds) {
+        return clients.get(client).sendUserMessage(content, destinations.get(destination).getNodeID(), mixIds);
+    }
+
+    // open loop traffic from one client to all the destinations, knobs from the mixnet.load.* settings
+    public LoadGenerator newLoadGenerator(int client) {
+        List<String> destinationIds = new ArrayList<>();
+        for (DestinationNode destination : destinations) {
+            destinationIds.add(destination.getNodeID());
+        }
+        return new LoadGenerator(clients.get(client), destinationIds, getMixIds());
+    }
+
+    public long getDeliveredCount() {
+        long total = 0;
+        for (DestinationNode destination : destinations) {
+            total += destination.getDeliveredCount();
+        }
+        return total;
+    }
+
+    // true once the destinations together have delivered at least count messages since start
+    public boolean awaitDelivered(long count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        while (getDeliveredCount() < count) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    public List<String> getMixIds() {
+        List<String> ids = new ArrayList<>();
+        for (MixNode mix : mixes) {
+            ids.add(mix.getNodeID());
+        }
+        return ids;
+    }
+
+    public List<ClientNode> getClients() {
+        return clients;
+    }
+
+    public List<MixNode> getMixes() {
+        return mixes;
+    }
+
+    public List<DestinationNode> getDestinations() {
+        return destinations;
+    }
+
+    // clients first so nothing new goes in, then the rest in the order they came up
+    public void shutdown() {
+        if (started.isEmpty()) {
+            return;
+        }
+        for (ClientNode client : clients) {
+            client.shutdown();
+        }
+        for (AbstractNode node : started) {
+            if (!(node instanceof ClientNode)) {
+                node.shutdown();
+            }
+        }
+        for (AbstractNode node : started) {
+            NodeKeyRegistry.removeKeys(node.getNodeID());
+        }
+        started.clear();
+        Logger.log("Local network " + prefix + " shut down", LogLevel.Status);
+    }
+
+    @Override
+    public void close() {
+        shutdown();
+    }
+}
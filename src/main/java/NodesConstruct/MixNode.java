@@ -2,12 +2,18 @@ package NodesConstruct;
 
 import Code.ClientMessageBuilder;
 import Code.Message;
-import Code.Peer;
+import Code.MessageType;
+import Code.Connection;
+import Code.NodeRuntime;
+import Code.Settings;
 import CryptoUtils.AesEncryptionUtil;
+import CryptoUtils.CipherSuite;
 import CryptoUtils.NodeKeyRegistry;
-import CryptoUtils.RsaEncryptionUtil;
+import CryptoUtils.SphinxPacket;
 import Logs.LogLevel;
 import Logs.Logger;
+import Metrics.Histogram;
+import Metrics.MetricsRegistry;
 import com.google.gson.GsonBuilder;
 
 import javax.crypto.SecretKey;
@@ -16,29 +22,105 @@ import java.io.UnsupportedEncodingException;
 import java.security.PrivateKey;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MixNode extends AbstractNode {
 
-    private BlockingQueue<Message> messageBuffer;
-
-    private ScheduledExecutorService scheduler;
-    private final long DISPATCH_INTERVAL_SECONDS = 5;
+    private final MixPool messagePool;
+    private final AtomicBoolean poolFull = new AtomicBoolean(); // logged going in and out, the pool counts the rest
+    private final CircuitTable circuits;
+    private static final int CIRCUIT_IV_BYTES = 12;
+
+    private final MixStrategy mixStrategy;
+
+    // one task per next hop each tick, so a slow hop only holds up its own messages
+    private final ExecutorService dispatchExecutor;
+    private final long hopTimeoutMillis = Settings.getLong("mixnet.dispatch.timeout.ms", 2000);
+    private final DispatchStats dispatchStats = new DispatchStats();
+
+    // readers only hand messages over, the layer peel runs on the runtime's core sized pool
+    private final NodeRuntime runtime;
+    private final PipelineStats pipelineStats = new PipelineStats(nodeID, MetricsRegistry.global());
+    private final ReplayFilter replayFilter;
+    private final PipelineStats.Stage decryptQueueStage;
+    private final PipelineStats.Stage decryptStage;
+    private final PipelineStats.Stage poolStage;
+    private final PipelineStats.Stage sendStage;
+
+    // the peel split by step, the stages above only see the whole of it
+    private final Map<CipherSuite, Histogram> keyPeelNanos = new EnumMap<>(CipherSuite.class);
+    private final Histogram aesPeelNanos;
+    private final Histogram sphinxPeelNanos;
+    private final Histogram circuitPeelNanos;
+    private final Histogram dispatchBatchSize;
 
     public MixNode(String nodeID, int listeningPort, Map<String, NodeConfig> knownNodeConfigs) {
         super(nodeID, listeningPort, knownNodeConfigs);
 
-        this.messageBuffer = new LinkedBlockingQueue<>();
-        this.scheduler = Executors.newSingleThreadScheduledExecutor();
-
-        startDispatchScheduler();
-
-        Logger.log("Mixnode started. Dispatch counter: " + DISPATCH_INTERVAL_SECONDS + " seconds ", LogLevel.Info);
+        this.messagePool = new MixPool(nodeID, getIngressGate());
+        this.circuits = new CircuitTable(nodeID);
+        this.runtime = getRuntime();
+        this.mixStrategy = MixStrategy.configured(nodeID);
+        this.replayFilter = new ReplayFilter(nodeID);
+        this.dispatchExecutor = runtime.getTaskExecutor();
+
+        // the crypto depths are the shared pool's, every mix in the process sees the same numbers
+        ThreadPoolExecutor cryptoWorkers = runtime.getCryptoWorkers();
+        this.decryptQueueStage = pipelineStats.addStage("decrypt-queue", () -> cryptoWorkers.getQueue().size());
+        this.decryptStage = pipelineStats.addStage("decrypt", cryptoWorkers::getActiveCount);
+        this.poolStage = pipelineStats.addStage("mix-pool", () -> messagePool.getCount() + mixStrategy.getHeldCount());
+        this.sendStage = pipelineStats.addStage("send", this::getOutboundDepth);
+
+        MetricsRegistry metrics = MetricsRegistry.global();
+        String peelHelp = "Time to peel one layer, by step";
+        for (CipherSuite suite : CipherSuite.values()) {
+            keyPeelNanos.put(suite, metrics.histogram("mixnet_mix_peel_seconds", peelHelp, 1e-9, "node", nodeID, "step", "key", "suite", suite.getShortName()));
+        }
+        this.aesPeelNanos = metrics.histogram("mixnet_mix_peel_seconds", peelHelp, 1e-9, "node", nodeID, "step", "aes");
+        this.sphinxPeelNanos = metrics.histogram("mixnet_mix_peel_seconds", peelHelp, 1e-9, "node", nodeID, "step", "sphinx");
+        this.circuitPeelNanos = metrics.histogram("mixnet_mix_peel_seconds", peelHelp, 1e-9, "node", nodeID, "step", "circuit");
+        this.dispatchBatchSize = metrics.histogram("mixnet_mix_dispatch_batch_messages", "Messages let out per mix flush", 1, "node", nodeID);
+        metrics.gauge("mixnet_mix_pool_messages", "Messages waiting in the mix pool", () -> messagePool.getCount() + mixStrategy.getHeldCount(), "node", nodeID);
+
+        mixStrategy.start(messagePool, runtime.getScheduler(), this::dispatchMessages);
+        Logger.log("Mixnode started. Mix strategy: " + mixStrategy.describe(), LogLevel.Info);
     }
 
     @Override
-    public void processReceivedMessage(Message message, Peer sender) {
+    public void processReceivedMessage(Message message, Connection sender) {
         //collects the messages and stacks in buffer
-        Logger.log("Message received from " + sender.getRemoteAddress() + " : " + message.getContent(), LogLevel.Info);
+        Logger.log("Message received from {} : {}", LogLevel.Debug, sender.getRemoteAddress(), message.getContent());
+
+        // before the crypto queue, a replay flood should cost an hmac each and not a private key operation
+        if (replayFilter.isReplay(message)) {
+            Logger.log("MixNode {}: dropped a replayed {} from {}", LogLevel.Debug, this.nodeID, message.getType(), sender.getRemoteAddress());
+            return;
+        }
+
+        long enqueued = System.nanoTime();
+        runtime.executeCrypto(getIngressGate(), () -> {
+            long start = System.nanoTime();
+            decryptQueueStage.record(start - enqueued);
+            try {
+                peelLayer(message, sender);
+            } catch (RuntimeException e) {
+                Logger.log("MixNode " + this.nodeID + ": failed to process message from " + sender.getRemoteAddress() + ": " + e.getMessage(), LogLevel.Error);
+            }
+            decryptStage.record(System.nanoTime() - start);
+        });
+    }
+
+    // runs on a crypto worker, the result goes into the mix pool
+    private void peelLayer(Message message, Connection sender) {
+        if (message.getType() == MessageType.CIRCUIT_DATA) {
+            processCircuitData(message, sender);
+            return;
+        }
+        if (message.getType() == MessageType.SPHINX) {
+            processSphinxPacket(message, sender);
+            return;
+        }
 
         if (message.getCurrentHopIndex() >= message.getFullPath().size() ) {
             Logger.log("invalid hop index, its " + message.getCurrentHopIndex(), LogLevel.Info);
@@ -47,7 +129,7 @@ public class MixNode extends AbstractNode {
 
         String intendedRecipientID = message.getFullPath().get(message.getCurrentHopIndex());
 
-        Logger.log("is the recipient okey ? ->> " + intendedRecipientID, LogLevel.Info);
+        Logger.log("is the recipient okey ? ->> {}", LogLevel.Debug, intendedRecipientID);
 
         if ( !this.nodeID.equals(intendedRecipientID) ) {
             Logger.log( " the wrong peer is getting this message and not : " + intendedRecipientID + ", instead its on this : " + this.nodeID, LogLevel.Info);
@@ -56,7 +138,7 @@ public class MixNode extends AbstractNode {
 
         // start decrypting here
 
-        PrivateKey privateKey = NodeKeyRegistry.getPrivateKey(intendedRecipientID);
+        PrivateKey privateKey = NodeKeyRegistry.getPrivateKey(intendedRecipientID, message.getSuite());
 
         if ( privateKey == null ) {
             Logger.log("Private key is null and has a prob ", LogLevel.Error);
@@ -72,9 +154,11 @@ public class MixNode extends AbstractNode {
         SecretKey aesKeyForThisLayer;
 
         try {
-            byte[] decryptedAesKeyBytes = RsaEncryptionUtil.decrypt(encryptedAesKeyBytes, privateKey);
+            long keyStart = System.nanoTime();
+            byte[] decryptedAesKeyBytes = message.getSuite().openLayerKey(encryptedAesKeyBytes, privateKey);
+            keyPeelNanos.get(message.getSuite()).record(System.nanoTime() - keyStart);
             aesKeyForThisLayer = new SecretKeySpec(decryptedAesKeyBytes, 0, decryptedAesKeyBytes.length, "AES");
-            Logger.log("the mixnode : " + this.nodeID + " has decrypted the rsa good", LogLevel.Info);
+            Logger.log("the mixnode : {} has recovered the {} layer key good", LogLevel.Debug, this.nodeID, message.getSuite().getShortName());
         } catch (Exception e) {
             Logger.log("Problem with decryption of mixnode: " + this.nodeID, LogLevel.Error);
             return;
@@ -88,16 +172,15 @@ public class MixNode extends AbstractNode {
             return;
         }
 
-        Logger.log("this is the message still encrypted " + encryptedPayloadBytes, LogLevel.Info);
-
         byte[] decryptedPayloadBytes;
 
         try {
             AesEncryptionUtil.EncryptedData encryptedData = new AesEncryptionUtil.EncryptedData(encryptedPayloadBytes, encryptedIvBytes);
+            long aesStart = System.nanoTime();
             decryptedPayloadBytes = AesEncryptionUtil.decrypt(encryptedData, aesKeyForThisLayer);
-            Logger.log("The mixnode : " + this.nodeID + "has decrypted the aes good", LogLevel.Info);
-            Logger.log("this is the message decrypted and send to dest bob" + decryptedPayloadBytes, LogLevel.Info);
-            Logger.log("this is the message decrypted and send to dest bob" + Arrays.toString(decryptedPayloadBytes), LogLevel.Info);
+            aesPeelNanos.record(System.nanoTime() - aesStart);
+            Logger.log("The mixnode : {} has decrypted the aes good", LogLevel.Debug, this.nodeID);
+            Logger.log(() -> "this is the message decrypted and send to dest bob" + Arrays.toString(decryptedPayloadBytes), LogLevel.Debug);
         } catch (Exception e) {
             Logger.log("the mixnode : " + this.nodeID + "did not decrypt the aes good " , LogLevel.Info);
             return;
@@ -109,7 +192,7 @@ public class MixNode extends AbstractNode {
             String decryptedJsonString = new String(decryptedPayloadBytes, "UTF-8");
             nextHopPayload = new GsonBuilder().create().fromJson(decryptedJsonString, ClientMessageBuilder.NextHopPayload.class);
 
-            Logger.log("decrypted msg after UTF-8 for byte change + iv and key" + decryptedJsonString, LogLevel.Info);
+            Logger.log("decrypted msg after UTF-8 for byte change + iv and key{}", LogLevel.Debug, decryptedJsonString);
             if (nextHopPayload == null) {
                 Logger.log("MixNode " + this.nodeID + ": Deserialized NextHopPayload is null. Malformed JSON?", LogLevel.Error);
                 return;
@@ -121,14 +204,14 @@ public class MixNode extends AbstractNode {
                 Logger.log("MixNode " + this.nodeID + ": NextHopPayload contains null fields. Malformed message structure.", LogLevel.Error);
                 return;
             }
-            Logger.log("MixNode " + this.nodeID + ": NextHopPayload parsed. Next hop ID: " + nextHopPayload.getNextHopId() + "with message as : " + nextHopPayload.getNextEncryptedPayload(), LogLevel.Debug);
+            Logger.log("MixNode {}: NextHopPayload parsed. Next hop ID: {} with message as : {}", LogLevel.Debug, this.nodeID, nextHopPayload.getNextHopId(), nextHopPayload.getNextEncryptedPayload());
 
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException(e);
         }
 
-        Logger.log("msg is recieved where is should be recieved, from : " + sender.getRemoteNodeId(), LogLevel.Info);
-        Logger.log( "Current hop rn is : " + message.getCurrentHopIndex() + "with path of " + message.getFullPath(), LogLevel.Info);
+        Logger.log("msg is recieved where is should be recieved, from : {}", LogLevel.Debug, sender.getRemoteNodeId());
+        Logger.log("Current hop rn is : {} with path of {}", LogLevel.Debug, message.getCurrentHopIndex(), message.getFullPath());
 
         message.setEncryptedPayload(nextHopPayload.getNextEncryptedPayload());
         message.setIv(nextHopPayload.getNextIv());
@@ -136,56 +219,230 @@ public class MixNode extends AbstractNode {
 
         message.incrementHopIndex();
 
-        try {
-            messageBuffer.put(message);
-        } catch (InterruptedException e) {
-            Logger.log("problem in adding message to buffer", LogLevel.Info);
-            Thread.currentThread().interrupt();
+        if (message.getType() == MessageType.CIRCUIT_CREATE) {
+            if (nextHopPayload.getNextCircuitId() == null) {
+                Logger.log("MixNode " + this.nodeID + ": circuit create without a next circuit id, dropping it", LogLevel.Error);
+                return;
+            }
+            // the layer key stays on as the circuit's session key
+            List<Message> waiting = circuits.put(message.getCircuitId(), aesKeyForThisLayer, nextHopPayload.getNextHopId(), nextHopPayload.getNextCircuitId());
+            Logger.log("MixNode " + this.nodeID + ": circuit " + Long.toHexString(message.getCircuitId()) + " -> " + nextHopPayload.getNextHopId() + " created, " + circuits, LogLevel.Info);
+            message.setCircuitId(nextHopPayload.getNextCircuitId());
+            enqueue(message);
+
+            for (Message data : waiting) {
+                processCircuitData(data, sender);
+            }
+            return;
         }
+
+        enqueue(message);
     }
 
-    private void startDispatchScheduler() {
-        scheduler.scheduleAtFixedRate(this::dispatchMessages, 0, DISPATCH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    private void enqueue(Message message) {
+        message.setStageEnteredNanos(System.nanoTime());
+        if (!messagePool.offer(message)) {
+            if (poolFull.compareAndSet(false, true)) {
+                Logger.log("MixNode {}: pool is full, refusing messages until it drains ({})", LogLevel.Warn, this.nodeID, messagePool);
+            }
+            return;
+        }
+        if (poolFull.get() && poolFull.compareAndSet(true, false)) {
+            Logger.log("MixNode {}: pool takes messages again, {} refused so far", LogLevel.Info, this.nodeID, messagePool.getRejectedCount());
+        }
+        mixStrategy.onAdmitted(message);
+    }
+
+    // one aes layer off with the circuit's session key, no public key work
+    private void processCircuitData(Message message, Connection sender) {
+        CircuitTable.Circuit circuit = circuits.get(message.getCircuitId());
+        if (circuit == null) {
+            if (!circuits.holdPending(message.getCircuitId(), message)) {
+                Logger.log("MixNode " + this.nodeID + ": unknown circuit " + Long.toHexString(message.getCircuitId()) + " and no room to wait for it, dropping", LogLevel.Warn);
+            }
+            return;
+        }
+
+        byte[] plainText;
+        try {
+            long start = System.nanoTime();
+            plainText = AesEncryptionUtil.decrypt(new AesEncryptionUtil.EncryptedData(message.getEncryptedPayload(), message.getIv()), circuit.getSessionKey());
+            circuitPeelNanos.record(System.nanoTime() - start);
+        } catch (Exception e) {
+            Logger.log("MixNode " + this.nodeID + ": circuit data from " + sender.getRemoteAddress() + " did not decrypt, dropping: " + e.getMessage(), LogLevel.Error);
+            return;
+        }
+        if (plainText.length < CIRCUIT_IV_BYTES || circuit.getNextHopId() == null) {
+            Logger.log("MixNode " + this.nodeID + ": malformed circuit data on " + Long.toHexString(message.getCircuitId()), LogLevel.Error);
+            return;
+        }
+
+        message.setIv(Arrays.copyOfRange(plainText, 0, CIRCUIT_IV_BYTES));
+        message.setEncryptedPayload(Arrays.copyOfRange(plainText, CIRCUIT_IV_BYTES, plainText.length));
+        message.setCircuitId(circuit.getNextCircuitId());
+        message.setFullPath(List.of(circuit.getNextHopId()));
+        message.setCurrentHopIndex(0);
+        enqueue(message);
     }
 
-    private void dispatchMessages() {
-        if (messageBuffer.isEmpty()) {
+    private void processSphinxPacket(Message message, Connection sender) {
+        PrivateKey privateKey = NodeKeyRegistry.getPrivateKey(this.nodeID, message.getSuite());
+        if (privateKey == null) {
+            Logger.log("Private key is null and has a prob ", LogLevel.Error);
             return;
         }
 
-        List<Message> batch = new ArrayList<>();
+        String nextHopId;
+        try {
+            long start = System.nanoTime();
+            nextHopId = SphinxPacket.peel(message.getEncryptedPayload(), privateKey); // peeled in place, same size out
+            sphinxPeelNanos.record(System.nanoTime() - start);
+        } catch (Exception e) {
+            Logger.log("MixNode " + this.nodeID + ": dropping sphinx packet from " + sender.getRemoteAddress() + ": " + e.getMessage(), LogLevel.Error);
+            return;
+        }
 
-        //start process to collect and buffer the messages
-        messageBuffer.drainTo(batch);
+        if (nextHopId == null) {
+            Logger.log("MixNode " + this.nodeID + ": sphinx packet ends at a mix, dropping it", LogLevel.Error);
+            return;
+        }
+
+        message.setFullPath(List.of(nextHopId));
+        message.setCurrentHopIndex(0);
+
+        enqueue(message);
+    }
+
+    // on the scheduler thread, with whatever the mix strategy let out. Only hands the groups over, the tick
+    // doesn't wait for them: a hop still sending at the deadline gives what it hasn't started to the retry queue
+    private void dispatchMessages(List<Message> batch) {
+        long start = System.nanoTime();
+        dispatchBatchSize.record(batch.size());
+        for (Message message : batch) {
+            poolStage.record(start - message.getStageEnteredNanos());
+        }
         //shuffle them
         Collections.shuffle(batch);
 
+        // grouped by next hop, each group keeps the shuffled order
+        Map<String, List<Message>> byNextHop = new LinkedHashMap<>();
         for (Message message : batch) {
             String nextHopId = message.getFullPath().get(message.getCurrentHopIndex());
+            byNextHop.computeIfAbsent(nextHopId, id -> new ArrayList<>()).add(message);
+        }
 
-            Logger.log("we are sending the message to : " + nextHopId, LogLevel.Info);
-
-            sendMessageToNode(nextHopId, message);
+        List<HopSend> sends = new ArrayList<>(byNextHop.size());
+        CompletableFuture<?>[] done = new CompletableFuture<?>[byNextHop.size()];
+        ScheduledFuture<?> timeout;
+        try {
+            for (Map.Entry<String, List<Message>> group : byNextHop.entrySet()) {
+                HopSend send = new HopSend(group.getKey(), group.getValue());
+                done[sends.size()] = CompletableFuture.runAsync(() -> sendGroup(send), dispatchExecutor);
+                sends.add(send);
+            }
+            timeout = runtime.getScheduler().schedule(() -> timeOut(sends), hopTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Logger.log("MixNode " + this.nodeID + ": runtime is shutting down, " + batch.size() + " messages not dispatched", LogLevel.Warn);
+            return;
         }
 
+        CompletableFuture.allOf(done).whenComplete((ignored, error) -> {
+            timeout.cancel(false);
+            dispatchStats.recordBatch(batch.size(), System.nanoTime() - start);
+            // the stats toString()s are only built when debug is on
+            Logger.log("MixNode {} dispatched {} messages to {} hops", LogLevel.Debug, this.nodeID, batch.size(), byNextHop.size());
+            Logger.log("MixNode {} dispatch: {}", LogLevel.Debug, this.nodeID, dispatchStats);
+            Logger.log("MixNode {} pipeline: {}", LogLevel.Debug, this.nodeID, pipelineStats);
+            Logger.log("MixNode {} replay filter: {}", LogLevel.Debug, this.nodeID, replayFilter);
+            Logger.log("MixNode {} delivery: {}", LogLevel.Debug, this.nodeID, retryQueue);
+        });
     }
 
-    @Override
-    public void shutdown() {
-        super.shutdown(); //proveri zs ne raboti vo peermanage shutdown
-
-        if (scheduler != null) {
-            scheduler.shutdownNow();
+    private void sendGroup(HopSend send) {
+        DispatchStats.HopStats hopStats = dispatchStats.hop(send.nextHopId);
+        int index;
+        while ((index = send.next.getAndIncrement()) < send.messages.size()) {
+            Message message = send.messages.get(index);
+            Logger.log("we are sending the message to : {}", LogLevel.Debug, send.nextHopId);
 
+            long start = System.nanoTime();
+            boolean ok;
             try {
-                if (!scheduler.awaitTermination(DISPATCH_INTERVAL_SECONDS + 1, TimeUnit.SECONDS)) {
-                    scheduler.shutdownNow();
+                ok = sendMessageToNode(send.nextHopId, message);
+            } catch (RuntimeException e) {
+                Logger.log("MixNode " + this.nodeID + ": sending to " + send.nextHopId + " failed: " + e, LogLevel.Error);
+                ok = false;
+            }
+            long elapsed = System.nanoTime() - start;
+            hopStats.recordSend(elapsed, ok);
+            sendStage.record(elapsed);
+        }
+    }
+
+    // on the scheduler at the deadline; the send in progress is left to finish, it is not interrupted mid write
+    private void timeOut(List<HopSend> sends) {
+        for (HopSend send : sends) {
+            List<Message> left = send.takeRest();
+            if (left.isEmpty()) {
+                continue;
+            }
+            int kept = 0;
+            for (Message message : left) {
+                if (retryQueue.add(send.nextHopId, message)) {
+                    kept++;
                 }
-            } catch (InterruptedException e) {
-                Logger.log("MixNode terminator interrupted ", LogLevel.Error);
-                Thread.currentThread().interrupt();
             }
+            dispatchStats.hop(send.nextHopId).recordTimeout(left.size());
+            Logger.log("MixNode " + this.nodeID + ": sending to " + send.nextHopId + " took over " + hopTimeoutMillis + " ms, "
+                    + left.size() + " messages left behind, " + kept + " moved to the retry queue", LogLevel.Warn);
         }
     }
 
+    // one next hop's share of a flush. Every index is claimed once: by the sender as it goes, or all the rest at
+    // once by the timeout, so nothing is sent twice or lost in between
+    private static final class HopSend {
+        private final String nextHopId;
+        private final List<Message> messages;
+        private final AtomicInteger next = new AtomicInteger();
+
+        private HopSend(String nextHopId, List<Message> messages) {
+            this.nextHopId = nextHopId;
+            this.messages = messages;
+        }
+
+        private List<Message> takeRest() {
+            int from = next.getAndSet(messages.size());
+            return from >= messages.size() ? List.of() : messages.subList(from, messages.size());
+        }
+    }
+
+    public ReplayFilter getReplayFilter() {
+        return replayFilter;
+    }
+
+    public PipelineStats getPipelineStats() {
+        return pipelineStats;
+    }
+
+    public CircuitTable getCircuits() {
+        return circuits;
+    }
+
+    public MixPool getMessagePool() {
+        return messagePool;
+    }
+
+    public DispatchStats getDispatchStats() {
+        return dispatchStats;
+    }
+
+    @Override
+    public void shutdown() {
+        // the scheduler outlives this node, its ticks have to be cancelled and not just left to die with it
+        mixStrategy.stop();
+        super.shutdown(); //proveri zs ne raboti vo peermanage shutdown
+
+        messagePool.close();
+    }
+
 }
\ No newline at end of file
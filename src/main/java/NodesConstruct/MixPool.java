@@ -0,0 +1,465 @@
+package NodesConstruct;
+
+import Code.FrameReader;
+import Code.IngressGate;
+import Code.Message;
+import Code.MessageCodecs;
+import Code.Settings;
+import Logs.LogLevel;
+import Logs.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Where a mix keeps messages between dispatch ticks. Counts the bytes it holds instead of messages and
+ * never goes over maxBytes, what happens to the overflow depends on the policy. When it can't take more
+ * it closes the node's ingress gate, so peers stop reading and tcp pushes back on the upstream.
+ * A strategy that keeps messages of its own between ticks takes them with drainHeld(), their bytes stay
+ * counted against the cap until it hands them on and calls release().
+ */
+public class MixPool {
+
+    public enum OverloadPolicy {
+        REJECT,         // refuse new messages and stop reading until the pool drains
+        DROP_OLDEST,    // evict from the head to make room, ingress stays open
+        SPILL_TO_DISK;  // overflow goes to a local file as binary frames, read back on the next drain
+
+        public static OverloadPolicy fromName(String name) {
+            String normalized = name.trim().toUpperCase().replace('-', '_');
+            if (normalized.equals("SPILL") || normalized.equals("DISK")) {
+                return SPILL_TO_DISK;
+            }
+            try {
+                return valueOf(normalized);
+            } catch (IllegalArgumentException e) {
+                Logger.log("Unknown pool policy '" + name + "', using reject", LogLevel.Warn);
+                return REJECT;
+            }
+        }
+    }
+
+    private static final double RESUME_FRACTION = 0.5; // ingress reopens once the pool is back under half
+    private static final int SPILL_READ_BUFFER = 64 * 1024;
+    private static final String GATE_SOURCE = "mix pool";
+
+    private final String nodeId;
+    private final long maxBytes;
+    private final long maxSpillBytes;
+    private final OverloadPolicy policy;
+    private final IngressGate ingressGate;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Message> messages = new ArrayDeque<>();
+    private long bytes;
+    private long heldBytes; // out with the strategy, still counted against the cap
+    private long maxBytesSeen;
+
+    // spill file, all under lock
+    private Path spillPath;
+    private FileChannel spillChannel;
+    private FrameReader spillReader;
+    private long spillReadPosition;
+    private long spillWritePosition;
+    private int spilledCount;
+    private Message spillHead; // read back but over the budget last time, still counted in spilledCount
+    private ByteBuffer spillScratch;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+    private final LongAdder unspilled = new LongAdder();
+
+    public MixPool(String nodeId, IngressGate ingressGate) {
+        this(nodeId,
+                Settings.getLong("mixnet.pool.max.bytes", 64L * 1024 * 1024),
+                OverloadPolicy.fromName(Settings.getString("mixnet.pool.policy", "reject")),
+                Settings.getLong("mixnet.pool.spill.max.bytes", 1024L * 1024 * 1024),
+                ingressGate);
+    }
+
+    public MixPool(String nodeId, long maxBytes, OverloadPolicy policy, long maxSpillBytes, IngressGate ingressGate) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Pool cap must be positive, got " + maxBytes);
+        }
+        this.nodeId = nodeId;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.maxSpillBytes = maxSpillBytes;
+        this.ingressGate = ingressGate;
+        Logger.log("Mix pool for " + nodeId + ": cap " + maxBytes + " bytes, policy " + policy, LogLevel.Info);
+    }
+
+    // false if the message was not kept
+    public boolean offer(Message message) {
+        long size = sizeOf(message);
+        lock.lock();
+        try {
+            if (bytes + heldBytes + size > maxBytes) {
+                return overflow(message, size);
+            }
+            add(message, size);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean overflow(Message message, long size) {
+        switch (policy) {
+            case DROP_OLDEST -> {
+                if (size > maxBytes) {
+                    rejected.increment();
+                    return false;
+                }
+                while (bytes + heldBytes + size > maxBytes && !messages.isEmpty()) {
+                    Message oldest = messages.pollFirst();
+                    bytes -= sizeOf(oldest);
+                    dropped.increment();
+                }
+                if (bytes + heldBytes + size > maxBytes) {
+                    // the room is taken by held messages, those can't be dropped from here
+                    rejected.increment();
+                    return false;
+                }
+                add(message, size);
+                return true;
+            }
+            case SPILL_TO_DISK -> {
+                if (spill(message)) {
+                    return true;
+                }
+                rejected.increment();
+                ingressGate.close(GATE_SOURCE, "pool and spill file are full (" + bytes + " + " + spillBacklog() + " bytes)");
+                return false;
+            }
+            default -> {
+                rejected.increment();
+                if (size <= maxBytes) {
+                    ingressGate.close(GATE_SOURCE, "pool is full (" + bytes + " + " + heldBytes + " held bytes)"); // a message bigger than the pool alone shouldn't stall the node
+                }
+                return false;
+            }
+        }
+    }
+
+    private void add(Message message, long size) {
+        messages.addLast(message);
+        bytes += size;
+        maxBytesSeen = Math.max(maxBytesSeen, bytes + heldBytes);
+        admitted.increment();
+    }
+
+    private boolean spill(Message message) {
+        try {
+            spillScratch = MessageCodecs.BINARY.encode(message, spillScratch);
+            if (spillBacklog() + spillScratch.remaining() > maxSpillBytes) {
+                return false;
+            }
+            if (spillChannel == null) {
+                openSpillFile();
+            }
+            while (spillScratch.hasRemaining()) {
+                spillWritePosition += spillChannel.write(spillScratch, spillWritePosition);
+            }
+            spilledCount++;
+            spilled.increment();
+            admitted.increment();
+            return true;
+        } catch (IOException e) {
+            Logger.log("Mix pool for " + nodeId + " could not spill to " + spillPath + ": " + e.getMessage(), LogLevel.Error);
+            return false;
+        }
+    }
+
+    private void openSpillFile() throws IOException {
+        Path dir = Path.of(Settings.getString("mixnet.pool.spill.dir", System.getProperty("java.io.tmpdir")));
+        spillPath = Files.createTempFile(dir, "mixpool-" + nodeId + "-", ".spill");
+        spillPath.toFile().deleteOnExit();
+        spillChannel = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        spillReader = new FrameReader(SPILL_READ_BUFFER);
+        Logger.log("Mix pool for " + nodeId + " is spilling to " + spillPath, LogLevel.Warn);
+    }
+
+    // everything in memory, plus up to a pool's worth read back from the spill file
+    public int drainTo(List<Message> batch) {
+        int drained = 0;
+        lock.lock();
+        try {
+            Message message;
+            while ((message = messages.pollFirst()) != null) {
+                batch.add(message);
+                drained++;
+            }
+            bytes = 0;
+            drained += unspill(batch, maxBytes - heldBytes);
+            reopenIfDrained();
+        } finally {
+            lock.unlock();
+        }
+        return drained;
+    }
+
+    // up to count messages picked uniformly from what is in memory, the rest stay; spilled ones move up into the
+    // room freed but are not picked this time. Returns how many went into the batch
+    public int drainRandom(List<Message> batch, int count, Random random) {
+        lock.lock();
+        try {
+            int size = messages.size();
+            int picks = Math.min(count, size);
+            if (picks == size) {
+                batch.addAll(messages);
+                messages.clear();
+                bytes = 0;
+            } else {
+                Message[] all = messages.toArray(new Message[0]);
+                // partial fisher-yates, the picks end up at the tail
+                for (int i = size - 1; i >= size - picks; i--) {
+                    int j = random.nextInt(i + 1);
+                    Message picked = all[j];
+                    all[j] = all[i];
+                    all[i] = picked;
+                    batch.add(picked);
+                    bytes -= sizeOf(picked);
+                }
+                messages.clear();
+                for (int i = 0; i < size - picks; i++) {
+                    messages.addLast(all[i]);
+                }
+            }
+
+            refill();
+            reopenIfDrained();
+            return picks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // everything in memory, for a strategy that holds messages itself; their bytes move to held and stay
+    // counted until release(). Spilled ones move up into whatever room is left but are not handed out
+    public int drainHeld(List<Message> batch) {
+        lock.lock();
+        try {
+            int drained = messages.size();
+            batch.addAll(messages);
+            messages.clear();
+            heldBytes += bytes;
+            bytes = 0;
+            refill();
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // held messages that left the strategy
+    public void release(long size) {
+        lock.lock();
+        try {
+            heldBytes = Math.max(0, heldBytes - size);
+            refill();
+            reopenIfDrained();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refill() {
+        List<Message> readBack = new ArrayList<>();
+        unspill(readBack, maxBytes - bytes - heldBytes);
+        for (Message message : readBack) {
+            messages.addLast(message);
+            bytes += sizeOf(message);
+        }
+    }
+
+    private void reopenIfDrained() {
+        if (ingressGate.isClosedBy(GATE_SOURCE) && bytes + heldBytes <= maxBytes * RESUME_FRACTION
+                && spillBacklog() <= maxSpillBytes * RESUME_FRACTION) {
+            ingressGate.open(GATE_SOURCE);
+        }
+    }
+
+    private int unspill(List<Message> batch, long budgetBytes) {
+        if (spilledCount == 0) {
+            return 0;
+        }
+
+        int read = 0;
+        long readBytes = 0;
+        // the stage stamp is not in the frame; from here on the pool stage counts it as just arrived, the time
+        // on disk is not in that histogram (it would be nanoTime - 0 otherwise)
+        long now = System.nanoTime();
+        try {
+            while (spilledCount > 0 && readBytes < budgetBytes) {
+                Message message = spillHead != null ? spillHead : spillReader.nextMessage();
+                spillHead = null;
+                if (message == null) {
+                    spillChannel.position(spillReadPosition);
+                    if (spillReader.readFrom(spillChannel) <= 0) {
+                        break;
+                    }
+                    spillReadPosition = spillChannel.position();
+                    continue;
+                }
+                long size = sizeOf(message);
+                // stays under the budget, except that one message always fits an empty pool
+                if (readBytes + size > budgetBytes && (read > 0 || budgetBytes < maxBytes)) {
+                    spillHead = message;
+                    break;
+                }
+                message.setStageEnteredNanos(now);
+                batch.add(message);
+                readBytes += size;
+                spilledCount--;
+                read++;
+            }
+
+            if (spilledCount == 0) {
+                // all read back, start the file over
+                spillChannel.truncate(0);
+                spillReadPosition = 0;
+                spillWritePosition = 0;
+                spillReader = new FrameReader(SPILL_READ_BUFFER);
+            }
+        } catch (IOException e) {
+            Logger.log("Mix pool for " + nodeId + " lost " + spilledCount + " spilled messages reading " + spillPath + ": " + e.getMessage(), LogLevel.Error);
+            spilledCount = 0;
+            spillHead = null;
+        }
+        unspilled.add(read);
+        return read;
+    }
+
+    // bytes written to the spill file and not handed out yet
+    private long spillBacklog() {
+        if (spillReader == null) {
+            return 0;
+        }
+        return spillWritePosition - spillReadPosition + spillReader.buffered();
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return messages.isEmpty() && spilledCount == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            messages.clear();
+            bytes = 0;
+            heldBytes = 0;
+            spillHead = null;
+            if (spillChannel != null) {
+                spillChannel.close();
+                Files.deleteIfExists(spillPath);
+                spillChannel = null;
+            }
+        } catch (IOException e) {
+            Logger.log("Could not remove spill file " + spillPath + ": " + e.getMessage(), LogLevel.Error);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // rough heap footprint, arrays and strings plus object headers
+    public static long sizeOf(Message message) {
+        long size = 64;
+        size += arraySize(message.getEncryptedPayload());
+        size += arraySize(message.getIv());
+        size += arraySize(message.getEncryptedSymmetricKeyForThisHop());
+        if (message.getContent() != null) {
+            size += 40 + message.getContent().length();
+        }
+        if (message.getFullPath() != null) {
+            for (String id : message.getFullPath()) {
+                size += 40 + id.length();
+            }
+        }
+        return size;
+    }
+
+    private static long arraySize(byte[] array) {
+        return array == null ? 0 : 16 + array.length;
+    }
+
+    public long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHeldBytes() {
+        lock.lock();
+        try {
+            return heldBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCount() {
+        lock.lock();
+        try {
+            return messages.size() + spilledCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public OverloadPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getAdmittedCount() {
+        return admitted.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getSpilledCount() {
+        return spilled.sum();
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("bytes=%d/%d held=%d peak=%d count=%d spilledNow=%d admitted=%d rejected=%d dropped=%d spilled=%d unspilled=%d",
+                    bytes, maxBytes, heldBytes, maxBytesSeen, messages.size(), spilledCount, admitted.sum(), rejected.sum(),
+                    dropped.sum(), spilled.sum(), unspilled.sum());
+        } finally {
+            lock.unlock();
+        }
+    }
+}
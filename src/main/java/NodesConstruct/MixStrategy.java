@@ -0,0 +1,63 @@
+package NodesConstruct;
+
+import Code.Message;
+import Code.Settings;
+import Logs.LogLevel;
+import Logs.Logger;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
+
+/*
+ * Decides when messages leave the mix pool, which is the latency vs anonymity trade of a deployment.
+ * Picked once at startup with mixnet.mix.strategy:
+ *   timed     - flush everything every mixnet.mix.interval.ms (the old fixed 5 s tick)
+ *   threshold - flush everything once mixnet.mix.threshold messages are in
+ *   pool      - timed dynamic pool, every interval send a share and keep the rest mixing
+ *   poisson   - every message waits its own exponential delay, continuous-time like Loopix
+ * The strategy runs on the runtime's scheduler and hands the batches to output, the node does the
+ * shuffle and the per next hop sends. That scheduler is shared by every mix in the process and has
+ * more than one thread: stop() has to cancel whatever start() scheduled, and two tasks of the same
+ * strategy can run at once unless it keeps them apart.
+ */
+public interface MixStrategy {
+
+    void start(MixPool pool, ScheduledExecutorService scheduler, Consumer<List<Message>> output);
+
+    // called on a crypto worker after the message made it into the pool
+    default void onAdmitted(Message message) {}
+
+    // messages the strategy holds outside the pool, 0 for most
+    default int getHeldCount() {
+        return 0;
+    }
+
+    default void stop() {}
+
+    String describe();
+
+    static MixStrategy configured(String nodeId) {
+        String name = Settings.getString("mixnet.mix.strategy", "timed").trim().toLowerCase();
+        long intervalMillis = Settings.getLong("mixnet.mix.interval.ms", 5000);
+        MixStrategy strategy = switch (name) {
+            case "threshold" -> new ThresholdMixStrategy(
+                    Settings.getInt("mixnet.mix.threshold", 32),
+                    Settings.getLong("mixnet.mix.threshold.max.wait.ms", 0));
+            case "pool", "timed-pool" -> new TimedPoolMixStrategy(intervalMillis,
+                    Settings.getInt("mixnet.mix.pool.min", 8),
+                    Settings.getDouble("mixnet.mix.pool.keep", 0.3));
+            case "poisson", "continuous" -> new PoissonMixStrategy(nodeId,
+                    Settings.getLong("mixnet.mix.delay.mean.ms", 200),
+                    Settings.getLong("mixnet.mix.tick.ms", 10));
+            default -> {
+                if (!name.equals("timed")) {
+                    Logger.log("Unknown mix strategy '" + name + "', using timed", LogLevel.Warn);
+                }
+                yield new TimedMixStrategy(intervalMillis);
+            }
+        };
+        Logger.log("Mix strategy for " + nodeId + ": " + strategy.describe(), LogLevel.Info);
+        return strategy;
+    }
+}
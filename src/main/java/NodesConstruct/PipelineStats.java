@@ -0,0 +1,101 @@
+package NodesConstruct;
+
+import Metrics.Histogram;
+import Metrics.MetricsRegistry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+// depth and latency of each stage a mix message goes through: decrypt queue, decrypt, mix pool, send
+// (also exported as mixnet_mix_stage_seconds / mixnet_mix_stage_depth with the node and stage as labels)
+public class PipelineStats {
+
+    public static class Stage {
+        private final String name;
+        private final IntSupplier depth;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final Histogram histogram;
+
+        Stage(String name, IntSupplier depth, Histogram histogram) {
+            this.name = name;
+            this.depth = depth;
+            this.histogram = histogram;
+        }
+
+        public void record(long elapsedNanos) {
+            count.increment();
+            nanos.add(elapsedNanos);
+            maxNanos.accumulateAndGet(elapsedNanos, Math::max);
+            histogram.record(elapsedNanos);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getDepth() {
+            return depth.getAsInt();
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getAverageMicros() {
+            long n = count.sum();
+            return n == 0 ? 0 : nanos.sum() / (n * 1000.0);
+        }
+
+        public double getMaxMicros() {
+            return maxNanos.get() / 1000.0;
+        }
+
+        public double getQuantileMicros(double q) {
+            return histogram.quantile(q) / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s depth=%d count=%d avg=%.1fus p99=%.1fus max=%.1fus", name, getDepth(), getCount(), getAverageMicros(), getQuantileMicros(0.99), getMaxMicros());
+        }
+    }
+
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+    private final String nodeId;
+    private final MetricsRegistry metrics;
+
+    public PipelineStats(String nodeId, MetricsRegistry metrics) {
+        this.nodeId = nodeId;
+        this.metrics = metrics;
+    }
+
+    // registered once while the node is built, read from anywhere after
+    Stage addStage(String name, IntSupplier depth) {
+        Histogram histogram = metrics.histogram("mixnet_mix_stage_seconds", "Time a message spent in each mix stage", 1e-9, "node", nodeId, "stage", name);
+        metrics.gauge("mixnet_mix_stage_depth", "Messages in each mix stage right now", depth::getAsInt, "node", nodeId, "stage", name);
+        Stage stage = new Stage(name, depth, histogram);
+        stages.put(name, stage);
+        return stage;
+    }
+
+    public Map<String, Stage> getStages() {
+        return stages;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : stages.values()) {
+            if (sb.length() > 0) {
+                sb.append(" | ");
+            }
+            sb.append(stage);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,117 @@
+package NodesConstruct;
+
+import Code.Message;
+import Logs.LogLevel;
+import Logs.Logger;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/*
+ * Continuous-time mixing (Loopix style stop-and-go): each message gets its own delay drawn from an
+ * exponential with the configured mean and leaves when it is up, no rounds. Memorylessness is the point,
+ * how long a message has been here says nothing about when it leaves.
+ *
+ * Every tick moves what is in the pool's memory into a TimingWheel and sends what came due. The held
+ * messages stay in the pool's byte count until they leave (drainHeld/release), so the pool and the wheel
+ * share the one cap and the pool's overload policy covers both. stop() sends whatever is still held.
+ */
+public class PoissonMixStrategy implements MixStrategy {
+
+    private final String nodeId;
+    private final long meanDelayNanos;
+    private final long tickMillis;
+    private final SecureRandom random = new SecureRandom();
+
+    // tick() only, a periodic task never overlaps itself; 1 ms ticks, 256 slots a level, 4 levels reach about 50 days
+    private final TimingWheel<Message> delayed = new TimingWheel<>(TimeUnit.MILLISECONDS.toNanos(1), 256, 4);
+    private volatile int heldCount;
+    private MixPool pool;
+    private Consumer<List<Message>> output;
+    private ScheduledFuture<?> ticks;
+    private boolean stopped;
+
+    public PoissonMixStrategy(String nodeId, long meanDelayMillis, long tickMillis) {
+        if (meanDelayMillis < 1 || tickMillis < 1) {
+            throw new IllegalArgumentException("Need mean delay and tick >= 1 ms, got " + meanDelayMillis + "/" + tickMillis);
+        }
+        this.nodeId = nodeId;
+        this.meanDelayNanos = TimeUnit.MILLISECONDS.toNanos(meanDelayMillis);
+        this.tickMillis = tickMillis;
+    }
+
+    @Override
+    public void start(MixPool pool, ScheduledExecutorService scheduler, Consumer<List<Message>> output) {
+        this.pool = pool;
+        this.output = output;
+        ticks = scheduler.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // synchronized against stop(), a cancelled tick can still be running on another scheduler thread
+    private synchronized void tick() {
+        if (stopped) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (!pool.isEmpty()) {
+            List<Message> arrived = new ArrayList<>();
+            pool.drainHeld(arrived);
+            for (Message message : arrived) {
+                delayed.schedule(message, now + nextDelayNanos());
+            }
+        }
+
+        List<Message> due = new ArrayList<>();
+        delayed.advance(now, due);
+        send(due);
+    }
+
+    private void send(List<Message> due) {
+        heldCount = delayed.size();
+        if (due.isEmpty()) {
+            return;
+        }
+        long dueBytes = 0;
+        for (Message message : due) {
+            dueBytes += MixPool.sizeOf(message);
+        }
+        output.accept(due);
+        pool.release(dueBytes);
+    }
+
+    // inverse cdf of the exponential, 1 - u keeps it away from log(0)
+    private long nextDelayNanos() {
+        return (long) (-Math.log(1 - random.nextDouble()) * meanDelayNanos);
+    }
+
+    @Override
+    public int getHeldCount() {
+        return heldCount;
+    }
+
+    @Override
+    public synchronized void stop() {
+        stopped = true;
+        if (ticks != null) {
+            ticks.cancel(false);
+        }
+        if (heldCount == 0) {
+            return;
+        }
+        // early rather than never, the links are still up at this point
+        List<Message> held = new ArrayList<>();
+        delayed.drainAll(held);
+        Logger.log("Mix " + nodeId + " stopping, sending " + held.size() + " delayed messages before their time", LogLevel.Warn);
+        send(held);
+    }
+
+    @Override
+    public String describe() {
+        return "poisson, exponential delay with mean " + TimeUnit.NANOSECONDS.toMillis(meanDelayNanos) + " ms, " + tickMillis + " ms tick";
+    }
+}
@@ -0,0 +1,247 @@
+package NodesConstruct;
+
+import Code.Message;
+import Code.MessageType;
+import Code.Settings;
+import CryptoUtils.CryptoEngine;
+import Logs.LogLevel;
+import Logs.Logger;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Seen-before check for incoming packets, done on the reader before a packet gets anywhere near the
+ * private key. The tag is whatever is unique to one packet at this hop: the key block (onion, circuit
+ * create), the sphinx header key block, or circuit id + iv for circuit data.
+ *
+ * Two bloom filters in rotation, current and previous, each sized for `capacity` tags at `fp` false
+ * positives. A tag goes into current and is looked for in both, so a replay is caught for at least
+ * one epoch and at most two. Memory is fixed at two filters whatever the traffic; if an epoch fills
+ * up before its time it rotates early (and the window shrinks) rather than let the fp rate climb.
+ *
+ * Positions come from a keyed HMAC with a per node secret, so nobody can aim tags at the same bits.
+ * A replay older than the window still gets through, closing that needs node key rotation.
+ */
+public class ReplayFilter {
+
+    private final String nodeId;
+    private final long capacity;
+    private final double targetFalsePositiveRate;
+    private final long epochNanos;
+    private final int bitsPerFilter;
+    private final int hashes;
+    private final byte[] hashKey = CryptoEngine.randomBytes(32);
+
+    private volatile Epochs epochs;
+
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder replays = new LongAdder();
+    private final LongAdder untagged = new LongAdder();
+    private final LongAdder rotations = new LongAdder();
+    private final LongAdder earlyRotations = new LongAdder();
+
+    public ReplayFilter(String nodeId) {
+        this(nodeId,
+                Settings.getLong("mixnet.replay.capacity", 1_000_000),
+                Settings.getDouble("mixnet.replay.fp", 1e-6),
+                Settings.getLong("mixnet.replay.epoch.ms", 10 * 60 * 1000));
+    }
+
+    public ReplayFilter(String nodeId, long capacity, double falsePositiveRate, long epochMillis) {
+        if (capacity < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1 || epochMillis < 1) {
+            throw new IllegalArgumentException("Need capacity >= 1, 0 < fp < 1 and epoch >= 1 ms, got " + capacity + "/" + falsePositiveRate + "/" + epochMillis);
+        }
+        this.nodeId = nodeId;
+        this.capacity = capacity;
+        this.targetFalsePositiveRate = falsePositiveRate;
+        this.epochNanos = epochMillis * 1_000_000L;
+
+        // m = -n ln p / (ln 2)^2, k = m/n ln 2
+        double bits = -capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        long words = (long) Math.ceil(bits / 64);
+        if (words > Integer.MAX_VALUE / 64) {
+            throw new IllegalArgumentException("Replay filter of " + (long) bits + " bits is too big, lower the capacity or raise fp");
+        }
+        this.bitsPerFilter = (int) (words * 64);
+        this.hashes = Math.max(1, (int) Math.round(bitsPerFilter / (double) capacity * Math.log(2)));
+
+        long now = System.nanoTime();
+        this.epochs = new Epochs(new Bloom(bitsPerFilter), new Bloom(bitsPerFilter), now);
+        Logger.log("ReplayFilter " + nodeId + ": " + capacity + " tags per " + epochMillis + " ms epoch, "
+                + hashes + " hashes, " + getMemoryBytes() / 1024 + " KiB", LogLevel.Info);
+    }
+
+    // true when the message was seen before (or collides with something that was, at the fp rate)
+    public boolean isReplay(Message message) {
+        byte[] tag = tagOf(message);
+        if (tag == null) {
+            // nothing to key on, whatever comes next rejects it anyway
+            untagged.increment();
+            return false;
+        }
+        return checkAndRecord(tag);
+    }
+
+    public boolean checkAndRecord(byte[] tag) {
+        checks.increment();
+        long[] h = hash(tag);
+        Epochs current = rotateIfDue(System.nanoTime());
+
+        // always added to current, so a tag only in previous carries over into the next epoch too
+        boolean seen = !current.current.add(h[0], h[1], hashes);
+        if (!seen) {
+            seen = current.previous.contains(h[0], h[1], hashes);
+        }
+        if (seen) {
+            replays.increment();
+        }
+        return seen;
+    }
+
+    private Epochs rotateIfDue(long now) {
+        Epochs current = epochs;
+        boolean due = now - current.startNanos >= epochNanos;
+        boolean full = current.current.inserted.sum() >= capacity;
+        if (!due && !full) {
+            return current;
+        }
+        synchronized (this) {
+            current = epochs;
+            due = now - current.startNanos >= epochNanos;
+            full = current.current.inserted.sum() >= capacity;
+            if (due || full) {
+                // a new array rather than clearing the old one, a reader may still be on it
+                current = new Epochs(new Bloom(bitsPerFilter), current.current, now);
+                epochs = current;
+                rotations.increment();
+                if (!due) {
+                    earlyRotations.increment();
+                    Logger.log("ReplayFilter " + nodeId + ": epoch filled up early, replay window is shorter than configured", LogLevel.Warn);
+                }
+            }
+            return current;
+        }
+    }
+
+    private long[] hash(byte[] tag) {
+        try {
+            byte[] digest = CryptoEngine.hmacSha256(hashKey).doFinal(tag);
+            ByteBuffer buffer = ByteBuffer.wrap(digest);
+            // double hashing, the second one odd so it walks every position
+            return new long[] {buffer.getLong(), buffer.getLong() | 1};
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+
+    static byte[] tagOf(Message message) {
+        MessageType type = message.getType();
+        if (type == MessageType.SPHINX) {
+            byte[] packet = message.getEncryptedPayload();
+            int length = message.getSuite().getKeyBlockBytes();
+            return packet == null || packet.length < length ? null : Arrays.copyOf(packet, length);
+        }
+        if (type == MessageType.CIRCUIT_DATA) {
+            byte[] iv = message.getIv();
+            if (iv == null) {
+                return null;
+            }
+            return ByteBuffer.allocate(8 + iv.length).putLong(message.getCircuitId()).put(iv).array();
+        }
+        return message.getEncryptedSymmetricKeyForThisHop();
+    }
+
+    public long getCheckCount() {
+        return checks.sum();
+    }
+
+    public long getReplayCount() {
+        return replays.sum();
+    }
+
+    public double getHitRate() {
+        long total = checks.sum();
+        return total == 0 ? 0 : replays.sum() / (double) total;
+    }
+
+    // chance a fresh tag right now is wrongly taken for a replay, either filter can say yes
+    public double getFalsePositiveEstimate() {
+        Epochs current = epochs;
+        double inCurrent = current.current.falsePositiveRate(hashes);
+        double inPrevious = current.previous.falsePositiveRate(hashes);
+        return 1 - (1 - inCurrent) * (1 - inPrevious);
+    }
+
+    public long getMemoryBytes() {
+        return 2L * bitsPerFilter / 8;
+    }
+
+    @Override
+    public String toString() {
+        Epochs current = epochs;
+        return String.format("checks=%d replays=%d hitRate=%.4f untagged=%d fpEstimate=%.2e (target %.0e) epochFill=%d/%d rotations=%d early=%d memory=%dKiB",
+                checks.sum(), replays.sum(), getHitRate(), untagged.sum(), getFalsePositiveEstimate(), targetFalsePositiveRate,
+                current.current.inserted.sum(), capacity, rotations.sum(), earlyRotations.sum(), getMemoryBytes() / 1024);
+    }
+
+    private static final class Epochs {
+        private final Bloom current;
+        private final Bloom previous;
+        private final long startNanos;
+
+        private Epochs(Bloom current, Bloom previous, long startNanos) {
+            this.current = current;
+            this.previous = previous;
+            this.startNanos = startNanos;
+        }
+    }
+
+    private static final class Bloom {
+        private final AtomicLongArray words;
+        private final int bits;
+        private final LongAdder inserted = new LongAdder();
+        private final LongAdder setBits = new LongAdder();
+
+        private Bloom(int bits) {
+            this.bits = bits;
+            this.words = new AtomicLongArray(bits / 64);
+        }
+
+        // false when every bit was already set, i.e. probably seen
+        boolean add(long h1, long h2, int hashes) {
+            boolean changed = false;
+            for (int i = 0; i < hashes; i++) {
+                int bit = (int) Math.floorMod(h1 + i * h2, (long) bits);
+                long mask = 1L << (bit & 63);
+                int word = bit >>> 6;
+                // plain read first, the cas only happens for bits that are still clear
+                if ((words.get(word) & mask) == 0 && (words.getAndAccumulate(word, mask, (old, set) -> old | set) & mask) == 0) {
+                    setBits.increment();
+                    changed = true;
+                }
+            }
+            if (changed) {
+                inserted.increment();
+            }
+            return changed;
+        }
+
+        boolean contains(long h1, long h2, int hashes) {
+            for (int i = 0; i < hashes; i++) {
+                int bit = (int) Math.floorMod(h1 + i * h2, (long) bits);
+                if ((words.get(bit >>> 6) & (1L << (bit & 63))) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        double falsePositiveRate(int hashes) {
+            return Math.pow(setBits.sum() / (double) bits, hashes);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package NodesConstruct;
+
+import Code.Connection;
+import Code.Message;
+import Code.Settings;
+import Logs.LogLevel;
+import Logs.Logger;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Messages whose next hop could not be reached, or whose link went down with them still queued. Each
+ * destination gets a bounded FIFO and one retry loop: reconnect after a jittered exponential backoff,
+ * push out what is still inside its deadline, back off further on failure, stop once the queue is empty.
+ *
+ * Only link failures come here. A full queue on a live link is overload and retrying would only add to
+ * it, those are counted as rejected. So: expired/overflow growing means the network, rejected means us.
+ */
+public class RetryQueue {
+
+    public interface Connector {
+        Connection connect(String nodeId) throws IOException;
+    }
+
+    private final String nodeId;
+    private final Connector connector;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final int capacity;
+    private final long deadlineNanos;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Map<String, Destination> destinations = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder overflow = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder attempts = new LongAdder();
+
+    public RetryQueue(String nodeId, Connector connector, ScheduledExecutorService scheduler, Executor executor) {
+        this(nodeId, connector, scheduler, executor,
+                Settings.getInt("mixnet.retry.capacity", 256),
+                Settings.getLong("mixnet.retry.deadline.ms", 30_000),
+                Settings.getLong("mixnet.retry.backoff.initial.ms", 100),
+                Settings.getLong("mixnet.retry.backoff.max.ms", 10_000));
+    }
+
+    public RetryQueue(String nodeId, Connector connector, ScheduledExecutorService scheduler, Executor executor,
+                      int capacity, long deadlineMillis, long initialBackoffMillis, long maxBackoffMillis) {
+        if (capacity < 0 || deadlineMillis < 1 || initialBackoffMillis < 1 || maxBackoffMillis < initialBackoffMillis) {
+            throw new IllegalArgumentException("Need capacity >= 0, deadline >= 1 ms and 1 <= initial <= max backoff, got "
+                    + capacity + "/" + deadlineMillis + "/" + initialBackoffMillis + "/" + maxBackoffMillis);
+        }
+        this.nodeId = nodeId;
+        this.connector = connector;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    // went onto a link's queue on the first try
+    public void recordSent() {
+        sent.increment();
+    }
+
+    // the link was up but its queue was full
+    public void recordRejected() {
+        rejected.increment();
+    }
+
+    // false when it had to be dropped right away (queue for that node full, or shutting down)
+    public boolean add(String destinationId, Message message) {
+        if (closed) {
+            overflow.increment();
+            return false;
+        }
+        Destination destination = destinations.computeIfAbsent(destinationId, Destination::new);
+        synchronized (destination) {
+            if (destination.pending.size() >= capacity) {
+                overflow.increment();
+                if (!destination.full) {
+                    // once per spell, the overflow counter has the rest
+                    destination.full = true;
+                    Logger.log("RetryQueue {}: {} messages already waiting for {}, dropping new ones until it drains", LogLevel.Warn, nodeId, capacity, destinationId);
+                }
+                return false;
+            }
+            destination.full = false;
+            destination.pending.addLast(new Pending(message, System.nanoTime() + deadlineNanos));
+            queued.increment();
+            if (!destination.scheduled) {
+                destination.scheduled = true;
+                schedule(destination);
+            }
+        }
+        return true;
+    }
+
+    // the last reconnect failed and there is still a backlog: new sends should queue behind it, not dial again
+    public boolean isBackingOff(String destinationId) {
+        Destination destination = destinations.get(destinationId);
+        if (destination == null) {
+            return false;
+        }
+        synchronized (destination) {
+            return destination.failures > 0 && !destination.pending.isEmpty();
+        }
+    }
+
+    // holding the destination's lock
+    private void schedule(Destination destination) {
+        long delay = backoffMillis(destination.failures);
+        try {
+            // the connect blocks, so the scheduler only hands the attempt over
+            scheduler.schedule(() -> executor.execute(() -> attempt(destination)), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            destination.scheduled = false; // runtime is going down
+        }
+    }
+
+    // equal jitter: half the step for sure, the other half random, so retries of many nodes spread out
+    private long backoffMillis(int failures) {
+        long step = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(failures, 20));
+        return step / 2 + ThreadLocalRandom.current().nextLong(step / 2 + 1);
+    }
+
+    private void attempt(Destination destination) {
+        attempts.increment();
+        if (closed) {
+            return;
+        }
+        dropExpired(destination);
+        synchronized (destination) {
+            if (destination.pending.isEmpty()) {
+                destination.scheduled = false;
+                destination.failures = 0;
+                return;
+            }
+        }
+
+        Connection link;
+        try {
+            link = connector.connect(destination.id);
+        } catch (IOException | RuntimeException e) {
+            failed(destination, "connect failed: " + e.getMessage());
+            return;
+        }
+
+        int count = 0;
+        while (true) {
+            Pending next;
+            synchronized (destination) {
+                next = destination.pending.pollFirst();
+                if (next == null) {
+                    destination.scheduled = false;
+                    destination.failures = 0;
+                    break;
+                }
+            }
+            if (System.nanoTime() - next.deadlineNanos > 0) {
+                expired.increment();
+                continue;
+            }
+            if (!link.sendMessage(next.message)) {
+                synchronized (destination) {
+                    destination.pending.addFirst(next);
+                }
+                failed(destination, link.isConnected() ? "link queue full" : "link dropped again");
+                return;
+            }
+            retried.increment();
+            count++;
+        }
+        if (count > 0) {
+            Logger.log("RetryQueue " + nodeId + ": " + count + " messages for " + destination.id + " went out on retry, " + this, LogLevel.Info);
+        }
+    }
+
+    // deadlines go up along the queue, only the head can be past it
+    private void dropExpired(Destination destination) {
+        long now = System.nanoTime();
+        int dropped = 0;
+        synchronized (destination) {
+            Pending head;
+            while ((head = destination.pending.peekFirst()) != null && now - head.deadlineNanos > 0) {
+                destination.pending.pollFirst();
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            expired.add(dropped);
+            Logger.log("RetryQueue " + nodeId + ": " + dropped + " messages for " + destination.id + " passed their deadline", LogLevel.Warn);
+        }
+    }
+
+    private void failed(Destination destination, String reason) {
+        synchronized (destination) {
+            destination.failures++;
+            Logger.log("RetryQueue " + nodeId + ": " + destination.id + " " + reason + ", " + destination.pending.size()
+                    + " waiting, retry " + destination.failures, LogLevel.Info);
+            schedule(destination);
+        }
+    }
+
+    public int getWaitingCount() {
+        int waiting = 0;
+        for (Destination destination : destinations.values()) {
+            synchronized (destination) {
+                waiting += destination.pending.size();
+            }
+        }
+        return waiting;
+    }
+
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    public long getRetriedCount() {
+        return retried.sum();
+    }
+
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    public long getOverflowCount() {
+        return overflow.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public void close() {
+        closed = true;
+        int left = getWaitingCount();
+        if (left > 0) {
+            Logger.log("RetryQueue " + nodeId + " closed with " + left + " messages still waiting for a link", LogLevel.Warn);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("sent=%d queued=%d retried=%d expired=%d overflow=%d rejected=%d waiting=%d attempts=%d",
+                sent.sum(), queued.sum(), retried.sum(), expired.sum(), overflow.sum(), rejected.sum(), getWaitingCount(), attempts.sum());
+    }
+
+    private static final class Destination {
+        private final String id;
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        private int failures;
+        private boolean scheduled;
+        private boolean full; // last add overflowed
+
+        private Destination(String id) {
+            this.id = id;
+        }
+    }
+
+    private static final class Pending {
+        private final Message message;
+        private final long deadlineNanos;
+
+        private Pending(Message message, long deadlineNanos) {
+            this.message = message;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+}
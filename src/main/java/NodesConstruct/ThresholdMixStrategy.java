@@ -0,0 +1,88 @@
+package NodesConstruct;
+
+import Code.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/*
+ * Flushes the whole pool once it holds threshold messages, so every batch is at least that big and the
+ * latency shrinks as the load grows. Under light load a message can wait forever, maxWaitMillis > 0
+ * puts a ceiling on that (and gives up the batch size guarantee when it fires).
+ */
+public class ThresholdMixStrategy implements MixStrategy {
+
+    private final int threshold;
+    private final long maxWaitMillis;
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+
+    private MixPool pool;
+    private ScheduledExecutorService scheduler;
+    private Consumer<List<Message>> output;
+    private ScheduledFuture<?> maxWaitCheck;
+    private volatile boolean stopped;
+    private volatile long lastFlushNanos = System.nanoTime();
+
+    public ThresholdMixStrategy(int threshold, long maxWaitMillis) {
+        if (threshold < 1 || maxWaitMillis < 0) {
+            throw new IllegalArgumentException("Need threshold >= 1 and max wait >= 0, got " + threshold + "/" + maxWaitMillis);
+        }
+        this.threshold = threshold;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    @Override
+    public void start(MixPool pool, ScheduledExecutorService scheduler, Consumer<List<Message>> output) {
+        this.pool = pool;
+        this.scheduler = scheduler;
+        this.output = output;
+        if (maxWaitMillis > 0) {
+            long checkEvery = Math.max(1, maxWaitMillis / 4);
+            maxWaitCheck = scheduler.scheduleWithFixedDelay(() -> {
+                if (System.nanoTime() - lastFlushNanos >= TimeUnit.MILLISECONDS.toNanos(maxWaitMillis)) {
+                    flush(0);
+                }
+            }, checkEvery, checkEvery, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void onAdmitted(Message message) {
+        // the flush itself runs on the scheduler, the crypto worker only queues it once
+        if (!stopped && pool.getCount() >= threshold && flushQueued.compareAndSet(false, true)) {
+            scheduler.execute(() -> {
+                flushQueued.set(false);
+                flush(threshold);
+            });
+        }
+    }
+
+    // the max wait check and a queued flush can land on two scheduler threads at once
+    private synchronized void flush(int atLeast) {
+        if (pool.isEmpty() || pool.getCount() < atLeast) {
+            return;
+        }
+        List<Message> batch = new ArrayList<>();
+        pool.drainTo(batch);
+        lastFlushNanos = System.nanoTime();
+        output.accept(batch);
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+        if (maxWaitCheck != null) {
+            maxWaitCheck.cancel(false);
+        }
+    }
+
+    @Override
+    public String describe() {
+        return "threshold, flush all at " + threshold + " messages" + (maxWaitMillis > 0 ? " or after " + maxWaitMillis + " ms" : "");
+    }
+}
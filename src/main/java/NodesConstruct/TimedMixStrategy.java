@@ -0,0 +1,48 @@
+package NodesConstruct;
+
+import Code.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// everything in the pool goes out every interval, up to an interval of added latency whatever the load
+public class TimedMixStrategy implements MixStrategy {
+
+    private final long intervalMillis;
+    private ScheduledFuture<?> ticks;
+
+    public TimedMixStrategy(long intervalMillis) {
+        if (intervalMillis < 1) {
+            throw new IllegalArgumentException("Mix interval must be at least 1 ms, got " + intervalMillis);
+        }
+        this.intervalMillis = intervalMillis;
+    }
+
+    @Override
+    public void start(MixPool pool, ScheduledExecutorService scheduler, Consumer<List<Message>> output) {
+        ticks = scheduler.scheduleAtFixedRate(() -> {
+            if (pool.isEmpty()) {
+                return;
+            }
+            List<Message> batch = new ArrayList<>();
+            pool.drainTo(batch);
+            output.accept(batch);
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (ticks != null) {
+            ticks.cancel(false);
+        }
+    }
+
+    @Override
+    public String describe() {
+        return "timed, flush all every " + intervalMillis + " ms";
+    }
+}
@@ -0,0 +1,63 @@
+package NodesConstruct;
+
+import Code.Message;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/*
+ * Timed dynamic pool mix: every interval, with n messages in the pool, send
+ * min(n - minPool, floor(n * (1 - keep))) picked at random and leave the rest for later rounds. A message
+ * can stay for several rounds, which is where the anonymity under bursts comes from, paid for in latency.
+ */
+public class TimedPoolMixStrategy implements MixStrategy {
+
+    private final long intervalMillis;
+    private final int minPool;
+    private final double keepFraction;
+    private final SecureRandom random = new SecureRandom();
+    private ScheduledFuture<?> ticks;
+
+    public TimedPoolMixStrategy(long intervalMillis, int minPool, double keepFraction) {
+        if (intervalMillis < 1 || minPool < 0 || keepFraction < 0 || keepFraction >= 1) {
+            throw new IllegalArgumentException("Need interval >= 1 ms, min pool >= 0 and 0 <= keep < 1, got "
+                    + intervalMillis + "/" + minPool + "/" + keepFraction);
+        }
+        this.intervalMillis = intervalMillis;
+        this.minPool = minPool;
+        this.keepFraction = keepFraction;
+    }
+
+    @Override
+    public void start(MixPool pool, ScheduledExecutorService scheduler, Consumer<List<Message>> output) {
+        ticks = scheduler.scheduleAtFixedRate(() -> {
+            int n = pool.getCount();
+            int send = Math.min(n - minPool, (int) Math.floor(n * (1 - keepFraction)));
+            if (send <= 0) {
+                return;
+            }
+            List<Message> batch = new ArrayList<>(send);
+            // n counts spilled messages too, only the ones in memory can be picked
+            if (pool.drainRandom(batch, send, random) > 0) {
+                output.accept(batch);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (ticks != null) {
+            ticks.cancel(false);
+        }
+    }
+
+    @Override
+    public String describe() {
+        return "timed pool, every " + intervalMillis + " ms keep " + Math.round(keepFraction * 100) + "% and at least " + minPool + " messages";
+    }
+}
@@ -0,0 +1,205 @@
+package NodesConstruct;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Hierarchical timing wheel for per-message delays. Level 0 has one slot per tick, every level above
+ * covers a whole turn of the one below per slot; an entry goes into the lowest level its delay fits and
+ * is moved down (cascaded) when the cursor reaches its slot's block. Insert and expiry are O(1) per
+ * entry, nothing is allocated per entry (slots are growable arrays), and advance() hands back everything
+ * due at once so it can go straight into a dispatch batch.
+ *
+ * Deadlines are rounded up to the next tick, so nothing fires early and at most one tick late. Delays
+ * past the top level's reach sit in its slots and get re-placed on each pass until they fit.
+ *
+ * Not thread safe, it is meant to be owned by the mix's scheduler thread.
+ */
+public class TimingWheel<T> {
+
+    private final long tickNanos;
+    private final long originNanos;
+    private final int slotBits;
+    private final int mask;
+    private final int levels;
+    private final Slot[][] wheels;
+    private final Slot[] spares;      // swapped in while a slot is being emptied
+    private final Slot overdue = new Slot();
+
+    private long currentTick;
+    private int size;
+
+    public TimingWheel(long tickNanos, int slotsPerLevel, int levels) {
+        this(tickNanos, slotsPerLevel, levels, System.nanoTime());
+    }
+
+    public TimingWheel(long tickNanos, int slotsPerLevel, int levels, long startNanos) {
+        if (tickNanos < 1 || slotsPerLevel < 2 || Integer.bitCount(slotsPerLevel) != 1 || levels < 1
+                || Integer.numberOfTrailingZeros(slotsPerLevel) * levels > 62) {
+            throw new IllegalArgumentException("Need tick >= 1 ns, a power of two >= 2 slots and slots^levels under 2^62, got "
+                    + tickNanos + "/" + slotsPerLevel + "/" + levels);
+        }
+        this.tickNanos = tickNanos;
+        this.originNanos = startNanos;
+        this.slotBits = Integer.numberOfTrailingZeros(slotsPerLevel);
+        this.mask = slotsPerLevel - 1;
+        this.levels = levels;
+        this.wheels = new Slot[levels][slotsPerLevel];
+        this.spares = new Slot[levels];
+        for (int level = 0; level < levels; level++) {
+            for (int slot = 0; slot < slotsPerLevel; slot++) {
+                wheels[level][slot] = new Slot();
+            }
+            spares[level] = new Slot();
+        }
+    }
+
+    public void schedule(T item, long deadlineNanos) {
+        long deadlineTick = Math.floorDiv(deadlineNanos - originNanos + tickNanos - 1, tickNanos);
+        place(item, deadlineTick);
+        size++;
+    }
+
+    // moves the cursor up to now and appends everything that came due, returns how many
+    public int advance(long nowNanos, List<T> expired) {
+        long targetTick = Math.floorDiv(nowNanos - originNanos, tickNanos);
+        int before = expired.size();
+
+        if (size == overdue.count) {
+            // nothing in the wheels, no need to walk the empty slots
+            currentTick = Math.max(currentTick, targetTick);
+        }
+        while (currentTick < targetTick) {
+            currentTick++;
+            if ((currentTick & mask) == 0) {
+                cascade(1);
+            }
+            expire((int) (currentTick & mask), expired);
+        }
+        // scheduled in the past, or cascaded down onto the tick we are on
+        overdue.drainTo(expired);
+
+        int count = expired.size() - before;
+        size -= count;
+        return count;
+    }
+
+    // with a single level a slot can also hold entries a full turn or more out, those go back in
+    @SuppressWarnings("unchecked")
+    private void expire(int index, List<T> expired) {
+        Slot slot = wheels[0][index];
+        if (slot.count == 0) {
+            return;
+        }
+        wheels[0][index] = spares[0];
+        spares[0] = slot;
+        for (int i = 0; i < slot.count; i++) {
+            if (slot.deadlines[i] <= currentTick) {
+                expired.add((T) slot.items[i]);
+            } else {
+                place((T) slot.items[i], slot.deadlines[i]);
+            }
+        }
+        slot.clear();
+    }
+
+    private void place(T item, long deadlineTick) {
+        long ticks = deadlineTick - currentTick;
+        if (ticks <= 0) {
+            overdue.add(item, deadlineTick);
+            return;
+        }
+        int level = 0;
+        while (level < levels - 1 && ticks >= 1L << (slotBits * (level + 1))) {
+            level++;
+        }
+        wheels[level][(int) ((deadlineTick >>> (slotBits * level)) & mask)].add(item, deadlineTick);
+    }
+
+    // the cursor just entered a new block of this level's slot, spread that slot over the levels below
+    @SuppressWarnings("unchecked")
+    private void cascade(int level) {
+        if (level >= levels) {
+            return;
+        }
+        int index = (int) ((currentTick >>> (slotBits * level)) & mask);
+        if (index == 0) {
+            cascade(level + 1);
+        }
+        Slot slot = wheels[level][index];
+        if (slot.count == 0) {
+            return;
+        }
+        wheels[level][index] = spares[level];
+        spares[level] = slot;
+        for (int i = 0; i < slot.count; i++) {
+            place((T) slot.items[i], slot.deadlines[i]);
+        }
+        slot.clear();
+    }
+
+    // everything still in the wheel whether it is due or not, for shutting down; returns how many
+    public int drainAll(List<T> out) {
+        int before = out.size();
+        for (Slot[] wheel : wheels) {
+            for (Slot slot : wheel) {
+                slot.drainTo(out);
+            }
+        }
+        overdue.drainTo(out);
+        size = 0;
+        return out.size() - before;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    // how far ahead the wheels reach before entries start going round the top level again
+    public long getHorizonNanos() {
+        return tickNanos << (slotBits * levels);
+    }
+
+    private static final class Slot {
+        private Object[] items = new Object[4];
+        private long[] deadlines = new long[4];
+        private int count;
+
+        void add(Object item, long deadlineTick) {
+            if (count == items.length) {
+                items = Arrays.copyOf(items, count * 2);
+                deadlines = Arrays.copyOf(deadlines, count * 2);
+            }
+            items[count] = item;
+            deadlines[count] = deadlineTick;
+            count++;
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> void drainTo(List<T> out) {
+            for (int i = 0; i < count; i++) {
+                out.add((T) items[i]);
+            }
+            clear();
+        }
+
+        void clear() {
+            if (items.length > 1024) {
+                // a burst landed here, don't hold on to its arrays
+                items = new Object[4];
+                deadlines = new long[4];
+            } else {
+                Arrays.fill(items, 0, count, null);
+            }
+            count = 0;
+        }
+    }
+}
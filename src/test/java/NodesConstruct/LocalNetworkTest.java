@@ -0,0 +1,155 @@
+package NodesConstruct;
+
+import Code.Connection;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// whole paths through a LocalNetwork; the nodes read their settings when they are built, so each test
+// sets its system properties before start() and they are cleared again after
+class LocalNetworkTest {
+
+    private static final long TIMEOUT_MILLIS = 20_000;
+
+    private final List<String> setKeys = new ArrayList<>();
+
+    @AfterEach
+    void clearSettings() {
+        for (String key : setKeys) {
+            System.clearProperty(key);
+        }
+        setKeys.clear();
+    }
+
+    private void set(Map<String, String> settings) {
+        // threshold 1 sends every message on as soon as it is in, the timed default would be 5 s a hop
+        Map<String, String> all = new HashMap<>(Map.of("mixnet.mix.strategy", "threshold", "mixnet.mix.threshold", "1"));
+        all.putAll(settings);
+        for (Map.Entry<String, String> entry : all.entrySet()) {
+            System.setProperty(entry.getKey(), entry.getValue());
+            setKeys.add(entry.getKey());
+        }
+    }
+
+    static Stream<Arguments> configurations() {
+        return Stream.of(
+                Arguments.of("loopback", Map.of()),
+                Arguments.of("socket", Map.of("mixnet.loopback", "false")),
+                Arguments.of("nio", Map.of("mixnet.loopback", "false", "mixnet.transport", "nio")),
+                Arguments.of("x25519", Map.of("mixnet.suite", "x25519")),
+                Arguments.of("sphinx", Map.of("mixnet.packet", "sphinx")),
+                Arguments.of("sphinx x25519 socket", Map.of("mixnet.packet", "sphinx", "mixnet.suite", "x25519", "mixnet.loopback", "false")),
+                Arguments.of("circuits", Map.of("mixnet.circuits", "true")),
+                Arguments.of("circuits socket", Map.of("mixnet.circuits", "true", "mixnet.loopback", "false")));
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("configurations")
+    void deliversThroughEveryMix(String name, Map<String, String> settings) throws Exception {
+        set(settings);
+        try (LocalNetwork network = new LocalNetwork(1, 3, 1).start()) {
+            for (int i = 0; i < 20; i++) {
+                assertTrue(network.send(0, name + " " + i, 0), "send " + i);
+            }
+            assertTrue(network.awaitDelivered(20, TIMEOUT_MILLIS), "delivered " + network.getDeliveredCount() + " of 20");
+        }
+    }
+
+    @Test
+    void twoNetworksSideBySide() throws Exception {
+        set(Map.of());
+        try (LocalNetwork first = new LocalNetwork(1, 2, 1).start(); LocalNetwork second = new LocalNetwork(1, 1, 1).start()) {
+            first.send(0, "first", 0);
+            second.send(0, "second", 0);
+            assertTrue(first.awaitDelivered(1, TIMEOUT_MILLIS));
+            assertTrue(second.awaitDelivered(1, TIMEOUT_MILLIS));
+            assertEquals(1, first.getDeliveredCount());
+            assertEquals(1, second.getDeliveredCount());
+        }
+    }
+
+    // mix0 loses its link to mix1 and can't get a new one for a while: the messages wait in mix0's retry
+    // queue and go out once mix1 is reachable again
+    @Test
+    void retriesAfterALinkDrop() throws Exception {
+        set(Map.of("mixnet.loopback", "false",
+                "mixnet.retry.backoff.initial.ms", "20",
+                "mixnet.retry.backoff.max.ms", "100",
+                "mixnet.connect.timeout.ms", "500"));
+        try (LocalNetwork network = new LocalNetwork(1, 2, 1).start()) {
+            network.send(0, "before", 0);
+            assertTrue(network.awaitDelivered(1, TIMEOUT_MILLIS));
+
+            MixNode first = network.getMixes().get(0);
+            String nextId = network.getMixes().get(1).getNodeID();
+            NodeConfig next = first.knownNodeConfigs.get(nextId);
+            first.knownNodeConfigs.put(nextId, new NodeConfig(nextId, next.getHost(), closedPort()));
+            for (Connection link : first.getLinkPools().get(nextId).getLinks()) {
+                link.shutdownPeer();
+            }
+
+            for (int i = 0; i < 5; i++) {
+                network.send(0, "during " + i, 0);
+            }
+            assertFalse(network.awaitDelivered(2, 500), "nothing gets past mix0 while mix1 is unreachable");
+            assertTrue(first.getRetryQueue().getWaitingCount() > 0, "mix0 keeps them for a retry");
+
+            first.knownNodeConfigs.put(nextId, next);
+            assertTrue(network.awaitDelivered(6, TIMEOUT_MILLIS), "delivered " + network.getDeliveredCount() + " of 6");
+            assertTrue(first.getRetryQueue().getRetriedCount() >= 5);
+            assertEquals(0, first.getRetryQueue().getWaitingCount());
+        }
+    }
+
+    // a burst into a pool that holds a handful: every message is delivered or counted by the policy that
+    // turned it away, and the pool ends up empty either way (whether it overflows depends on the timing,
+    // MixPoolTest covers the overflow itself)
+    @ParameterizedTest(name = "{0}")
+    @ValueSource(strings = {"reject", "drop-oldest", "spill"})
+    void burstIntoASmallPool(String policy) throws Exception {
+        set(Map.of("mixnet.pool.policy", policy,
+                "mixnet.pool.max.bytes", "4096",
+                "mixnet.mix.strategy", "pool",
+                "mixnet.mix.interval.ms", "20",
+                "mixnet.mix.pool.min", "0",
+                "mixnet.mix.pool.keep", "0")); // a pool that keeps a share would hold the last one back for good
+        try (LocalNetwork network = new LocalNetwork(1, 1, 1).start()) {
+            int count = 200;
+            for (int i = 0; i < count; i++) {
+                network.send(0, policy + " " + i, 0);
+            }
+            MixPool pool = network.getMixes().get(0).getMessagePool();
+            long deadline = System.nanoTime() + TIMEOUT_MILLIS * 1_000_000L;
+            while (network.getDeliveredCount() + pool.getRejectedCount() + pool.getDroppedCount() < count && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(count, network.getDeliveredCount() + pool.getRejectedCount() + pool.getDroppedCount(), pool.toString());
+            assertEquals(0, pool.getCount(), pool.toString());
+            switch (pool.getPolicy()) {
+                case REJECT -> assertEquals(0, pool.getDroppedCount() + pool.getSpilledCount(), pool.toString());
+                case DROP_OLDEST -> assertEquals(0, pool.getRejectedCount() + pool.getSpilledCount(), pool.toString());
+                case SPILL_TO_DISK -> assertEquals(count, network.getDeliveredCount(), pool.toString());
+            }
+        }
+    }
+
+    private static int closedPort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
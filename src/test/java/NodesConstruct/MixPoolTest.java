@@ -0,0 +1,138 @@
+package NodesConstruct;
+
+import Code.IngressGate;
+import Code.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// the pool on its own, room for three messages
+class MixPoolTest {
+
+    private static final long MESSAGE_BYTES = MixPool.sizeOf(message(0));
+    private static final long CAP = 3 * MESSAGE_BYTES;
+
+    @TempDir
+    Path spillDir;
+
+    private final IngressGate gate = new IngressGate("test");
+    private MixPool pool;
+
+    @BeforeEach
+    void spillToTempDir() {
+        System.setProperty("mixnet.pool.spill.dir", spillDir.toString());
+    }
+
+    @AfterEach
+    void closePool() {
+        if (pool != null) {
+            pool.close();
+        }
+        System.clearProperty("mixnet.pool.spill.dir");
+    }
+
+    private static Message message(int id) {
+        byte[] payload = new byte[100];
+        payload[0] = (byte) id;
+        return new Message(List.of("next"), payload, new byte[12], new byte[16]);
+    }
+
+    private static int id(Message message) {
+        return message.getEncryptedPayload()[0];
+    }
+
+    private void offer(int count) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(pool.offer(message(i)), "offer " + i);
+        }
+    }
+
+    @Test
+    void rejectRefusesTheOverflowAndClosesIngress() {
+        pool = new MixPool("test", CAP, MixPool.OverloadPolicy.REJECT, 0, gate);
+        offer(3);
+        assertTrue(gate.isOpen());
+
+        assertFalse(pool.offer(message(3)));
+        assertFalse(gate.isOpen());
+        assertEquals(1, pool.getRejectedCount());
+
+        List<Message> batch = new ArrayList<>();
+        assertEquals(3, pool.drainTo(batch));
+        assertEquals(List.of(0, 1, 2), batch.stream().map(MixPoolTest::id).toList());
+        assertTrue(gate.isOpen());
+    }
+
+    @Test
+    void dropOldestMakesRoomAtTheHead() {
+        pool = new MixPool("test", CAP, MixPool.OverloadPolicy.DROP_OLDEST, 0, gate);
+        offer(5);
+        assertTrue(gate.isOpen());
+        assertEquals(2, pool.getDroppedCount());
+        assertEquals(0, pool.getRejectedCount());
+
+        List<Message> batch = new ArrayList<>();
+        pool.drainTo(batch);
+        assertEquals(List.of(2, 3, 4), batch.stream().map(MixPoolTest::id).toList());
+    }
+
+    @Test
+    void spillKeepsTheOverflowAndReadsItBackInOrder() {
+        pool = new MixPool("test", CAP, MixPool.OverloadPolicy.SPILL_TO_DISK, 1 << 20, gate);
+        offer(10);
+        assertEquals(7, pool.getSpilledCount());
+        assertEquals(10, pool.getCount());
+        assertTrue(pool.getBytes() <= CAP);
+
+        List<Message> batch = new ArrayList<>();
+        while (!pool.isEmpty()) {
+            pool.drainTo(batch);
+        }
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), batch.stream().map(MixPoolTest::id).toList());
+    }
+
+    @Test
+    void drainRandomOnlyHandsOutWhatIsInMemory() {
+        pool = new MixPool("test", CAP, MixPool.OverloadPolicy.SPILL_TO_DISK, 1 << 20, gate);
+        offer(10);
+        Random random = new Random(1);
+        List<Message> all = new ArrayList<>();
+        while (!pool.isEmpty()) {
+            List<Message> batch = new ArrayList<>();
+            // asks for more than memory holds, the spilled ones move up but are not picked yet
+            int picked = pool.drainRandom(batch, 5, random);
+            assertEquals(picked, batch.size());
+            assertTrue(batch.size() <= 3);
+            assertTrue(pool.getBytes() <= CAP);
+            all.addAll(batch);
+        }
+        assertEquals(10, all.size());
+    }
+
+    @Test
+    void heldMessagesCountAgainstTheCap() {
+        pool = new MixPool("test", CAP, MixPool.OverloadPolicy.REJECT, 0, gate);
+        offer(3);
+        List<Message> held = new ArrayList<>();
+        assertEquals(3, pool.drainHeld(held));
+        assertEquals(0, pool.getBytes());
+        assertEquals(CAP, pool.getHeldBytes());
+
+        assertFalse(pool.offer(message(3)));
+        assertFalse(gate.isOpen());
+
+        pool.release(3 * MESSAGE_BYTES);
+        assertTrue(gate.isOpen());
+        assertTrue(pool.offer(message(3)));
+    }
+}